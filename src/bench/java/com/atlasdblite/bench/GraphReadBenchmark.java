@@ -0,0 +1,77 @@
+package com.atlasdblite.bench;
+
+import com.atlasdblite.engine.GraphEngine;
+import com.atlasdblite.models.Node;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@code getNode} throughput on a fully resident graph at 1, 8 and 32 threads,
+ * i.e. the cost of the segment cache's recency bookkeeping under contention.
+ * <p>
+ * Run with: {@code mvn -Pbench test-compile exec:exec -Dbench.args="GraphRead"}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GraphReadBenchmark {
+
+    @Param({"50000"})
+    public int nodeCount;
+
+    private Path dir;
+    private GraphEngine engine;
+    private String[] ids;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("atlas_bench");
+        engine = new GraphEngine(dir.toString());
+        ids = new String[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            ids[i] = "node_" + i;
+            engine.persistNode(new Node(ids[i], "Person"));
+        }
+        engine.checkpoint();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        engine.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private Node randomRead() {
+        return engine.getNode(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Node getNode1() {
+        return randomRead();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Node getNode8() {
+        return randomRead();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Node getNode32() {
+        return randomRead();
+    }
+}
@@ -0,0 +1,66 @@
+package com.atlasdblite.bench;
+
+import com.atlasdblite.engine.GraphEngine;
+import com.atlasdblite.engine.PageRank;
+import com.atlasdblite.engine.TransactionManager;
+import com.atlasdblite.models.Node;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures 20 PageRank iterations over the CSR topology of a random graph, i.e. the cost of
+ * the parallel rank passes alone: the topology is built once in setup and reused.
+ * <p>
+ * Run with: {@code mvn -Pbench test-compile exec:exec -Dbench.args="PageRank"}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageRankBenchmark {
+
+    @Param({"20000"})
+    public int nodeCount;
+
+    @Param({"10"})
+    public int edgesPerNode;
+
+    private Path dir;
+    private GraphEngine engine;
+    private final PageRank pageRank = new PageRank().setMaxIterations(20).setTolerance(0);
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("atlas_bench");
+        engine = new GraphEngine(dir.toString());
+        engine.setWalDurability(TransactionManager.Durability.osBuffered());
+        for (int i = 0; i < nodeCount; i++) engine.persistNode(new Node("node_" + i, "Page"));
+        Random random = new Random(42);
+        for (int i = 0; i < nodeCount; i++)
+            for (int j = 0; j < edgesPerNode; j++)
+                engine.persistRelation("node_" + i, "node_" + random.nextInt(nodeCount), "LINKS_" + j);
+        engine.getTopology();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        engine.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public PageRank.Result pageRank() {
+        return engine.calculatePageRank(pageRank);
+    }
+}
@@ -0,0 +1,111 @@
+package com.atlasdblite.bench;
+
+import com.atlasdblite.models.Node;
+import com.atlasdblite.security.CryptoManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of sealing and opening one shard's payload with the legacy
+ * String pipeline (Base64 -> AES/ECB -> Base64) against the byte-oriented AES-GCM API:
+ * the sealing stream run files are written through, block-by-block sealing into one reused
+ * buffer as base files are written, and in-place opening as files are read.
+ * <p>
+ * The warmup is long on purpose: AES-GCM only reaches its intrinsic speed once the JDK's cipher
+ * loops are compiled by C2, which takes some seconds of these large calls. Before that it runs
+ * at a few percent of its final throughput, far below ECB, and a short warmup measures that.
+ * <p>
+ * Run with: {@code mvn -Pbench test-compile exec:exec -Dbench.args="SegmentCrypto"}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 6, time = 5)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("deprecation")
+public class SegmentCryptoBenchmark {
+
+    @Param({"20000"})
+    public int nodeCount;
+
+    private CryptoManager crypto;
+    private byte[] payload;
+    private byte[] legacyFile;
+    private byte[] sealedFile;
+    private ByteBuffer scratch;
+    private ByteArrayOutputStream sink;
+    private byte[] block;
+
+    @Setup
+    public void setup() throws Exception {
+        crypto = new CryptoManager();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            Node n = new Node("node_" + i, "Person");
+            n.addProperty("name", "User Number " + i);
+            n.addProperty("email", "user" + i + "@example.com");
+            n.writeTo(out);
+        }
+        payload = baos.toByteArray();
+
+        sink = new ByteArrayOutputStream(payload.length + 64);
+        legacyFile = legacySave();
+        sealedFile = gcmSave().toByteArray();
+        scratch = ByteBuffer.allocate(sealedFile.length);
+        block = new byte[64 * 1024 + CryptoManager.NONCE_LENGTH + CryptoManager.TAG_LENGTH];
+
+        System.out.printf("%n [BENCH] payload=%d B, legacy file=%d B (%.2fx), GCM file=%d B (%.2fx)%n",
+                payload.length, legacyFile.length, (double) legacyFile.length / payload.length,
+                sealedFile.length, (double) sealedFile.length / payload.length);
+    }
+
+    @Benchmark
+    public byte[] legacySave() throws Exception {
+        return crypto.encrypt(Base64.getEncoder().encodeToString(payload)).getBytes();
+    }
+
+    @Benchmark
+    public byte[] legacyLoad() throws Exception {
+        return Base64.getDecoder().decode(crypto.decrypt(new String(legacyFile)));
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream gcmSave() throws IOException {
+        sink.reset();
+        try (OutputStream out = crypto.encryptingStream(sink)) {
+            out.write(payload);
+        }
+        return sink;
+    }
+
+    @Benchmark
+    public int gcmBlockSave() throws Exception {
+        // As BlockFile.Writer seals 64 KB blocks, each bound to its offset.
+        int written = 0;
+        byte[] aad = new byte[Long.BYTES];
+        for (int offset = 0; offset < payload.length; offset += 64 * 1024) {
+            ByteBuffer.wrap(aad).putLong(0, offset);
+            written += crypto.encrypt(payload, offset, Math.min(64 * 1024, payload.length - offset), aad, block, 0);
+        }
+        return written;
+    }
+
+    @Benchmark
+    public ByteBuffer gcmLoad() throws Exception {
+        // Stands in for the private file mapping that SegmentStore decrypts in place.
+        scratch.clear();
+        scratch.put(sealedFile).flip();
+        return crypto.decryptInPlace(scratch);
+    }
+}
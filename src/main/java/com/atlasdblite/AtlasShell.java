@@ -26,11 +26,15 @@ public class AtlasShell {
         
         registry.register(new StatsCommand());
         registry.register(new BackupCommand());
+        registry.register(new RestoreCommand());
         registry.register(new CheckpointCommand());
+        registry.register(new ReshardCommand());
+        registry.register(new DurabilityCommand());
         registry.register(new ImportCommand());
         registry.register(new ExportCommand());
         registry.register(new NukeCommand());
         registry.register(new ServerCommand());
+        registry.register(new ReplicaCommand());
         registry.register(new IndexCommand());
         registry.register(new ExitCommand());
         registry.register(new ClearCommand());
@@ -1,9 +1,13 @@
 package com.atlasdblite.commands;
 
 import com.atlasdblite.engine.GraphEngine;
+import com.atlasdblite.engine.PageRank;
+import java.util.HashMap;
 import java.util.Map;
 
 public class AnalyzeCommand extends AbstractCommand {
+    private static final String USAGE = "analyze pagerank [maxIterations] [tolerance] [--seed id,id...] | analyze pagerank incremental <errorBound|off>";
+
     @Override
     public String getName() {
         return "analyze";
@@ -11,34 +15,65 @@ public class AnalyzeCommand extends AbstractCommand {
 
     @Override
     public String getDescription() {
-        return "Runs graph algorithms. Usage: analyze pagerank [iterations]";
+        return "Runs graph algorithms. Usage: " + USAGE;
     }
 
     @Override
     public void execute(String[] args, GraphEngine engine) {
-        if (!validateArgs(args, 1, "analyze pagerank [iterations]"))
+        if (!validateArgs(args, 1, USAGE))
             return;
 
         String algo = args[1].toLowerCase();
 
-        if ("pagerank".equals(algo)) {
-            int iterations = 20; // Default
-            if (args.length > 2) {
-                try {
-                    iterations = Integer.parseInt(args[2]);
-                } catch (NumberFormatException e) {
-                    printError("Invalid iterations");
+        if ("pagerank".equals(algo) && args.length > 2 && "incremental".equalsIgnoreCase(args[2])) {
+            if (!validateArgs(args, 3, "analyze pagerank incremental <errorBound|off>")) return;
+            if ("off".equalsIgnoreCase(args[3])) {
+                engine.stopIncrementalPageRank();
+                printSuccess("PageRank scores are no longer kept current.");
+                return;
+            }
+            try {
+                if (!engine.startIncrementalPageRank(Double.parseDouble(args[3]))) {
+                    printError("PageRank scores are already kept current; turn it off first.");
                     return;
                 }
+            } catch (IllegalArgumentException e) {
+                printError("Invalid error bound: " + args[3]);
+                return;
+            }
+            printSuccess("PageRank scores are now updated after every change, within L1 error " + args[3] + ".");
+        } else if ("pagerank".equals(algo)) {
+            PageRank pageRank = new PageRank().setMaxIterations(100); // Default
+            try {
+                for (int i = 2; i < args.length; i++) {
+                    if ("--seed".equalsIgnoreCase(args[i]) && i + 1 < args.length) {
+                        Map<String, Double> seeds = new HashMap<>();
+                        for (String id : args[++i].split(",")) seeds.put(id.trim(), 1.0);
+                        pageRank.setPersonalization(seeds);
+                    } else if (i == 2) {
+                        pageRank.setMaxIterations(Integer.parseInt(args[i]));
+                    } else if (i == 3) {
+                        pageRank.setTolerance(Double.parseDouble(args[i]));
+                    } else {
+                        printError("Usage: " + USAGE);
+                        return;
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                printError("Invalid iterations or tolerance: " + e.getMessage());
+                return;
             }
 
-            System.out.println(" ... Calculating PageRank (" + iterations + " iterations)...");
+            System.out.println(" ... Calculating PageRank (up to " + pageRank.getMaxIterations() + " iterations, tolerance "
+                    + pageRank.getTolerance() + ", " + Runtime.getRuntime().availableProcessors() + " cores)...");
             long start = System.currentTimeMillis();
 
-            Map<String, Double> scores = engine.calculatePageRank(iterations, 0.85);
+            PageRank.Result result = engine.calculatePageRank(pageRank);
+            Map<String, Double> scores = result.getScores();
 
             long end = System.currentTimeMillis();
-            System.out.println(" [DONE] Calculation took " + (end - start) + "ms");
+            System.out.println(" [DONE] Calculation took " + (end - start) + "ms: " + result.getIterations() + " iterations, residual "
+                    + String.format("%.2e", result.getResidual()) + (result.isConverged() ? " (converged)" : " (not converged)"));
 
             // Print Top 10
             System.out.println("\n === TOP 10 INFLUENTIAL NODES ===");
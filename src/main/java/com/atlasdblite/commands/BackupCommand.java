@@ -1,44 +1,52 @@
 package com.atlasdblite.commands;
 
+import com.atlasdblite.engine.Backup;
 import com.atlasdblite.engine.GraphEngine;
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.*;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.stream.Stream;
 
 public class BackupCommand extends AbstractCommand {
     @Override
     public String getName() { return "backup"; }
 
     @Override
-    public String getDescription() { return "Creates a snapshot of the database directory and key."; }
+    public String getDescription() { return "Creates an online backup of the database and key. Usage: backup [archive <dir|off>]"; }
 
     @Override
     public void execute(String[] args, GraphEngine engine) {
-        // Force save memory state to disk before backing up
-        System.out.println(" ... Flushing memory to disk...");
-        engine.commit();
+        if (args.length > 1) {
+            if (!"archive".equalsIgnoreCase(args[1])) {
+                printError("Usage: backup [archive <dir|off>]");
+                return;
+            }
+            if (!validateArgs(args, 2, "backup archive <dir|off>")) return;
+            if ("off".equalsIgnoreCase(args[2])) {
+                engine.setWalArchive(null);
+                printSuccess("WAL archiving stopped.");
+            } else {
+                engine.setWalArchive(new File(args[2]));
+                printSuccess("Checkpointed WAL files are now archived in: " + args[2]);
+            }
+            return;
+        }
 
         String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
         String backupDirName = "backup_" + timestamp;
-        File backupRoot = new File(backupDirName);
-        
+
         // Paths
-        Path sourceDb = Paths.get("atlas_db");
         Path sourceKey = Paths.get("atlas.key");
         Path destDb = Paths.get(backupDirName, "atlas_db");
         Path destKey = Paths.get(backupDirName, "atlas.key");
-
-        if (!Files.exists(sourceDb)) {
-            printError("No database directory found to backup.");
-            return;
-        }
+        Path previous = latestBackup();
 
         try {
-            // 1. Create Backup Root
-            if (!backupRoot.exists()) backupRoot.mkdirs();
+            // 1. Shards and WAL: linked, not copied, and without a checkpoint
+            Backup.Result result = engine.backup(destDb, previous);
+            System.out.printf("   + %d files linked, %d copied (%d KB).%n",
+                    result.getLinkedFiles(), result.getCopiedFiles(), result.getCopiedBytes() / 1024);
 
             // 2. Copy Key
             if (Files.exists(sourceKey)) {
@@ -48,25 +56,21 @@ public class BackupCommand extends AbstractCommand {
                 System.out.println("   ! Warning: No atlas.key found. Data may be unreadable.");
             }
 
-            // 3. Copy Shards (Recursive Directory Copy)
-            if (!Files.exists(destDb)) Files.createDirectories(destDb);
-            
-            try (Stream<Path> stream = Files.walk(sourceDb)) {
-                stream.forEach(source -> {
-                    Path destination = destDb.resolve(sourceDb.relativize(source));
-                    try {
-                        Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
-                    } catch (IOException e) {
-                        System.err.println("Failed to copy: " + source);
-                    }
-                });
-            }
-            
-            printSuccess("Backup created successfully in: " + backupDirName);
+            printSuccess("Backup at LSN " + result.getLsn() + " created in: " + backupDirName);
 
         } catch (Exception e) {
             printError("Backup failed: " + e.getMessage());
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return The database directory of the newest {@code backup_*} in the working directory, or {@code null}.
+     */
+    private static Path latestBackup() {
+        File[] backups = new File(".").listFiles((d, name) -> name.startsWith("backup_") && new File(d, name + "/atlas_db").isDirectory());
+        if (backups == null || backups.length == 0) return null;
+        Arrays.sort(backups);
+        return backups[backups.length - 1].toPath().resolve("atlas_db");
+    }
+}
@@ -3,7 +3,7 @@ package com.atlasdblite.commands;
 import com.atlasdblite.engine.GraphEngine;
 
 /**
- * Manually flushes memory to disk and truncates the WAL.
+ * Manually flushes memory to disk and deletes the WAL files every shard has persisted.
  */
 public class CheckpointCommand extends AbstractCommand {
     @Override
@@ -0,0 +1,35 @@
+package com.atlasdblite.commands;
+
+import com.atlasdblite.engine.GraphEngine;
+import com.atlasdblite.engine.TransactionManager;
+
+/**
+ * Shows or changes when a write counts as committed to the WAL.
+ */
+public class DurabilityCommand extends AbstractCommand {
+    @Override
+    public String getName() { return "durability"; }
+
+    @Override
+    public String getDescription() { return "Sets the WAL commit policy. Usage: durability [fsync|os|group:<ms>:<bytes>]"; }
+
+    /**
+     * Applies a new policy, or reports the current one when none is given.
+     *
+     * @param args The command arguments, where {@code args[1]} is the policy.
+     * @param engine The {@link GraphEngine} whose WAL is configured.
+     */
+    @Override
+    public void execute(String[] args, GraphEngine engine) {
+        if (args.length < 2) {
+            System.out.println(" > WAL Durability: " + engine.getWalDurability());
+            return;
+        }
+        try {
+            engine.setWalDurability(TransactionManager.Durability.parse(args[1]));
+            printSuccess("WAL durability set to " + engine.getWalDurability() + ".");
+        } catch (IllegalArgumentException e) {
+            printError(e.getMessage());
+        }
+    }
+}
@@ -23,8 +23,9 @@ public class ExitCommand extends AbstractCommand {
     @Override
     public void execute(String[] args, GraphEngine engine) {
         System.out.println(" [SHUTDOWN] Saving shards...");
-        // Ensure all changes held in memory are written to their respective segment files.
-        engine.checkpoint();
+        // Ensure all changes held in memory are written to their respective segment files
+        // and that background compaction has finished before the process ends.
+        engine.close();
         System.out.println(" [SHUTDOWN] Goodbye.");
         // Terminate the application.
         System.exit(0);
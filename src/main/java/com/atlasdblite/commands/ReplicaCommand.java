@@ -0,0 +1,72 @@
+package com.atlasdblite.commands;
+
+import com.atlasdblite.engine.GraphEngine;
+import com.atlasdblite.server.Replica;
+
+/**
+ * Turns this shell's database into a read-only replica of another AtlasDB-Lite process,
+ * or promotes it back to a writable database.
+ */
+public class ReplicaCommand extends AbstractCommand {
+    /** The replica this shell is running, if any. */
+    private static Replica active;
+
+    @Override
+    public String getName() { return "replica"; }
+
+    @Override
+    public String getDescription() { return "Follows a primary's web API read-only. Usage: replica <start <url>|stop|status>"; }
+
+    /**
+     * @return The running replica, or {@code null} if this shell's database is not following a primary.
+     */
+    static Replica active() {
+        return active;
+    }
+
+    /**
+     * Starts following, stops following (making the database writable again) or reports the lag.
+     *
+     * @param args Command arguments: {@code start <url>}, {@code stop} or {@code status}.
+     * @param engine The {@link GraphEngine} kept in step with the primary.
+     */
+    @Override
+    public void execute(String[] args, GraphEngine engine) {
+        if (args.length < 2) {
+            printError("Usage: replica <start <url>|stop|status>");
+            return;
+        }
+        String action = args[1];
+
+        if ("start".equalsIgnoreCase(action)) {
+            if (!validateArgs(args, 2, "replica start <url>")) return;
+            if (active != null) {
+                printError("Already following " + active.getPrimary() + ".");
+                return;
+            }
+            active = new Replica(engine, args[2]);
+            active.start();
+            ServerCommand.setReplica(active);
+        } else if ("stop".equalsIgnoreCase(action)) {
+            if (active == null) {
+                printError("Not following a primary.");
+                return;
+            }
+            active.stop();
+            active = null;
+            ServerCommand.setReplica(null);
+            printSuccess("Stopped following; the database is writable again.");
+        } else if ("status".equalsIgnoreCase(action)) {
+            if (active == null) {
+                System.out.println(" > Not following a primary.");
+                return;
+            }
+            long lag = active.getLag();
+            System.out.println(" > Primary: " + active.getPrimary());
+            System.out.println(" > Applied up to LSN: " + (active.getPosition() - 1));
+            System.out.println(" > Lag: " + (lag < 0 ? "unknown (primary unreachable)" : lag + " changes"));
+        } else {
+            printError("Unknown action: " + action + ". Use 'start', 'stop' or 'status'.");
+        }
+    }
+}
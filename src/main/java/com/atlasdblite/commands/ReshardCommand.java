@@ -0,0 +1,39 @@
+package com.atlasdblite.commands;
+
+import com.atlasdblite.engine.GraphEngine;
+
+/**
+ * Changes the number of shards the database is split into.
+ * The migration runs in the background while the database stays available.
+ */
+public class ReshardCommand extends AbstractCommand {
+    @Override
+    public String getName() { return "reshard"; }
+
+    @Override
+    public String getDescription() { return "Changes the shard count online. Usage: reshard [count]"; }
+
+    /**
+     * Starts a reshard, or reports the current layout when no count is given.
+     *
+     * @param args The command arguments, where {@code args[1]} is the new shard count.
+     * @param engine The {@link GraphEngine} to reshard.
+     */
+    @Override
+    public void execute(String[] args, GraphEngine engine) {
+        if (args.length < 2) {
+            System.out.println(" > Shards: " + engine.getShardCount()
+                    + (engine.isResharding() ? " (resharding in progress)" : ""));
+            return;
+        }
+        try {
+            int count = Integer.parseInt(args[1]);
+            engine.reshard(count);
+            printSuccess("Resharding to " + count + " shards in the background.");
+        } catch (NumberFormatException e) {
+            printError("Invalid shard count: " + args[1]);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            printError(e.getMessage());
+        }
+    }
+}
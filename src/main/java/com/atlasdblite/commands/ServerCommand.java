@@ -2,6 +2,7 @@ package com.atlasdblite.commands;
 
 import com.atlasdblite.engine.GraphEngine;
 import com.atlasdblite.server.APIServer;
+import com.atlasdblite.server.Replica;
 
 /**
  * Command to control the embedded web API server.
@@ -11,6 +12,11 @@ public class ServerCommand extends AbstractCommand {
     /** A static reference to the server instance to ensure only one is running at a time. */
     private static APIServer serverInstance; 
 
+    /** Lets the running server report replication state, or stop reporting it. */
+    static void setReplica(Replica replica) {
+        if (serverInstance != null) serverInstance.setReplica(replica);
+    }
+
     @Override
     public String getName() { return "server"; }
 
@@ -51,6 +57,7 @@ public class ServerCommand extends AbstractCommand {
             try {
                 // Create and start the server instance.
                 serverInstance = new APIServer(engine);
+                serverInstance.setReplica(ReplicaCommand.active());
                 serverInstance.start(port);
             } catch (Exception e) {
                 printError("Failed to start server: " + e.getMessage());
@@ -42,8 +42,10 @@ public class StatsCommand extends AbstractCommand {
         System.out.println(" =========================================");
         System.out.println(String.format("  %-15s : %d", "Nodes", nodes));
         System.out.println(String.format("  %-15s : %d", "Relations", edges));
-        System.out.println(String.format("  %-15s : %s", "Sharding", "16 Buckets"));
+        System.out.println(String.format("  %-15s : %s", "Sharding", engine.getShardCount() + " Buckets" + (engine.isResharding() ? " (resharding)" : "")));
         System.out.println(String.format("  %-15s : %.2f KB", "Disk Usage", totalSize / 1024.0));
+        System.out.println(String.format("  %-15s : %.1f / %.1f MB", "Segment Cache",
+                engine.getCachedBytes() / (1024.0 * 1024), engine.getCacheBudget() / (1024.0 * 1024)));
         System.out.println(String.format("  %-15s : %s", "Encryption", "AES-256"));
         System.out.println(String.format("  %-15s : %s", "Auto-Index", engine.isAutoIndexing() ? "ENABLED (O(1))" : "DISABLED (O(N))"));
         System.out.println(" =========================================");
@@ -0,0 +1,158 @@
+package com.atlasdblite.engine;
+
+import com.atlasdblite.security.CryptoManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Online backups and point-in-time restore.
+ * <p>
+ * A backup ({@link GraphEngine#backup}) is a directory holding the shard files as last saved,
+ * the manifest, and the log files from the oldest change those shard files may be missing. Shard
+ * files and full log files are never modified once written, so they are hard-linked rather than
+ * copied: a nightly backup costs one link per file, and only the log file still being appended to
+ * is copied. Where links are not possible (another file system), a file is linked to the previous
+ * backup's copy if it is unchanged and copied otherwise.
+ * <p>
+ * {@link #restore} builds a new database directory from a backup plus, optionally, the WAL archive
+ * ({@link TransactionManager#setArchiveDirectory}), keeping the log only up to the requested
+ * point. Opening a {@link GraphEngine} on it then replays exactly that far.
+ */
+public final class Backup {
+    static final String INFO_FILE = "BACKUP";
+
+    private Backup() {}
+
+    /** What a backup contains and what taking it cost. */
+    public static final class Result {
+        long lsn;
+        long timestamp;
+        int linkedFiles;
+        int copiedFiles;
+        long copiedBytes;
+
+        /** @return The earliest LSN the backup can be restored to. */
+        public long getLsn() { return lsn; }
+        public int getLinkedFiles() { return linkedFiles; }
+        public int getCopiedFiles() { return copiedFiles; }
+        public long getCopiedBytes() { return copiedBytes; }
+
+        void copied(long bytes) {
+            copiedFiles++;
+            copiedBytes += bytes;
+        }
+    }
+
+    /**
+     * Hard-links {@code source} as {@code dest}, or copies it if that is not possible.
+     * @param previous An earlier backup to link unchanged files from when {@code source} cannot be linked, or {@code null}.
+     * @param result Counts the file, or {@code null}.
+     */
+    static void link(Path source, Path dest, Path previous, Result result) throws IOException {
+        if (tryLink(source, dest)) {
+            if (result != null) result.linkedFiles++;
+            return;
+        }
+        if (previous != null) {
+            Path earlier = previous.resolve(source.getFileName());
+            if (Files.exists(earlier) && Files.size(earlier) == Files.size(source)
+                    && Files.getLastModifiedTime(earlier).equals(Files.getLastModifiedTime(source))
+                    && tryLink(earlier, dest)) {
+                if (result != null) result.linkedFiles++;
+                return;
+            }
+        }
+        Files.copy(source, dest, StandardCopyOption.COPY_ATTRIBUTES);
+        if (result != null) result.copied(Files.size(dest));
+    }
+
+    private static boolean tryLink(Path source, Path dest) {
+        try {
+            Files.createLink(dest, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    static void writeInfo(Path backupDir, Result result) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("lsn", Long.toString(result.lsn));
+        props.setProperty("timestamp", Long.toString(result.timestamp));
+        try (OutputStream out = Files.newOutputStream(backupDir.resolve(INFO_FILE))) {
+            props.store(out, "AtlasDB-Lite backup");
+        }
+    }
+
+    private static Properties readInfo(Path backupDir) throws IOException {
+        Path path = backupDir.resolve(INFO_FILE);
+        if (!Files.exists(path)) throw new IOException("Not a backup: " + backupDir);
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    /**
+     * Creates a database in {@code target} as it was at a point no earlier than the backup.
+     * The log is kept up to, but not including, {@code toLsn}, and stops earlier at the first
+     * change logged after {@code toMillis}. Pass {@link Long#MAX_VALUE} for either to not limit it.
+     * @param backupDir The backup's database directory.
+     * @param archiveDir The WAL archive, for log files written after the backup, or {@code null}.
+     * @param target A new or empty directory.
+     * @return The LSN the restored log ends at: every change below it is part of the database.
+     * @throws IllegalArgumentException If the point is before the backup was taken.
+     */
+    public static long restore(Path backupDir, Path archiveDir, Path target, long toLsn, long toMillis) throws IOException {
+        Properties info = readInfo(backupDir);
+        long backupLsn = Long.parseLong(info.getProperty("lsn"));
+        long backupTime = Long.parseLong(info.getProperty("timestamp", "0"));
+        if (toLsn < backupLsn || toMillis < backupTime)
+            throw new IllegalArgumentException("The backup was taken at LSN " + backupLsn + "; restore it to that point or later.");
+        if (Files.isDirectory(target)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(target)) {
+                if (entries.iterator().hasNext()) throw new IOException("Restore target is not empty: " + target);
+            }
+        }
+        Files.createDirectories(target);
+
+        // Per first LSN, the longest copy of each log file: the backup only has a prefix of its last one.
+        TreeMap<Long, File> logs = new TreeMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(backupDir)) {
+            for (Path file : entries) {
+                String name = file.getFileName().toString();
+                if (TransactionManager.isNumberedLogFile(name)) addLog(logs, file.toFile());
+                else if (!name.equals(INFO_FILE)) link(file, target.resolve(name), null, null);
+            }
+        }
+        long from = logs.isEmpty() ? backupLsn : logs.firstKey();
+        if (archiveDir != null && Files.isDirectory(archiveDir)) {
+            for (long first : TransactionManager.logFiles(archiveDir.toFile()))
+                if (first >= from) addLog(logs, TransactionManager.logFile(archiveDir.toFile(), first));
+        }
+
+        List<File> files = new ArrayList<>(logs.values());
+        long end = TransactionManager.copyLogUntil(files, target.toFile(), new CryptoManager(), toLsn, toMillis);
+        if (end < backupLsn)
+            throw new IOException("The log ends at LSN " + end + ", before the backup's LSN " + backupLsn + ".");
+        return end;
+    }
+
+    private static void addLog(TreeMap<Long, File> logs, File file) {
+        long first = TransactionManager.firstLsnOf(file);
+        File existing = logs.get(first);
+        if (existing == null || file.length() > existing.length()) logs.put(first, file);
+    }
+}
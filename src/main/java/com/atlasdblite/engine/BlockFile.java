@@ -0,0 +1,261 @@
+package com.atlasdblite.engine;
+
+import com.atlasdblite.models.Node;
+import com.atlasdblite.security.CryptoManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block layout of a {@code SEG_V3} base file.
+ * <pre>
+ *   "SEG_V3" | block_0 | ... | block_n | index | indexOffset:long | indexLength:int | "SEG_V3"
+ * </pre>
+ * Records are grouped into blocks of about {@link #BLOCK_SIZE} bytes; a record never spans two
+ * blocks. Each block and the index are sealed on their own with a fresh nonce and bound to their
+ * file offset, so blocks cannot be reordered. The index records every block's section, offset,
+ * length, record count and first key. Sections are written in key order, so a point lookup
+ * binary-searches the index and decrypts a single block.
+ */
+final class BlockFile {
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final byte NODES = 1;
+    static final byte RELATIONS = 2;
+    static final byte INCOMING = 3;
+    static final byte META = 4;
+
+    private static final byte[] MAGIC = "SEG_V3".getBytes(StandardCharsets.US_ASCII);
+    private static final int TRAILER_LENGTH = Long.BYTES + Integer.BYTES + MAGIC.length;
+    private static final int OVERHEAD = CryptoManager.NONCE_LENGTH + CryptoManager.TAG_LENGTH;
+
+    private BlockFile() {}
+
+    static boolean isBlockFile(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() < MAGIC.length + TRAILER_LENGTH) return false;
+            ByteBuffer head = ByteBuffer.allocate(MAGIC.length);
+            while (head.hasRemaining() && ch.read(head) >= 0) { }
+            return Arrays.equals(head.array(), MAGIC);
+        }
+    }
+
+    private static byte[] aad(long offset) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(offset).array();
+    }
+
+    /** Index entry describing one sealed block. */
+    static final class BlockRef {
+        final byte section;
+        final long offset;
+        final int length;
+        final int records;
+        final String firstKey;
+
+        BlockRef(byte section, long offset, int length, int records, String firstKey) {
+            this.section = section;
+            this.offset = offset;
+            this.length = length;
+            this.records = records;
+            this.firstKey = firstKey;
+        }
+    }
+
+    /** Serializes one record into the current block. */
+    @FunctionalInterface
+    interface RecordWriter {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /** Parses the records of one decrypted block. */
+    @FunctionalInterface
+    interface BlockVisitor {
+        void visit(ByteBufferInput in, int records) throws IOException;
+    }
+
+    /**
+     * Writes a block file. Records must be appended grouped by section and sorted by key.
+     */
+    static final class Writer implements Closeable {
+        private final OutputStream file;
+        private final CryptoManager crypto;
+        private final BlockBuffer block = new BlockBuffer();
+        private final DataOutputStream out = new DataOutputStream(block);
+        private final List<BlockRef> index = new ArrayList<>();
+        /** Every block is sealed into this one buffer, grown only for an oversized block. */
+        private byte[] sealed = new byte[BLOCK_SIZE + 1024 + OVERHEAD];
+
+        private long position;
+        private byte section;
+        private int blockRecords;
+        private String blockFirstKey;
+
+        Writer(Path path, CryptoManager crypto) throws IOException {
+            this.file = Files.newOutputStream(path);
+            this.crypto = crypto;
+            file.write(MAGIC);
+            position = MAGIC.length;
+        }
+
+        void append(byte section, String key, RecordWriter record) throws IOException {
+            if (section != this.section) {
+                sealBlock();
+                this.section = section;
+            }
+            int mark = block.size();
+            record.writeTo(out);
+            if (block.size() > BLOCK_SIZE && mark > 0) {
+                // The record does not fit: seal what came before and start the next block with it.
+                byte[] carry = Arrays.copyOfRange(block.array(), mark, block.size());
+                block.truncate(mark);
+                sealBlock();
+                block.write(carry);
+            }
+            if (blockRecords++ == 0) blockFirstKey = key;
+        }
+
+        private void sealBlock() throws IOException {
+            if (blockRecords == 0) return;
+            int length = seal(block.array(), block.size());
+            index.add(new BlockRef(section, position, length, blockRecords, blockFirstKey));
+            file.write(sealed, 0, length);
+            position += length;
+            block.reset();
+            blockRecords = 0;
+        }
+
+        /** Seals a block into {@link #sealed} and returns its sealed length. */
+        private int seal(byte[] data, int length) throws IOException {
+            if (sealed.length < length + OVERHEAD) sealed = new byte[length + OVERHEAD];
+            try {
+                return crypto.encrypt(data, 0, length, aad(position), sealed, 0);
+            } catch (Exception e) {
+                throw new IOException("Block encryption failed: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                sealBlock();
+                block.reset();
+                out.writeInt(index.size());
+                for (BlockRef ref : index) {
+                    out.writeByte(ref.section);
+                    out.writeLong(ref.offset);
+                    out.writeInt(ref.length);
+                    out.writeInt(ref.records);
+                    out.writeUTF(ref.firstKey);
+                }
+                long indexOffset = position;
+                int length = seal(block.array(), block.size());
+                file.write(sealed, 0, length);
+                file.write(ByteBuffer.allocate(TRAILER_LENGTH)
+                        .putLong(indexOffset).putInt(length).put(MAGIC).array());
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Random-access reader over a memory-mapped block file. Blocks are decrypted one at a time
+     * into a small scratch buffer, so the mapped file itself is never copied onto the heap.
+     */
+    static final class Reader {
+        private final ByteBuffer map;
+        private final CryptoManager crypto;
+        private final List<BlockRef> index = new ArrayList<>();
+
+        Reader(Path path, CryptoManager crypto) throws Exception {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            this.crypto = crypto;
+
+            int end = map.capacity();
+            byte[] tail = new byte[MAGIC.length];
+            map.get(end - MAGIC.length, tail);
+            if (!Arrays.equals(tail, MAGIC)) throw new IOException("Truncated segment file");
+            long indexOffset = map.getLong(end - TRAILER_LENGTH);
+            int indexLength = map.getInt(end - TRAILER_LENGTH + Long.BYTES);
+
+            ByteBufferInput in = new ByteBufferInput(decrypt(indexOffset, indexLength, ByteBuffer.allocate(indexLength)));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte section = in.readByte();
+                long offset = in.readLong();
+                int length = in.readInt();
+                int records = in.readInt();
+                index.add(new BlockRef(section, offset, length, records, in.readUTF()));
+            }
+        }
+
+        /** Decrypts every block of a section in file order. */
+        void scan(byte section, BlockVisitor visitor) throws Exception {
+            ByteBuffer scratch = null;
+            for (BlockRef ref : index) {
+                if (ref.section != section) continue;
+                if (scratch == null || scratch.capacity() < ref.length) scratch = ByteBuffer.allocate(ref.length);
+                visitor.visit(new ByteBufferInput(decrypt(ref.offset, ref.length, scratch)), ref.records);
+            }
+        }
+
+        /**
+         * Looks up a node by decrypting only the block whose key range covers it.
+         * @return The node, or {@code null} if the file does not contain it.
+         */
+        Node findNode(String id) throws Exception {
+            BlockRef ref = locate(NODES, id);
+            if (ref == null) return null;
+            ByteBufferInput in = new ByteBufferInput(decrypt(ref.offset, ref.length, ByteBuffer.allocate(ref.length)));
+            for (int i = 0; i < ref.records; i++) {
+                Node n = Node.readFrom(in);
+                if (n.getId().equals(id)) return n;
+            }
+            return null;
+        }
+
+        /** Binary search for the last block of the section whose first key is not after {@code key}. */
+        private BlockRef locate(byte section, String key) {
+            BlockRef found = null;
+            int lo = 0, hi = index.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                BlockRef ref = index.get(mid);
+                int cmp = ref.section != section ? Byte.compare(ref.section, section) : ref.firstKey.compareTo(key);
+                if (cmp <= 0) {
+                    if (ref.section == section) found = ref;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        private ByteBuffer decrypt(long offset, int length, ByteBuffer scratch) throws Exception {
+            ByteBuffer sealed = map.duplicate().position((int) offset).limit((int) offset + length).slice();
+            scratch.limit(Math.max(0, length - OVERHEAD));
+            return crypto.decrypt(sealed, scratch, aad(offset));
+        }
+    }
+
+    /** A {@link ByteArrayOutputStream} whose backing array can be sealed and rewound without copying. */
+    private static final class BlockBuffer extends ByteArrayOutputStream {
+        BlockBuffer() { super(BLOCK_SIZE + 1024); }
+        byte[] array() { return buf; }
+        void truncate(int size) { count = size; }
+    }
+}
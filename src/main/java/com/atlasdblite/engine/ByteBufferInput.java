@@ -0,0 +1,87 @@
+package com.atlasdblite.engine;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link DataInput} view over a {@link ByteBuffer}, used to parse segment files
+ * straight out of a memory-mapped region without staging them in a byte array.
+ * The wire format is identical to {@link DataInputStream}'s.
+ */
+class ByteBufferInput implements DataInput {
+    private final ByteBuffer buf;
+
+    ByteBufferInput(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    boolean hasRemaining() {
+        return buf.hasRemaining();
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException { readFully(b, 0, b.length); }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (buf.remaining() < len) throw new EOFException();
+        buf.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        int skip = Math.min(n, buf.remaining());
+        buf.position(buf.position() + skip);
+        return skip;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException { return readByte() != 0; }
+
+    @Override
+    public byte readByte() throws IOException {
+        try { return buf.get(); } catch (BufferUnderflowException e) { throw new EOFException(); }
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException { return readByte() & 0xFF; }
+
+    @Override
+    public short readShort() throws IOException {
+        try { return buf.getShort(); } catch (BufferUnderflowException e) { throw new EOFException(); }
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException { return readShort() & 0xFFFF; }
+
+    @Override
+    public char readChar() throws IOException { return (char) readShort(); }
+
+    @Override
+    public int readInt() throws IOException {
+        try { return buf.getInt(); } catch (BufferUnderflowException e) { throw new EOFException(); }
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        try { return buf.getLong(); } catch (BufferUnderflowException e) { throw new EOFException(); }
+    }
+
+    @Override
+    public float readFloat() throws IOException { return Float.intBitsToFloat(readInt()); }
+
+    @Override
+    public double readDouble() throws IOException { return Double.longBitsToDouble(readLong()); }
+
+    @Override
+    public String readLine() {
+        throw new UnsupportedOperationException("readLine is not supported");
+    }
+
+    @Override
+    public String readUTF() throws IOException { return DataInputStream.readUTF(this); }
+}
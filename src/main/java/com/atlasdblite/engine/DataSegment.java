@@ -4,32 +4,45 @@ import com.atlasdblite.models.Node;
 import com.atlasdblite.models.Relation;
 import com.atlasdblite.security.CryptoManager;
 
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 
 /**
  * Represents a single partition (shard) of the database.
- * Manages atomic persistence, concurrency locks, and the inverted index.
+ * Manages log-structured persistence, concurrency locks, and the inverted index.
  */
 public class DataSegment {
     private final int id;
-    private final String filePath;
-    private final CryptoManager crypto;
+    private final SegmentStore store;
     private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    /** Serializes saves so runs are appended in mutation order. Always taken before {@link #rwLock}. */
+    private final ReentrantLock flushLock = new ReentrantLock();
     
-    private final Map<String, Node> nodes = new HashMap<>();
-    private final List<Relation> relations = new ArrayList<>();
+    private SegmentImage image = new SegmentImage();
+    private List<SegmentRun.Record> pending = new ArrayList<>();
     private final Map<String, Set<String>> invertedIndex = new HashMap<>();
     
     private boolean indexingEnabled = false;
-    private boolean isLoaded = false;
-    private boolean isDirty = false;
+    private volatile boolean isLoaded = false;
+    private volatile boolean isDirty = false;
+    private Consumer<DataSegment> dirtyListener = s -> {};
+
+    // WAL positions, guarded by rwLock. Everything logged at or below persistedLsn is on disk; the
+    // two "first" fields hold the lowest LSN among mutations still in memory or being written.
+    private LongSupplier lsnFloor = () -> 0;
+    private long persistedLsn;
+    private long applyingLsn;
+    private long pendingFirstLsn = Long.MAX_VALUE;
+    private long flushingFirstLsn = Long.MAX_VALUE;
+    /** Log records left for the first load to apply (lazy recovery), oldest first; {@code null} if none. */
+    private volatile List<DeferredOp> deferred;
 
     /**
      * Constructs a new DataSegment.
@@ -38,73 +51,257 @@ public class DataSegment {
      * @param crypto The security manager for encryption.
      */
     public DataSegment(int id, String rootDir, CryptoManager crypto) {
+        this(id, "part_" + id, rootDir, crypto);
+    }
+
+    /**
+     * Constructs a DataSegment whose files use the given base name.
+     * @param id The shard ID.
+     * @param name The file name prefix, e.g. {@code part_3}.
+     * @param rootDir The root database directory.
+     * @param crypto The security manager for encryption.
+     */
+    public DataSegment(int id, String name, String rootDir, CryptoManager crypto) {
         this.id = id;
-        this.filePath = rootDir + File.separator + "part_" + id + ".dat";
-        this.crypto = crypto;
+        this.store = new SegmentStore(name, rootDir, crypto);
     }
 
     // --- Core Logic ---
 
     /**
      * Loads the segment from disk if not already in memory.
-     * Handles decryption and binary parsing.
+     * Reads the base file and replays any runs appended since the last compaction.
      */
-    public void loadIfRequired() {
-        if (isLoaded) return;
+    public boolean loadIfRequired() {
+        if (isLoaded) return true;
         rwLock.writeLock().lock();
         try {
-            if (isLoaded) return;
-            File file = new File(filePath);
-            if (!file.exists()) { isLoaded = true; return; }
-            
-            byte[] fileBytes = Files.readAllBytes(file.toPath());
-            String rawBase64 = crypto.decrypt(new String(fileBytes));
-            byte[] binaryData = Base64.getDecoder().decode(rawBase64);
-            
-            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(binaryData))) {
-                if (!"SEG_V1".equals(in.readUTF())) throw new IOException("Bad Header");
-                int nc = in.readInt();
-                for(int i=0; i<nc; i++) {
-                    Node n = Node.readFrom(in);
-                    nodes.put(n.getId(), n);
-                    if (indexingEnabled) indexNode(n);
-                }
-                int rc = in.readInt();
-                for(int i=0; i<rc; i++) relations.add(Relation.readFrom(in));
-            }
+            if (isLoaded) return true;
+            image = store.load();
+            persistedLsn = image.lsn;
+            if (indexingEnabled) rebuildIndex();
             isLoaded = true;
+            replayDeferred();
         } catch (Exception e) { System.err.println("Load Failed: " + e.getMessage()); }
         finally { rwLock.writeLock().unlock(); }
+        return isLoaded;
+    }
+
+    /**
+     * Takes the read lock with the segment loaded. The segment can be unloaded between
+     * loading it and acquiring the lock, in which case it is loaded again.
+     */
+    private void lockLoadedForRead() {
+        while (true) {
+            boolean loaded = loadIfRequired();
+            rwLock.readLock().lock();
+            if (isLoaded || !loaded) return;
+            rwLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the write lock with the segment loaded, so a mutation can never land in an
+     * image that a concurrent unload has already discarded.
+     */
+    private void lockLoadedForWrite() {
+        rwLock.writeLock().lock();
+        loadIfRequired();
     }
 
     /**
-     * Saves the segment to disk atomically.
-     * Writes to a .tmp file first, then performs an atomic move.
+     * Appends the mutations made since the last save as a new immutable run.
+     * Cost is proportional to the number of changes, not the size of the shard.
+     * <p>
+     * The write lock is held only to swap out the pending list. Serializing, encrypting and
+     * writing the run happen without it, so readers and writers of the shard carry on meanwhile;
+     * their new mutations collect in the fresh list for the next save.
+     * <p>
+     * The run is stamped with the WAL position below which every operation had finished applying
+     * before the swap, so recovery can skip those records for this shard.
+     * @return The number of mutations written: 0 if the segment was clean, -1 if the save failed.
      */
-    public void save() {
+    public int save() {
+        if (!isDirty) return 0;
+        flushLock.lock();
+        try {
+            long covered = lsnFloor.getAsLong() - 1;
+            List<SegmentRun.Record> batch;
+            rwLock.writeLock().lock();
+            try {
+                if (!isDirty) return 0;
+                batch = pending;
+                pending = new ArrayList<>();
+                isDirty = false;
+                flushingFirstLsn = pendingFirstLsn;
+                pendingFirstLsn = Long.MAX_VALUE;
+            } finally { rwLock.writeLock().unlock(); }
+
+            int ops = batch.size();
+            if (covered > 0) batch.add(SegmentRun.Record.persistedLsn(covered));
+            try {
+                store.appendRun(batch);
+                rwLock.writeLock().lock();
+                try {
+                    persistedLsn = Math.max(persistedLsn, covered);
+                    flushingFirstLsn = Long.MAX_VALUE;
+                } finally { rwLock.writeLock().unlock(); }
+                return ops;
+            } catch (Exception e) {
+                System.err.println("Save Failed: " + e.getMessage());
+                rwLock.writeLock().lock();
+                try {
+                    // Put the batch back in front of anything logged since, to be retried.
+                    batch.subList(ops, batch.size()).clear();
+                    batch.addAll(pending);
+                    pending = batch;
+                    isDirty = true;
+                    pendingFirstLsn = Math.min(pendingFirstLsn, flushingFirstLsn);
+                    flushingFirstLsn = Long.MAX_VALUE;
+                } finally { rwLock.writeLock().unlock(); }
+                return -1;
+            }
+        } finally { flushLock.unlock(); }
+    }
+
+    /**
+     * Registers a callback run when the segment goes from clean to dirty, under its write lock.
+     */
+    void setDirtyListener(Consumer<DataSegment> listener) {
+        this.dirtyListener = listener;
+    }
+
+    /**
+     * Supplies the WAL position below which every logged operation has finished applying.
+     */
+    void setLsnFloor(LongSupplier floor) {
+        this.lsnFloor = floor;
+    }
+
+    /**
+     * Runs this shard's part of the operation logged at {@code lsn}, unless the persisted
+     * state already includes it, in which case {@code ifPersisted} is consulted instead.
+     * Mutations made by {@code op} are attributed to that LSN. An LSN of 0 (a record from a
+     * log that predates LSNs) is never skipped.
+     */
+    public <T> T applyLogged(long lsn, Function<DataSegment, T> op, Function<DataSegment, T> ifPersisted) {
+        lockLoadedForWrite();
+        try {
+            if (lsn > 0 && lsn <= persistedLsn) return ifPersisted.apply(this);
+            applyingLsn = lsn;
+            try { return op.apply(this); } finally { applyingLsn = 0; }
+        } finally { rwLock.writeLock().unlock(); }
+    }
+
+    /**
+     * @return The lowest LSN whose effects on this shard are not yet on disk, or {@code Long.MAX_VALUE}.
+     *         Changes made outside {@link #applyLogged} count as LSN 0.
+     */
+    long firstUnpersistedLsn() {
         rwLock.readLock().lock();
-        try { if (!isDirty && isLoaded) return; } finally { rwLock.readLock().unlock(); }
-        
+        try {
+            List<DeferredOp> ops = deferred;
+            long first = ops == null ? Long.MAX_VALUE : ops.get(0).lsn;
+            return Math.min(first, Math.min(pendingFirstLsn, flushingFirstLsn));
+        } finally { rwLock.readLock().unlock(); }
+    }
+
+    /**
+     * Queues a log record for this shard to apply when it is next loaded, instead of now.
+     * Records must be deferred in LSN order, before the segment is used.
+     */
+    void deferReplay(long lsn, Consumer<DataSegment> op) {
         rwLock.writeLock().lock();
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream out = new DataOutputStream(baos);
-            
-            out.writeUTF("SEG_V1");
-            out.writeInt(nodes.size());
-            for(Node n : nodes.values()) n.writeTo(out);
-            out.writeInt(relations.size());
-            for(Relation r : relations) r.writeTo(out);
-            
-            String enc = crypto.encrypt(Base64.getEncoder().encodeToString(baos.toByteArray()));
-            Path targetPath = Paths.get(filePath);
-            Path tempPath = Paths.get(filePath + ".tmp");
-            
-            Files.write(tempPath, enc.getBytes());
-            Files.move(tempPath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-            isDirty = false;
-        } catch(Exception e) { System.err.println("Save Failed: " + e.getMessage()); }
-        finally { rwLock.writeLock().unlock(); }
+            if (deferred == null) deferred = new ArrayList<>();
+            deferred.add(new DeferredOp(lsn, op));
+        } finally { rwLock.writeLock().unlock(); }
+    }
+
+    /**
+     * @return {@code true} if log records are waiting for this segment's next load.
+     */
+    public boolean hasDeferredReplay() {
+        return deferred != null;
+    }
+
+    /** Applies the deferred log records. Called by the loading thread, holding the write lock. */
+    private void replayDeferred() {
+        List<DeferredOp> ops = deferred;
+        if (ops == null) return;
+        deferred = null;
+        for (DeferredOp d : ops) {
+            try {
+                applyLogged(d.lsn, s -> { d.op.accept(s); return null; }, s -> null);
+            } catch (Exception e) { System.err.println("Replay Failed: " + e.getMessage()); }
+        }
+    }
+
+    private static final class DeferredOp {
+        final long lsn;
+        final Consumer<DataSegment> op;
+
+        DeferredOp(long lsn, Consumer<DataSegment> op) {
+            this.lsn = lsn;
+            this.op = op;
+        }
+    }
+
+    /**
+     * Merges the segment's runs into its base file, dropping tombstones.
+     * Runs without the segment lock so readers and writers are not blocked.
+     */
+    public void compact() {
+        try {
+            int merged = store.compact();
+            if (merged > 0) System.out.println(" [COMPACTOR] Shard " + id + ": merged " + merged + " runs.");
+        } catch (Exception e) { System.err.println("Compaction Failed: " + e.getMessage()); }
+    }
+
+    /**
+     * @return {@code true} if the compactor has work to do for this segment.
+     */
+    public boolean needsCompaction(int runThreshold) {
+        return store.needsCompaction(runThreshold);
+    }
+
+    /**
+     * @return The number of runs waiting to be merged into the base file.
+     */
+    public int getRunCount() {
+        return store.runCount();
+    }
+
+    /**
+     * Hands the segment's files, as last saved, to {@code visitor}; see {@link SegmentStore#forEachFile}.
+     */
+    void forEachFile(SegmentStore.FileVisitor visitor) throws IOException {
+        store.forEachFile(visitor);
+    }
+
+    /**
+     * @return The estimated heap used by the loaded data, or 0 if the segment is not loaded.
+     */
+    public long estimatedBytes() {
+        // Unlocked read of a few sizes; the estimate only steers eviction.
+        return isLoaded ? image.estimatedBytes() : 0;
+    }
+
+    public boolean isDirty() {
+        return isDirty;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    private void log(SegmentRun.Record record) {
+        pending.add(record);
+        if (applyingLsn < pendingFirstLsn) pendingFirstLsn = applyingLsn;
+        if (!isDirty) {
+            isDirty = true;
+            dirtyListener.accept(this);
+        }
     }
 
     // --- Indexing Logic ---
@@ -159,69 +356,188 @@ public class DataSegment {
      * Updates indices if enabled.
      */
     public void putNode(Node node) {
-        loadIfRequired();
-        rwLock.writeLock().lock();
+        lockLoadedForWrite();
         try {
+            Node previous = image.putNode(node);
             if (indexingEnabled) {
-                if (nodes.containsKey(node.getId())) removeFromIndex(nodes.get(node.getId()));
+                if (previous != null) removeFromIndex(previous);
                 indexNode(node);
             }
-            nodes.put(node.getId(), node);
-            isDirty = true;
+            log(SegmentRun.Record.putNode(node));
+        } finally { rwLock.writeLock().unlock(); }
+    }
+
+    /**
+     * Sets one property of a stored node, or removes it if {@code value} is {@code null}.
+     * The stored node is replaced by an updated copy, so callers holding the old one never
+     * see it change underneath them.
+     * @return {@code false} if the node does not exist.
+     */
+    public boolean setProperty(String id, String key, Object value) {
+        lockLoadedForWrite();
+        try {
+            Node current = image.nodes.get(id);
+            if (current == null) return false;
+            Node updated = new Node(id, current.getLabel());
+            current.getProperties().forEach(updated::addProperty);
+            if (value == null) updated.removeProperty(key);
+            else updated.addProperty(key, value);
+            putNode(updated);
+            return true;
         } finally { rwLock.writeLock().unlock(); }
     }
 
     public Node getNode(String id) {
-        loadIfRequired();
-        rwLock.readLock().lock();
-        try { return nodes.get(id); } finally { rwLock.readLock().unlock(); }
+        lockLoadedForRead();
+        try { return image.nodes.get(id); } finally { rwLock.readLock().unlock(); }
     }
     
+    /**
+     * Looks up a node without loading the segment. If the segment is resident the in-memory
+     * copy is used; otherwise only the base block holding the node is decrypted. While log
+     * records are still deferred the files are out of date, so the segment is loaded after all.
+     */
+    public Node peekNode(String id) {
+        if (deferred != null) return getNode(id);
+        rwLock.readLock().lock();
+        try {
+            if (isLoaded) return image.nodes.get(id);
+            return store.readNode(id);
+        } catch (Exception e) {
+            System.err.println("Read Failed: " + e.getMessage());
+            return null;
+        } finally { rwLock.readLock().unlock(); }
+    }
+
     public boolean removeNode(String id) {
-        loadIfRequired();
-        rwLock.writeLock().lock();
+        lockLoadedForWrite();
         try {
-            Node n = nodes.remove(id);
-            if (n != null) {
-                if (indexingEnabled) removeFromIndex(n);
-                relations.removeIf(r -> r.getSourceId().equals(id));
-                isDirty = true;
-                return true;
-            }
-            return false;
+            int edges = image.relationCount();
+            Node n = image.removeNode(id);
+            // Dangling outgoing edges are dropped too, so the removal must be logged either way.
+            if (n != null || image.relationCount() != edges) log(SegmentRun.Record.removeNode(id));
+            if (n != null && indexingEnabled) removeFromIndex(n);
+            return n != null;
         } finally { rwLock.writeLock().unlock(); }
     }
 
     public void addRelation(Relation r) {
-        loadIfRequired();
-        rwLock.writeLock().lock();
-        try { relations.add(r); isDirty = true; } finally { rwLock.writeLock().unlock(); }
+        lockLoadedForWrite();
+        try { image.addRelation(r); log(SegmentRun.Record.addRelation(r)); } finally { rwLock.writeLock().unlock(); }
     }
 
     public boolean removeRelation(String sourceId, String targetId, String type) {
-        loadIfRequired();
-        rwLock.writeLock().lock();
+        lockLoadedForWrite();
         try {
-            boolean removed = relations.removeIf(r -> 
-                r.getSourceId().equals(sourceId) && 
-                r.getTargetId().equals(targetId) && 
-                r.getType().equalsIgnoreCase(type)
-            );
-            if (removed) isDirty = true;
+            boolean removed = image.removeRelation(sourceId, targetId, type);
+            if (removed) log(SegmentRun.Record.removeRelation(sourceId, targetId, type));
             return removed;
         } finally { rwLock.writeLock().unlock(); }
     }
 
+    /**
+     * Removes the edges to {@code targetId} owned by the given sources, scanning only their adjacency lists.
+     */
+    public void removeRelationsTo(String targetId, Collection<String> sourceIds) {
+        lockLoadedForWrite();
+        try {
+            for (String sourceId : sourceIds)
+                if (image.removeRelationsBetween(sourceId, targetId))
+                    log(SegmentRun.Record.removeRelationsBetween(sourceId, targetId));
+        } finally { rwLock.writeLock().unlock(); }
+    }
+
+    public boolean hasRelation(String sourceId, String targetId) {
+        lockLoadedForRead();
+        try { return image.hasRelation(sourceId, targetId); } finally { rwLock.readLock().unlock(); }
+    }
+
+    // --- Incoming Index ---
+
+    /**
+     * Records that {@code sourceId} has an edge to {@code targetId}, a node owned by this segment.
+     */
+    public void addIncoming(String targetId, String sourceId) {
+        lockLoadedForWrite();
+        try {
+            if (image.addIncoming(targetId, sourceId)) log(SegmentRun.Record.addIncoming(targetId, sourceId));
+        } finally { rwLock.writeLock().unlock(); }
+    }
+
+    public void removeIncoming(String targetId, String sourceId) {
+        lockLoadedForWrite();
+        try {
+            if (image.removeIncoming(targetId, sourceId)) log(SegmentRun.Record.removeIncoming(targetId, sourceId));
+        } finally { rwLock.writeLock().unlock(); }
+    }
+
+    /**
+     * @return A copy of the whole incoming index, keyed by target id.
+     */
+    public Map<String, Set<String>> getIncomingIndex() {
+        lockLoadedForRead();
+        try {
+            Map<String, Set<String>> copy = new HashMap<>();
+            image.incoming.forEach((t, sources) -> copy.put(t, new HashSet<>(sources)));
+            return copy;
+        } finally { rwLock.readLock().unlock(); }
+    }
+
+    /**
+     * @return The ids of the nodes with edges pointing at {@code targetId}.
+     */
+    public Set<String> getIncoming(String targetId) {
+        lockLoadedForRead();
+        try { return new HashSet<>(image.incomingTo(targetId)); } finally { rwLock.readLock().unlock(); }
+    }
+
     // --- Helpers ---
 
     public void unload() {
+        unload(() -> true);
+    }
+
+    /**
+     * Saves and unloads the segment if {@code evicted}, asked while the segment's locks are held,
+     * still agrees. A reader that wants the segment after that waits for the locks and loads it again.
+     */
+    void unload(BooleanSupplier evicted) {
+        flushLock.lock();
         rwLock.writeLock().lock();
         try {
-            if (!isLoaded) return;
+            if (!isLoaded || !evicted.getAsBoolean()) return;
             save();
-            nodes.clear(); relations.clear(); invertedIndex.clear();
+            if (isDirty) return; // Save failed; keep the data in memory.
+            image.clear(); invertedIndex.clear();
             isLoaded = false;
-        } finally { rwLock.writeLock().unlock(); }
+        } finally {
+            rwLock.writeLock().unlock();
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Unloads the segment only if that needs no write and no wait for one: it is clean and no
+     * save is in progress. {@code evicted} is asked as in {@link #unload(BooleanSupplier)}.
+     * @return {@code false} if it was left loaded, for {@link #unload(BooleanSupplier)} to deal with.
+     */
+    boolean tryUnloadClean(BooleanSupplier evicted) {
+        if (!flushLock.tryLock()) return false;
+        try {
+            rwLock.writeLock().lock();
+            try {
+                if (!isLoaded || !evicted.getAsBoolean()) return true;
+                if (isDirty) return false;
+                image.clear(); invertedIndex.clear();
+                isLoaded = false;
+                return true;
+            } finally { rwLock.writeLock().unlock(); }
+        } finally { flushLock.unlock(); }
+    }
+
+    /** The lock a save holds for its whole write; lets tests keep a save in flight. */
+    ReentrantLock saveLock() {
+        return flushLock;
     }
 
     public void setIndexing(boolean enabled) {
@@ -230,47 +546,42 @@ public class DataSegment {
         finally { rwLock.writeLock().unlock(); }
     }
 
-    private void rebuildIndex() { invertedIndex.clear(); for (Node n : nodes.values()) indexNode(n); }
+    private void rebuildIndex() { invertedIndex.clear(); for (Node n : image.nodes.values()) indexNode(n); }
 
     public List<Node> search(String query) {
-        loadIfRequired();
-        rwLock.readLock().lock();
+        lockLoadedForRead();
         try {
             if (indexingEnabled) {
                 Set<String> ids = invertedIndex.getOrDefault(query.toLowerCase(), Collections.emptySet());
-                return ids.stream().map(nodes::get).filter(Objects::nonNull).collect(Collectors.toList());
+                return ids.stream().map(image.nodes::get).filter(Objects::nonNull).collect(Collectors.toList());
             } else {
                 String q = query.toLowerCase();
-                return nodes.values().stream().filter(n -> n.toString().toLowerCase().contains(q)).collect(Collectors.toList());
+                return image.nodes.values().stream().filter(n -> n.toString().toLowerCase().contains(q)).collect(Collectors.toList());
             }
         } finally { rwLock.readLock().unlock(); }
     }
 
     public void removeRelationsTo(String tId) { 
-        loadIfRequired(); 
-        rwLock.writeLock().lock(); 
-        try { if(relations.removeIf(r -> r.getTargetId().equals(tId))) isDirty = true; } 
+        lockLoadedForWrite();
+        try { if (image.removeRelationsTo(tId)) log(SegmentRun.Record.removeRelationsTo(tId)); } 
         finally { rwLock.writeLock().unlock(); } 
     }
 
     public List<Relation> getRelationsFrom(String sId) { 
-        loadIfRequired(); 
-        rwLock.readLock().lock(); 
-        try { return relations.stream().filter(r -> r.getSourceId().equals(sId)).collect(Collectors.toList()); } 
+        lockLoadedForRead();
+        try { return new ArrayList<>(image.relationsFrom(sId)); } 
         finally { rwLock.readLock().unlock(); } 
     }
 
     public Collection<Node> getNodes() { 
-        loadIfRequired(); 
-        rwLock.readLock().lock(); 
-        try { return new ArrayList<>(nodes.values()); } 
+        lockLoadedForRead();
+        try { return new ArrayList<>(image.nodes.values()); } 
         finally { rwLock.readLock().unlock(); } 
     }
 
     public List<Relation> getAllRelations() { 
-        loadIfRequired(); 
-        rwLock.readLock().lock(); 
-        try { return new ArrayList<>(relations); } 
+        lockLoadedForRead();
+        try { return image.allRelations(); } 
         finally { rwLock.readLock().unlock(); } 
     }
 }
\ No newline at end of file
@@ -3,209 +3,868 @@ package com.atlasdblite.engine;
 import com.atlasdblite.models.Node;
 import com.atlasdblite.models.Relation;
 import com.atlasdblite.security.CryptoManager;
-import com.google.gson.Gson;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class GraphEngine {
-    private static final int BUCKET_COUNT = 16;
-    private static final int MAX_ACTIVE_SEGMENTS = 8;
+    public static final int DEFAULT_SHARD_COUNT = Manifest.LEGACY_SHARD_COUNT;
+    private static final int COMPACTION_THRESHOLD = 4;
+    private static final int CHECKPOINT_THREADS = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final int RECOVERY_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final String INCOMING_INDEX_MARKER = "incoming.idx";
 
-    private final DataSegment[] segments;
     private final String dbDirectory;
     private final CryptoManager crypto;
     private final TransactionManager wal;
-    private final Gson gson;
-    private final ConcurrentLinkedDeque<Integer> lruQueue = new ConcurrentLinkedDeque<>();
+    private final ExecutorService compactor = daemonExecutor("atlas-compactor");
+    private final SegmentCache cache = new SegmentCache(Runtime.getRuntime().maxMemory() / 4, this::scheduleCompaction);
+    private final ExecutorService resharder = daemonExecutor("atlas-resharder");
+    private final ExecutorService flusher = daemonPool("atlas-checkpoint", CHECKPOINT_THREADS);
+    /** Segments with mutations not yet written to a run. Filled by each segment's dirty listener. */
+    private final Set<DataSegment> dirty = ConcurrentHashMap.newKeySet();
+    /**
+     * For each thread between logging an operation and finishing applying it, a lower bound on
+     * that operation's LSN. Together with the replay position this gives {@link #commitFloor()}.
+     */
+    private final Map<Thread, Long> committing = new ConcurrentHashMap<>();
+    private volatile long replayFloor = Long.MAX_VALUE;
+    /** The oldest LSN a running backup needs; the WAL keeps it until the backup has linked it. */
+    private volatile long backupFloor = Long.MAX_VALUE;
+
+    /** Current shard layout, plus the layout being migrated to while a reshard runs. */
+    private volatile Routing routing;
+    private volatile boolean readOnly;
+    private Future<?> reshardTask = CompletableFuture.completedFuture(null);
+    private boolean closed = false;
 
     private boolean autoIndexing = false;
 
     // Cache for Analytics
-    private Map<String, Double> pageRankScores = new HashMap<>();
+    private volatile Map<String, Double> pageRankScores = new HashMap<>();
+    private volatile Topology topology;
+    /** Bumped whenever a node or relation is added or removed, which makes {@link #topology} stale. */
+    private final AtomicLong topologyVersion = new AtomicLong();
+    private final Object topologyLock = new Object();
+    /** Keeps {@link #getPageRankScores()} current in incremental mode; {@code null} otherwise. */
+    private final AtomicReference<IncrementalPageRank> incrementalPageRank = new AtomicReference<>();
 
     public GraphEngine(String dbDirectory) {
+        this(dbDirectory, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * @param dbDirectory The database directory.
+     * @param shardCount The number of shards to create a new database with.
+     *                   Ignored when the directory already holds a database.
+     */
+    public GraphEngine(String dbDirectory, int shardCount) {
+        if (shardCount < 1) throw new IllegalArgumentException("Shard count must be positive");
         this.dbDirectory = dbDirectory;
         this.crypto = new CryptoManager();
-        this.gson = new Gson();
-        this.wal = new TransactionManager(crypto);
-        this.segments = new DataSegment[BUCKET_COUNT];
 
-        initialize();
+        initialize(shardCount);
+        this.wal = new TransactionManager(dbDirectory, crypto);
         recover();
+        String errorBound = System.getProperty("atlas.pagerank.incremental");
+        if (errorBound != null) startIncrementalPageRank(Double.parseDouble(errorBound));
     }
 
-    private void initialize() {
+    private void initialize(int shardCount) {
         File dir = new File(dbDirectory);
         if (!dir.exists())
             dir.mkdirs();
-        for (int i = 0; i < BUCKET_COUNT; i++) {
-            segments[i] = new DataSegment(i, dbDirectory, crypto);
+        Manifest manifest = loadManifest(shardCount);
+        deleteShardFiles(name -> !Manifest.ownsFile(manifest.generation, name));
+        this.routing = new Routing(new ShardLayout(manifest.generation, manifest.shardCount), null);
+        ensureIncomingIndex();
+    }
+
+    /**
+     * Reads the manifest, creating one for a new database. Databases that predate the
+     * manifest are recorded with the 16 shards they were written with.
+     */
+    private Manifest loadManifest(int shardCount) {
+        try {
+            Manifest manifest = Manifest.read(dbDirectory);
+            if (manifest != null) return manifest;
+            File[] parts = new File(dbDirectory).listFiles((d, name) -> name.startsWith("part_"));
+            boolean existing = parts != null && parts.length > 0;
+            manifest = new Manifest(existing ? Manifest.LEGACY_SHARD_COUNT : shardCount, 0);
+            manifest.write(dbDirectory);
+            return manifest;
+        } catch (IOException e) {
+            throw new RuntimeException("CRITICAL: Could not read manifest. " + e.getMessage());
         }
     }
 
-    // --- NEW: PageRank Algorithm ---
+    private void deleteShardFiles(Predicate<String> filter) {
+        File[] files = new File(dbDirectory).listFiles((d, name) -> name.startsWith("part_") && filter.test(name));
+        if (files != null)
+            for (File f : files)
+                f.delete();
+    }
+
+    private static ExecutorService daemonExecutor(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static ExecutorService daemonPool(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Databases written before the incoming-edge index existed get it built once, from a
+     * full pass over the relations. The marker file records that the index is complete.
+     */
+    private void ensureIncomingIndex() {
+        File marker = new File(dbDirectory, INCOMING_INDEX_MARKER);
+        if (marker.exists()) return;
+        File[] parts = new File(dbDirectory).listFiles((d, name) -> name.startsWith("part_"));
+        if (parts != null && parts.length > 0) {
+            System.out.println(" [ENGINE] Building incoming-edge index...");
+            ShardLayout layout = routing.current;
+            for (DataSegment segment : layout.segments)
+                scanSegment(segment, seg -> {
+                    for (Relation r : seg.getAllRelations())
+                        onShard(r.getTargetId(), s -> s.addIncoming(r.getTargetId(), r.getSourceId()));
+                });
+            for (DataSegment s : layout.segments) s.save();
+        }
+        try {
+            marker.createNewFile();
+        } catch (Exception e) {
+            System.err.println("Index Marker Failed: " + e.getMessage());
+        }
+    }
 
+    // --- PageRank ---
+
+    /**
+     * Runs PageRank to convergence (L1 change below 1e-6) or for at most {@code iterations}
+     * iterations; see {@link #calculatePageRank(PageRank)}.
+     * @return The scores, scaled so the highest is 10.
+     */
     public Map<String, Double> calculatePageRank(int iterations, double dampingFactor) {
-        System.out.println(" [ANALYTICS] Loading topology for PageRank...");
+        calculatePageRank(new PageRank().setMaxIterations(iterations).setDampingFactor(dampingFactor));
+        return pageRankScores;
+    }
 
-        // 1. Build lightweight adjacency map (ID -> List<TargetID>)
-        // We load all data to build this map.
-        Collection<Node> allNodes = getAllNodes();
-        List<Relation> allEdges = getAllRelations();
+    /**
+     * Runs PageRank over the {@link #getTopology() topology} on every core, and caches the
+     * scores for {@link #getPageRankScores()}.
+     */
+    public PageRank.Result calculatePageRank(PageRank pageRank) {
+        return calculatePageRank(pageRank, getTopology());
+    }
 
-        Map<String, List<String>> incomingLinks = new HashMap<>(); // Who points to me?
-        Map<String, Integer> outDegree = new HashMap<>(); // How many do I point to?
+    private PageRank.Result calculatePageRank(PageRank pageRank, Topology graph) {
+        long start = System.nanoTime();
+        PageRank.Result result = pageRank.run(graph, ForkJoinPool.commonPool());
+        System.out.printf(" [ANALYTICS] PageRank: %d nodes, %d edges, %d iterations (residual %.2e%s) in %.1f ms.%n",
+                graph.size(), graph.edgeCount(), result.getIterations(), result.getResidual(),
+                result.isConverged() ? ", converged" : "", (System.nanoTime() - start) / 1e6);
+        this.pageRankScores = result.getScores(); // Cache it
+        return result;
+    }
 
-        for (Node n : allNodes) {
-            incomingLinks.put(n.getId(), new ArrayList<>());
-            outDegree.put(n.getId(), 0);
+    /**
+     * @return The scores of the last PageRank run or, in incremental mode, the current ones.
+     */
+    public Map<String, Double> getPageRankScores() {
+        IncrementalPageRank model = incrementalPageRank.get();
+        if (model == null) return pageRankScores;
+        synchronized (model) {
+            return model.getScores();
         }
+    }
 
-        for (Relation r : allEdges) {
-            // Only count if both nodes exist (Data integrity check)
-            if (incomingLinks.containsKey(r.getTargetId()) && incomingLinks.containsKey(r.getSourceId())) {
-                incomingLinks.get(r.getTargetId()).add(r.getSourceId());
-                outDegree.put(r.getSourceId(), outDegree.get(r.getSourceId()) + 1);
-            }
+    /**
+     * Keeps the PageRank scores current from now on: they are computed once and then updated
+     * locally after each change to the graph's nodes or relations instead of being recomputed.
+     * See {@link IncrementalPageRank}.
+     * @param errorBound The L1 distance allowed between the kept and the exact normalized ranks.
+     * @return {@code false} if incremental mode was already on.
+     */
+    public boolean startIncrementalPageRank(double errorBound) {
+        return loadIncrementalPageRank(null, errorBound);
+    }
+
+    /**
+     * Installs a new model in place of {@code previous} and seeds it with a full PageRank run,
+     * whose damping factor the model then keeps.
+     * @return {@code false} if another model was installed in the meantime.
+     */
+    private boolean loadIncrementalPageRank(IncrementalPageRank previous, double errorBound) {
+        PageRank pageRank = new PageRank();
+        IncrementalPageRank model = new IncrementalPageRank(pageRank.getDampingFactor(), errorBound);
+        synchronized (model) {
+            // Published before the topology is read so no change is missed; a change seen twice is synced twice, which is harmless.
+            if (!incrementalPageRank.compareAndSet(previous, model)) return false;
+            Topology graph = getTopology();
+            model.load(graph, calculatePageRank(pageRank, graph));
         }
+        return true;
+    }
 
-        // 2. Initialize Ranks
-        Map<String, Double> ranks = new HashMap<>();
-        double initialRank = 1.0 / allNodes.size();
-        for (Node n : allNodes)
-            ranks.put(n.getId(), initialRank);
+    public void stopIncrementalPageRank() {
+        incrementalPageRank.set(null);
+    }
 
-        // 3. Iterate
-        System.out.println(" [ANALYTICS] Running " + iterations + " iterations...");
-        for (int i = 0; i < iterations; i++) {
-            Map<String, Double> newRanks = new HashMap<>();
+    public boolean isIncrementalPageRank() {
+        return incrementalPageRank.get() != null;
+    }
 
-            for (String nodeId : ranks.keySet()) {
-                double rankSum = 0.0;
-                // Sum(PR(neighbor) / OutDegree(neighbor))
-                for (String neighbor : incomingLinks.get(nodeId)) {
-                    if (outDegree.get(neighbor) > 0) {
-                        rankSum += ranks.get(neighbor) / outDegree.get(neighbor);
-                    }
-                }
+    /** Brings the incremental PageRank model in line with the nodes and relations an applied entry touched. */
+    private void trackPageRank(TransactionManager.WalEntry entry) {
+        IncrementalPageRank model = incrementalPageRank.get();
+        if (model == null || !changesTopology(entry)) return;
+        synchronized (model) {
+            // Read under the model's lock: whichever change syncs last sees every earlier one applied.
+            syncPageRank(model, entry);
+            model.settle();
+        }
+    }
 
-                // PageRank Formula
-                double pr = (1 - dampingFactor) + (dampingFactor * rankSum);
-                newRanks.put(nodeId, pr);
-            }
-            ranks = newRanks;
+    private void syncPageRank(IncrementalPageRank model, TransactionManager.WalEntry entry) {
+        switch (entry.op) {
+            case TransactionManager.WalEntry.ADD_NODE:
+                model.syncNode(entry.node.getId(), peekNode(entry.node.getId()) != null);
+                break;
+            case TransactionManager.WalEntry.DELETE_NODE:
+                model.syncNode(entry.id, peekNode(entry.id) != null);
+                break;
+            case TransactionManager.WalEntry.ADD_LINK:
+            case TransactionManager.WalEntry.DELETE_LINK:
+                Relation r = entry.relation;
+                boolean present = withShard(r.getSourceId(), s -> s.getRelationsFrom(r.getSourceId()).stream()
+                        .anyMatch(e -> e.getTargetId().equals(r.getTargetId()) && e.getType().equalsIgnoreCase(r.getType())));
+                model.syncEdge(r.getSourceId(), r.getTargetId(), r.getType(), present);
+                break;
+            case TransactionManager.WalEntry.BATCH:
+                for (TransactionManager.WalEntry op : entry.ops) syncPageRank(model, op);
+                break;
         }
+    }
 
-        System.out.print("atlas> ");
+    // --- Topology ---
 
-        // 4. Normalize scores (0.0 to 10.0 for easier reading)
-        double maxScore = Collections.max(ranks.values());
-        for (Map.Entry<String, Double> entry : ranks.entrySet()) {
-            entry.setValue((entry.getValue() / maxScore) * 10.0);
+    /**
+     * @return A CSR snapshot of the graph's structure for the graph algorithms. It is built on
+     *         first use and reused until a node or relation is added or removed.
+     */
+    public Topology getTopology() {
+        Topology t = topology;
+        if (t != null && t.version == topologyVersion.get()) return t;
+        synchronized (topologyLock) {
+            long version = topologyVersion.get();
+            t = topology;
+            if (t != null && t.version == version) return t;
+            // Built from the version read first, so a change made while scanning forces a rebuild.
+            Topology.Builder builder = new Topology.Builder();
+            forEachShard(s -> {
+                for (Node n : s.getNodes()) builder.addNode(n.getId());
+            });
+            forEachShard(s -> {
+                for (Relation r : s.getAllRelations()) builder.addEdge(r.getSourceId(), r.getTargetId(), r.getType());
+            });
+            t = builder.build(version);
+            topology = t;
+            return t;
         }
+    }
 
-        this.pageRankScores = ranks; // Cache it
-        return ranks;
+    /** @return {@code true} if applying {@code entry} can add or remove a node or an edge. */
+    private static boolean changesTopology(TransactionManager.WalEntry entry) {
+        switch (entry.op) {
+            case TransactionManager.WalEntry.UPDATE_NODE:
+            case TransactionManager.WalEntry.SET_PROPERTY:
+            case TransactionManager.WalEntry.REMOVE_PROPERTY:
+                return false;
+            default:
+                return true;
+        }
     }
 
-    public Map<String, Double> getPageRankScores() {
-        return pageRankScores;
+    /**
+     * Weights of the topology's edges from relation property {@code key}, computed once per
+     * snapshot. A missing or non-numeric weight counts as 1.
+     */
+    private double[] edgeWeights(Topology t, String key) {
+        double[] w = t.weights(key);
+        if (w != null) return w;
+        double[] weights = new double[t.edgeCount()];
+        Arrays.fill(weights, 1.0);
+        forEachShard(s -> {
+            for (Relation r : s.getAllRelations()) {
+                int e = t.edgeIndex(r.getSourceId(), r.getTargetId(), r.getType());
+                if (e >= 0) weights[e] = weightOf(r.getProperties().get(key));
+            }
+        });
+        t.putWeights(key, weights);
+        return t.weights(key);
     }
 
-    // ... (Keep ALL existing methods: CRUD, WAL, Pathfinding, etc.) ...
+    private static double weightOf(Object value) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException ignored) {}
+        }
+        return 1.0;
+    }
 
     // RECOVERY
+    /**
+     * Streams the log and replays it shard by shard. Records are decoded in parallel, split into
+     * their per-shard effects and queued on the shards they touch, in LSN order. Each shard's
+     * queue is applied by one worker at a time straight to the segment, bypassing the cache, so
+     * a shard stays loaded until the replay ends instead of being evicted and reloaded between
+     * records. Each shard skips the records it has already persisted.
+     * <p>
+     * The only effect that depends on another shard, dropping an incoming-index entry once the
+     * last edge between two nodes is deleted, is settled after all queues are done. Entries of
+     * legacy logs carry no edge lists and are replayed one at a time before the rest.
+     * <p>
+     * With {@code -Datlas.recovery=lazy} the effects are handed to their segments instead, to be
+     * applied when each shard is first loaded, so opening the database does not wait for the
+     * replay or page in cold shards. Until then those shards keep their WAL files from being
+     * deleted, and the incoming-index entries of deleted links are left in place (the index only
+     * has to be a superset of the real edges).
+     */
     private void recover() {
-        List<TransactionManager.WalEntry> logs = wal.readLog();
-        if (logs.isEmpty())
+        if ("lazy".equalsIgnoreCase(System.getProperty("atlas.recovery", "eager"))) {
+            deferRecovery();
+            return;
+        }
+        long start = System.nanoTime();
+        ShardLayout layout = routing.current;
+        ExecutorService workers = daemonPool("atlas-recovery", RECOVERY_THREADS);
+        ShardReplay[] queues = new ShardReplay[layout.segments.length];
+        for (int i = 0; i < queues.length; i++) queues[i] = new ShardReplay(layout.segments[i], workers);
+        List<TransactionManager.WalEntry> deletedLinks = new ArrayList<>();
+        long[] ops = { 0 };
+        // Shards saved mid-replay must not claim records that have not been applied yet.
+        replayFloor = 0;
+        try {
+            wal.readLog(workers, entry -> {
+                if (ops[0]++ == 0) System.out.println(" [RECOVERY] Replaying WAL...");
+                if (entry.lsn == 0) applyOpToMemory(entry);
+                else partition(entry, entry.lsn, (id, lsn, op) -> queues[layout.shardOf(id)].add(lsn, op), deletedLinks);
+            });
+            for (ShardReplay queue : queues) queue.await();
+            for (TransactionManager.WalEntry entry : deletedLinks) {
+                Relation d = entry.relation;
+                if (layout.segmentFor(d.getSourceId()).hasRelation(d.getSourceId(), d.getTargetId())) continue;
+                ShardReplay target = queues[layout.shardOf(d.getTargetId())];
+                target.used = true;
+                replay(target.segment, entry.lsn, s -> s.removeIncoming(d.getTargetId(), d.getSourceId()));
+            }
+        } finally {
+            replayFloor = Long.MAX_VALUE;
+            workers.shutdown();
+        }
+        if (ops[0] == 0)
             return;
-        System.out.println(" [RECOVERY] Replaying " + logs.size() + " ops...");
-        for (TransactionManager.WalEntry entry : logs)
-            applyOpToMemory(entry.operation, entry.payload);
-        System.out.println(" [RECOVERY] Done.");
+        // Hand the replayed shards to the cache, which evicts down to its budget as usual.
+        for (ShardReplay queue : queues)
+            if (queue.used) scanSegment(queue.segment, s -> {});
+        System.out.printf(" [RECOVERY] Done: %d ops in %.1f ms.%n", ops[0], (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Lazy recovery: decodes the log and leaves each shard's effects with its segment, to be
+     * applied by the segment's next load. Legacy entries are still replayed right away.
+     */
+    private void deferRecovery() {
+        long start = System.nanoTime();
+        ShardLayout layout = routing.current;
+        ExecutorService decoders = daemonPool("atlas-recovery", RECOVERY_THREADS);
+        long[] ops = { 0 };
+        replayFloor = 0;
+        try {
+            wal.readLog(decoders, entry -> {
+                ops[0]++;
+                if (entry.lsn == 0) applyOpToMemory(entry);
+                else partition(entry, entry.lsn, (id, lsn, op) -> layout.segmentFor(id).deferReplay(lsn, op), null);
+            });
+        } finally {
+            replayFloor = Long.MAX_VALUE;
+            decoders.shutdown();
+        }
+        if (ops[0] > 0)
+            System.out.printf(" [RECOVERY] Deferred %d ops to %d shards in %.1f ms.%n",
+                    ops[0], countDeferredShards(), (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * @return The number of shards whose share of the log has not been replayed yet.
+     */
+    int countDeferredShards() {
+        int count = 0;
+        for (DataSegment segment : routing.current.segments)
+            if (segment.hasDeferredReplay()) count++;
+        return count;
+    }
+
+    /** Receives the per-shard effects of logged operations, keyed by the id whose shard they fall on. */
+    @FunctionalInterface
+    private interface EffectSink {
+        void add(String id, long lsn, Consumer<DataSegment> op);
+    }
+
+    /**
+     * Splits one logged operation into its per-shard effects. A batch is split into the
+     * effects of its operations, in order, all at the batch's LSN.
+     * @param deletedLinks Collects deleted links for the incoming-index fix-up, or {@code null} to skip it.
+     */
+    private static void partition(TransactionManager.WalEntry entry, long lsn, EffectSink sink,
+                                  List<TransactionManager.WalEntry> deletedLinks) {
+        switch (entry.op) {
+            case TransactionManager.WalEntry.ADD_NODE:
+            case TransactionManager.WalEntry.UPDATE_NODE:
+                Node n = entry.node;
+                sink.add(n.getId(), lsn, s -> s.putNode(n));
+                break;
+            case TransactionManager.WalEntry.SET_PROPERTY:
+            case TransactionManager.WalEntry.REMOVE_PROPERTY:
+                TransactionManager.WalEntry p = entry;
+                sink.add(p.id, lsn, s -> s.setProperty(p.id, p.key, p.value));
+                break;
+            case TransactionManager.WalEntry.DELETE_NODE:
+                String id = entry.id;
+                sink.add(id, lsn, s -> s.removeNode(id));
+                for (String src : entry.sources)
+                    if (!src.equals(id))
+                        sink.add(src, lsn, s -> s.removeRelationsTo(id, Collections.singleton(src)));
+                for (String target : entry.targets)
+                    if (!target.equals(id))
+                        sink.add(target, lsn, s -> s.removeIncoming(target, id));
+                break;
+            case TransactionManager.WalEntry.ADD_LINK:
+                Relation r = entry.relation;
+                sink.add(r.getSourceId(), lsn, s -> s.addRelation(r));
+                sink.add(r.getTargetId(), lsn, s -> s.addIncoming(r.getTargetId(), r.getSourceId()));
+                break;
+            case TransactionManager.WalEntry.DELETE_LINK:
+                Relation d = entry.relation;
+                sink.add(d.getSourceId(), lsn, s -> s.removeRelation(d.getSourceId(), d.getTargetId(), d.getType()));
+                if (deletedLinks != null) deletedLinks.add(entry);
+                break;
+            case TransactionManager.WalEntry.BATCH:
+                for (TransactionManager.WalEntry op : entry.ops) partition(op, lsn, sink, deletedLinks);
+                break;
+        }
+    }
+
+    private static void replay(DataSegment segment, long lsn, Consumer<DataSegment> op) {
+        try {
+            segment.applyLogged(lsn, s -> { op.accept(s); return null; }, s -> null);
+        } catch (Exception e) {
+            System.err.println("Replay Failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * One shard's share of the log. Effects run in the order they were added, one at a time,
+     * on whichever recovery worker is free. The number of queued effects is capped so a large
+     * log is streamed rather than held in memory.
+     */
+    private static final class ShardReplay implements Runnable {
+        private static final int MAX_QUEUED = 16 * 1024;
+
+        final DataSegment segment;
+        boolean used;
+        private final Executor workers;
+        private final Queue<Runnable> effects = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Semaphore capacity = new Semaphore(MAX_QUEUED);
+
+        ShardReplay(DataSegment segment, Executor workers) {
+            this.segment = segment;
+            this.workers = workers;
+        }
+
+        void add(long lsn, Consumer<DataSegment> op) {
+            used = true;
+            capacity.acquireUninterruptibly();
+            effects.add(() -> replay(segment, lsn, op));
+            if (scheduled.compareAndSet(false, true)) workers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            do {
+                Runnable effect;
+                while ((effect = effects.poll()) != null) {
+                    effect.run();
+                    capacity.release();
+                }
+                scheduled.set(false);
+                // An effect added after the last poll but before the reset would otherwise be stranded.
+            } while (!effects.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        /** Blocks until every effect added so far has run. */
+        void await() {
+            capacity.acquireUninterruptibly(MAX_QUEUED);
+            capacity.release(MAX_QUEUED);
+        }
     }
 
-    private void applyOpToMemory(String op, String json) {
+    private void applyOpToMemory(TransactionManager.WalEntry entry) {
+        applyOpToMemory(entry, entry.lsn);
+    }
+
+    private void applyOpToMemory(TransactionManager.WalEntry entry, long lsn) {
         try {
-            switch (op) {
-                case "ADD_NODE":
-                case "UPDATE_NODE":
-                    Node n = gson.fromJson(json, Node.class);
-                    getSegment(n.getId()).putNode(n);
+            switch (entry.op) {
+                case TransactionManager.WalEntry.ADD_NODE:
+                case TransactionManager.WalEntry.UPDATE_NODE:
+                    putNode(entry.node, lsn);
+                    break;
+                case TransactionManager.WalEntry.SET_PROPERTY:
+                case TransactionManager.WalEntry.REMOVE_PROPERTY:
+                    setProperty(entry.id, entry.key, entry.value, lsn);
                     break;
-                case "DELETE_NODE":
-                    String id = json;
-                    if (getSegment(id).removeNode(id))
-                        for (DataSegment s : segments)
-                            if (s != null)
-                                s.removeRelationsTo(id);
+                case TransactionManager.WalEntry.DELETE_NODE:
+                    unlinkNode(entry.id, lsn, entry.sources, entry.targets);
                     break;
-                case "ADD_LINK":
-                    Relation r = gson.fromJson(json, Relation.class);
-                    getSegment(r.getSourceId()).addRelation(r);
+                case TransactionManager.WalEntry.ADD_LINK:
+                    link(entry.relation, lsn);
                     break;
-                case "DELETE_LINK":
-                    Relation d = gson.fromJson(json, Relation.class);
-                    getSegment(d.getSourceId()).removeRelation(d.getSourceId(), d.getTargetId(), d.getType());
+                case TransactionManager.WalEntry.DELETE_LINK:
+                    Relation d = entry.relation;
+                    unlink(d.getSourceId(), d.getTargetId(), d.getType(), lsn);
+                    break;
+                case TransactionManager.WalEntry.BATCH:
+                    applyBatch(entry, lsn);
                     break;
             }
         } catch (Exception e) {
+            System.err.println("Replay Failed: " + e.getMessage());
         }
     }
 
+    /**
+     * Applies the part of the operation logged at {@code lsn} that falls on the shard owning
+     * {@code id}. If that shard has persisted the operation already, {@code ifPersisted} runs instead.
+     */
+    private <T> T effect(String id, long lsn, Function<DataSegment, T> op, Function<DataSegment, T> ifPersisted) {
+        return withShard(id, s -> s.applyLogged(lsn, op, ifPersisted));
+    }
+
+    private void effect(String id, long lsn, Consumer<DataSegment> op) {
+        effect(id, lsn, s -> { op.accept(s); return null; }, s -> null);
+    }
+
+    private void putNode(Node n, long lsn) {
+        effect(n.getId(), lsn, s -> s.putNode(n));
+    }
+
+    private boolean setProperty(String id, String key, Object value, long lsn) {
+        return effect(id, lsn, s -> s.setProperty(id, key, value), s -> true);
+    }
+
+    /**
+     * Stores a relation in its source's shard and registers it in the target's incoming index.
+     */
+    private void link(Relation r, long lsn) {
+        effect(r.getSourceId(), lsn, s -> s.addRelation(r));
+        effect(r.getTargetId(), lsn, s -> s.addIncoming(r.getTargetId(), r.getSourceId()));
+    }
+
+    private boolean unlink(String f, String t, String type, long lsn) {
+        // null if nothing was removed, otherwise whether another f -> t edge remains.
+        Boolean stillLinked = effect(f, lsn, s -> s.removeRelation(f, t, type) ? s.hasRelation(f, t) : null,
+                s -> s.hasRelation(f, t));
+        if (stillLinked == null) return false;
+        if (!stillLinked) effect(t, lsn, s -> s.removeIncoming(t, f));
+        return true;
+    }
+
+    /**
+     * Removes a node together with every edge that touches it. The incoming index names
+     * the nodes pointing at it, so only their shards are visited instead of all of them.
+     * The logged {@code sources} and {@code targets} are visited as well, which is all replay
+     * has to go on once the node's own shard has persisted the delete.
+     */
+    private boolean unlinkNode(String id, long lsn, Collection<String> loggedSources, Collection<String> loggedTargets) {
+        Set<String> sources = new HashSet<>(loggedSources);
+        Set<String> targets = new HashSet<>(loggedTargets);
+        boolean removed = effect(id, lsn, home -> {
+            sources.addAll(home.getIncoming(id));
+            for (Relation r : home.getRelationsFrom(id)) targets.add(r.getTargetId());
+            return home.removeNode(id);
+        }, home -> true);
+        if (!removed) return false;
+
+        for (String src : sources)
+            if (!src.equals(id))
+                effect(src, lsn, s -> s.removeRelationsTo(id, Collections.singleton(src)));
+        for (String target : targets)
+            if (!target.equals(id))
+                effect(target, lsn, s -> s.removeIncoming(target, id));
+        return true;
+    }
+
     // Routing
-    private DataSegment getSegment(String id) {
-        int segId = Math.abs(id.hashCode()) % BUCKET_COUNT;
-        touchSegment(segId);
-        return segments[segId];
+
+    /**
+     * Runs an operation against the segment that owns {@code id}. The owning shard of the
+     * current layout is read-locked for the duration, so the resharder cannot migrate it
+     * mid-operation; once it has been migrated the operation goes to the new layout instead.
+     */
+    private <T> T withShard(String id, Function<DataSegment, T> op) {
+        return route(id, true, op);
     }
 
-    private void touchSegment(int segId) {
-        lruQueue.remove(segId);
-        lruQueue.addFirst(segId);
-        while (lruQueue.size() > MAX_ACTIVE_SEGMENTS) {
-            Integer lruId = lruQueue.pollLast();
-            if (lruId != null)
-                segments[lruId].unload();
+    private void onShard(String id, Consumer<DataSegment> op) {
+        route(id, true, s -> { op.accept(s); return null; });
+    }
+
+    private <T> T route(String id, boolean touch, Function<DataSegment, T> op) {
+        while (true) {
+            ShardLayout current = routing.current;
+            int shard = current.shardOf(id);
+            Lock lock = current.locks[shard].readLock();
+            lock.lock();
+            try {
+                Routing now = routing;
+                if (now.current != current) continue; // Layout was swapped while we waited.
+                DataSegment segment = now.segmentAt(now.slotOf(id));
+                // A segment with deferred log records has to load even for a peek, so the cache must know.
+                if (touch || segment.hasDeferredReplay()) touchSegment(segment);
+                return op.apply(segment);
+            } finally { lock.unlock(); }
         }
     }
 
+    /**
+     * Visits every segment exactly once, as a non-promoting scan. All shards of the current
+     * layout are read-locked so that no shard is migrated (and counted twice) while it runs.
+     */
+    private void forEachShard(Consumer<DataSegment> action) {
+        while (true) {
+            ShardLayout current = routing.current;
+            for (ReentrantReadWriteLock l : current.locks) l.readLock().lock();
+            try {
+                Routing now = routing;
+                if (now.current != current) continue;
+                for (int i = 0; i < current.segments.length; i++) {
+                    if (now.next != null && current.migrated.get(i) == 1) continue;
+                    scanSegment(current.segments[i], action);
+                }
+                if (now.next != null)
+                    for (DataSegment segment : now.next.segments)
+                        scanSegment(segment, action);
+                return;
+            } finally {
+                for (ReentrantReadWriteLock l : current.locks) l.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the segment owning {@code id} is in the cache's protected (hot) queue.
+     */
+    boolean isHotShard(String id) {
+        return route(id, false, cache::isHot);
+    }
+
+    /** Every segment of the current layout and of the one being resharded to, without loading any. */
+    private void forEachSegment(Consumer<DataSegment> action) {
+        Routing r = routing;
+        for (DataSegment segment : r.current.segments) action.accept(segment);
+        if (r.next != null)
+            for (DataSegment segment : r.next.segments) action.accept(segment);
+    }
+
+    /**
+     * Point lookup that does not pull the owning shard into the active set.
+     * Used for existence checks and neighbour resolution, where loading a whole
+     * shard to read one node would evict a shard that is actually being worked on.
+     */
+    Node peekNode(String id) {
+        return route(id, false, s -> s.peekNode(id));
+    }
+
+    private void touchSegment(DataSegment segment) {
+        cache.touch(segment);
+    }
+
+    /**
+     * Full scans read through the cache without promoting anything, so a stats or search
+     * call does not push the shards used by point lookups out of memory.
+     */
+    private void scanSegment(DataSegment segment, Consumer<DataSegment> action) {
+        cache.touchForScan(segment);
+        action.accept(segment);
+        cache.recharge(segment);
+    }
+
+    /**
+     * Hands the segment to the background compactor once enough runs have piled up
+     * or when it still holds files in the legacy format.
+     */
+    private void scheduleCompaction(DataSegment segment) {
+        if (segment.needsCompaction(COMPACTION_THRESHOLD))
+            compactor.submit(segment::compact);
+    }
+
+    /**
+     * Logs an operation to the WAL and applies it with the LSN it was given. Until it returns,
+     * the thread's entry in {@link #committing} keeps {@link #commitFloor()} at or below that LSN.
+     */
+    private <T> T commit(TransactionManager.WalEntry entry, LongFunction<T> apply) {
+        if (readOnly) throw new IllegalStateException("Read-only replica");
+        return logAndApply(entry, apply);
+    }
+
+    private <T> T logAndApply(TransactionManager.WalEntry entry, LongFunction<T> apply) {
+        Thread self = Thread.currentThread();
+        committing.put(self, wal.nextLsn());
+        try {
+            T result;
+            try {
+                result = apply.apply(wal.writeEntry(entry));
+            } finally {
+                // Before the model is checked: a model published after this reads a fresh topology.
+                if (changesTopology(entry)) topologyVersion.incrementAndGet();
+            }
+            trackPageRank(entry);
+            return result;
+        } finally {
+            committing.remove(self);
+        }
+    }
+
+    /**
+     * Applies a change shipped from a primary: it is logged to this engine's own WAL under a new
+     * LSN and applied as recovery would, so it is allowed on a read-only engine. A link that is
+     * already present is not added again, which makes re-applying a change after a restart harmless.
+     */
+    public void applyReplicated(TransactionManager.WalEntry entry) {
+        if (entry.op == TransactionManager.WalEntry.ADD_LINK) {
+            Relation r = entry.relation;
+            boolean present = withShard(r.getSourceId(), s -> s.getRelationsFrom(r.getSourceId()).stream()
+                    .anyMatch(e -> e.getTargetId().equals(r.getTargetId()) && e.getType().equalsIgnoreCase(r.getType())));
+            if (present) return;
+        }
+        logAndApply(entry, lsn -> { applyOpToMemory(entry, lsn); return null; });
+    }
+
+    /**
+     * Makes the engine refuse mutations through its public API, as a replica does.
+     * Replicated changes are still applied.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return An LSN below which every committed change is visible to reads. A copy of the
+     *         graph taken after this call holds at least those changes.
+     */
+    public long getAppliedLsn() {
+        return commitFloor();
+    }
+
+    /**
+     * @return An LSN below which every logged operation has been fully applied to the segments.
+     *         A segment saved now is therefore complete up to one less than this.
+     */
+    long commitFloor() {
+        if (wal == null) return 0; // Still opening: nothing has been logged through this engine.
+        // Read the log position first: anyone registering after it gets an LSN at or above it.
+        long floor = Math.min(wal.nextLsn(), replayFloor);
+        for (long lsn : committing.values()) floor = Math.min(floor, lsn);
+        return floor;
+    }
+
     // CRUD Delegates
     public void persistNode(Node n) {
-        wal.writeEntry(new TransactionManager.WalEntry("ADD_NODE", gson.toJson(n)));
-        getSegment(n.getId()).putNode(n);
+        commit(TransactionManager.WalEntry.addNode(n), lsn -> { putNode(n, lsn); return null; });
     }
 
+    /**
+     * Sets one property. Only the key and value are logged, so the cost of an update does not
+     * grow with the size of the node.
+     */
     public boolean updateNode(String id, String k, String v) {
-        Node n = getSegment(id).getNode(id);
-        if (n == null)
+        if (getNode(id) == null)
             return false;
-        n.addProperty(k, v);
-        wal.writeEntry(new TransactionManager.WalEntry("UPDATE_NODE", gson.toJson(n)));
-        getSegment(id).putNode(n);
-        return true;
+        return commit(TransactionManager.WalEntry.setProperty(id, k, v), lsn -> setProperty(id, k, v, lsn));
+    }
+
+    public boolean removeProperty(String id, String k) {
+        Node n = getNode(id);
+        if (n == null || !n.getProperties().containsKey(k))
+            return false;
+        return commit(TransactionManager.WalEntry.removeProperty(id, k), lsn -> setProperty(id, k, null, lsn));
     }
 
     public boolean deleteNode(String id) {
-        wal.writeEntry(new TransactionManager.WalEntry("DELETE_NODE", id));
-        boolean rem = getSegment(id).removeNode(id);
-        if (rem)
-            for (int i = 0; i < BUCKET_COUNT; i++) {
-                touchSegment(i);
-                segments[i].removeRelationsTo(id);
-            }
-        return rem;
+        Set<String> sources = new HashSet<>();
+        Set<String> targets = new HashSet<>();
+        collectEdges(id, sources, targets);
+        return commit(TransactionManager.WalEntry.deleteNode(id, sources, targets),
+                lsn -> unlinkNode(id, lsn, sources, targets));
+    }
+
+    /** Adds the nodes linking to {@code id} and the nodes it links to, as its own shard knows them. */
+    private void collectEdges(String id, Set<String> sources, Set<String> targets) {
+        withShard(id, home -> {
+            sources.addAll(home.getIncoming(id));
+            for (Relation r : home.getRelationsFrom(id)) targets.add(r.getTargetId());
+            return null;
+        });
     }
 
     public void persistRelation(String f, String t, String type, Map<String, Object> p) {
-        if (getSegment(f).getNode(f) == null || getSegment(t).getNode(t) == null)
+        if (getNode(f) == null || peekNode(t) == null)
             throw new IllegalArgumentException("Nodes not found");
         Relation r = new Relation(f, t, type, p);
-        wal.writeEntry(new TransactionManager.WalEntry("ADD_LINK", gson.toJson(r)));
-        getSegment(f).addRelation(r);
+        commit(TransactionManager.WalEntry.addLink(r), lsn -> { link(r, lsn); return null; });
     }
 
     public void persistRelation(String f, String t, String type) {
@@ -214,33 +873,216 @@ public class GraphEngine {
 
     public boolean deleteRelation(String f, String t, String type) {
         Relation tg = new Relation(f, t, type);
-        wal.writeEntry(new TransactionManager.WalEntry("DELETE_LINK", gson.toJson(tg)));
-        return getSegment(f).removeRelation(f, t, type);
+        return commit(TransactionManager.WalEntry.deleteLink(tg), lsn -> unlink(f, t, type, lsn));
     }
 
+    /**
+     * Retypes a relation. The delete and the re-insert are committed as one transaction,
+     * so a crash can never leave the edge missing.
+     */
     public boolean updateRelation(String f, String t, String old, String newT) {
-        if (deleteRelation(f, t, old)) {
-            persistRelation(f, t, newT);
-            return true;
+        boolean exists = withShard(f, s -> s.getRelationsFrom(f).stream()
+                .anyMatch(r -> r.getTargetId().equals(t) && r.getType().equalsIgnoreCase(old)));
+        if (!exists)
+            return false;
+        beginTransaction().deleteRelation(f, t, old).persistRelation(f, t, newT).commit();
+        return true;
+    }
+
+    /**
+     * Starts buffering a group of mutations to be logged and applied as a unit.
+     * @see Transaction
+     */
+    public Transaction beginTransaction() {
+        return new Transaction(this);
+    }
+
+    /**
+     * Logs a transaction's operations as one batch record and applies them atomically.
+     * Node deletes are given their edge lists here, including edges added earlier in the batch.
+     */
+    void commitTransaction(List<TransactionManager.WalEntry> ops) {
+        List<TransactionManager.WalEntry> logged = new ArrayList<>(ops.size());
+        for (int i = 0; i < ops.size(); i++) {
+            TransactionManager.WalEntry op = ops.get(i);
+            if (op.op == TransactionManager.WalEntry.DELETE_NODE) {
+                Set<String> sources = new HashSet<>();
+                Set<String> targets = new HashSet<>();
+                collectEdges(op.id, sources, targets);
+                for (TransactionManager.WalEntry earlier : ops.subList(0, i)) {
+                    if (earlier.op != TransactionManager.WalEntry.ADD_LINK) continue;
+                    if (earlier.relation.getTargetId().equals(op.id)) sources.add(earlier.relation.getSourceId());
+                    if (earlier.relation.getSourceId().equals(op.id)) targets.add(earlier.relation.getTargetId());
+                }
+                op = TransactionManager.WalEntry.deleteNode(op.id, sources, targets);
+            }
+            logged.add(op);
         }
-        return false;
+        TransactionManager.WalEntry batch = TransactionManager.WalEntry.batch(logged);
+        commit(batch, lsn -> { applyBatch(batch, lsn); return null; });
     }
 
+    /**
+     * Applies a batch with every segment it touches write-locked at once, so no reader sees
+     * part of it. Segments are locked in slot order, and the whole current layout is
+     * read-locked first so no shard migrates underneath; other writers hold one segment
+     * lock at a time, so the ordering cannot deadlock.
+     * <p>
+     * The edge lists of node deletes were collected before any lock was taken. As in
+     * {@link #unlinkNode}, each deleted node's shard is read again once locked; if an edge was
+     * linked in the meantime, the locks are dropped and taken again to cover its shard too.
+     */
+    private void applyBatch(TransactionManager.WalEntry batch, long lsn) {
+        TransactionManager.WalEntry plan = batch;
+        while (true) {
+            ShardLayout current = routing.current;
+            for (ReentrantReadWriteLock l : current.locks) l.readLock().lock();
+            try {
+                Routing now = routing;
+                if (now.current != current) continue;
+                List<Integer> slots = new ArrayList<>();
+                List<Consumer<DataSegment>> effects = new ArrayList<>();
+                List<TransactionManager.WalEntry> deletedLinks = new ArrayList<>();
+                partition(plan, lsn, (id, l, op) -> { slots.add(now.slotOf(id)); effects.add(op); }, deletedLinks);
+                TreeMap<Integer, DataSegment> locked = new TreeMap<>();
+                for (int slot : slots) locked.put(slot, now.segmentAt(slot));
+                for (TransactionManager.WalEntry d : deletedLinks) {
+                    int slot = now.slotOf(d.relation.getTargetId());
+                    locked.put(slot, now.segmentAt(slot));
+                }
+                for (DataSegment segment : locked.values()) touchSegment(segment);
+
+                Set<DataSegment> live = new HashSet<>();
+                TransactionManager.WalEntry planned = plan;
+                List<TransactionManager.WalEntry> replanned = new ArrayList<>(1);
+                applyLocked(new ArrayList<>(locked.values()), 0, lsn, live, () -> {
+                    TransactionManager.WalEntry fresh = withCurrentEdges(planned, now, live);
+                    if (fresh != planned) {
+                        replanned.add(fresh);
+                        return;
+                    }
+                    for (int i = 0; i < effects.size(); i++) {
+                        DataSegment segment = now.segmentAt(slots.get(i));
+                        if (live.contains(segment)) effects.get(i).accept(segment);
+                    }
+                    for (TransactionManager.WalEntry d : deletedLinks) {
+                        Relation r = d.relation;
+                        DataSegment target = now.segmentAt(now.slotOf(r.getTargetId()));
+                        if (live.contains(target) && !now.segmentAt(now.slotOf(r.getSourceId()))
+                                .hasRelation(r.getSourceId(), r.getTargetId()))
+                            target.removeIncoming(r.getTargetId(), r.getSourceId());
+                    }
+                });
+                if (replanned.isEmpty()) return;
+                plan = replanned.get(0);
+            } finally {
+                for (ReentrantReadWriteLock l : current.locks) l.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads the edges of the batch's deleted nodes from their shards, which the caller holds.
+     * @return The batch with those edges added to the delete's lists, or {@code batch} itself
+     *         if the lists already name them all.
+     */
+    private static TransactionManager.WalEntry withCurrentEdges(TransactionManager.WalEntry batch, Routing now,
+                                                                Set<DataSegment> live) {
+        List<TransactionManager.WalEntry> ops = new ArrayList<>(batch.ops);
+        boolean changed = false;
+        for (int i = 0; i < ops.size(); i++) {
+            TransactionManager.WalEntry op = ops.get(i);
+            if (op.op != TransactionManager.WalEntry.DELETE_NODE) continue;
+            DataSegment home = now.segmentAt(now.slotOf(op.id));
+            if (!live.contains(home)) continue; // Already persisted: nothing of it left to unlink.
+            Set<String> sources = new HashSet<>(op.sources);
+            Set<String> targets = new HashSet<>(op.targets);
+            boolean grew = sources.addAll(home.getIncoming(op.id));
+            for (Relation r : home.getRelationsFrom(op.id)) grew |= targets.add(r.getTargetId());
+            if (!grew) continue;
+            ops.set(i, TransactionManager.WalEntry.deleteNode(op.id, sources, targets));
+            changed = true;
+        }
+        return changed ? TransactionManager.WalEntry.batch(ops) : batch;
+    }
+
+    /**
+     * Takes the write lock of each segment from {@code index} on, nested, and runs {@code body}
+     * holding all of them. Segments that have not persisted {@code lsn} yet are added to {@code live}.
+     */
+    private static void applyLocked(List<DataSegment> segments, int index, long lsn, Set<DataSegment> live, Runnable body) {
+        if (index == segments.size()) {
+            body.run();
+            return;
+        }
+        Function<DataSegment, Void> rest = s -> { applyLocked(segments, index + 1, lsn, live, body); return null; };
+        segments.get(index).applyLogged(lsn, s -> { live.add(s); return rest.apply(s); }, rest);
+    }
+
+    /**
+     * Writes every dirty segment to a new run, in parallel on the checkpoint pool, and then
+     * deletes the WAL files that every segment has persisted past. Clean segments are not
+     * touched, so the cost is that of the slowest dirty shard rather than the sum over all of them.
+     * <p>
+     * Writes are never paused. Each run is stamped with the LSN its segment is complete up to,
+     * and a WAL file is only deleted once no segment holds unsaved changes from it and no
+     * operation logged in it is still being applied; a failed save simply keeps its files.
+     */
     public void checkpoint() {
         System.out.println(" [ENGINE] Checkpointing...");
-        for (Integer id : lruQueue)
-            segments[id].save();
-        wal.clearLog();
-        System.out.println(" [ENGINE] Done.");
+        long start = System.nanoTime();
+        // Includes evicted segments still queued for write-back, not just resident ones.
+        List<DataSegment> batch = new ArrayList<>();
+        for (Iterator<DataSegment> it = dirty.iterator(); it.hasNext(); ) {
+            batch.add(it.next());
+            it.remove();
+        }
+        List<CompletableFuture<Boolean>> saves = new ArrayList<>();
+        for (DataSegment segment : batch)
+            saves.add(CompletableFuture.supplyAsync(() -> flush(segment), flusher));
+        for (CompletableFuture<Boolean> save : saves)
+            save.join();
+        forEachSegment(this::scheduleCompaction);
+
+        // Writes routed to the new layout only become durable once the reshard commits.
+        if (routing.next == null) {
+            int deleted = wal.deleteBefore(walRetentionLsn());
+            if (deleted > 0) System.out.println(" [WAL] Deleted " + deleted + " log files.");
+        }
+        System.out.printf(" [ENGINE] Done: %d dirty shards in %.1f ms.%n", batch.size(), (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * @return The lowest LSN the WAL must still hold: that of the oldest change not yet
+     *         saved by some segment, of the oldest operation still being applied, or of the
+     *         next change a change subscriber has to read or a running backup has to link.
+     */
+    private long walRetentionLsn() {
+        long[] oldest = { Math.min(Math.min(commitFloor(), wal.subscriberFloor()), backupFloor) };
+        forEachSegment(s -> oldest[0] = Math.min(oldest[0], s.firstUnpersistedLsn()));
+        return oldest[0];
+    }
+
+    /** Saves one segment for a checkpoint and reports its timing. */
+    private boolean flush(DataSegment segment) {
+        long start = System.nanoTime();
+        int ops = segment.save();
+        if (ops < 0) {
+            dirty.add(segment); // Retried by the next checkpoint.
+            return false;
+        }
+        if (ops > 0)
+            System.out.printf(" [CHECKPOINT] Shard %d: %d ops in %.1f ms%n", segment.getId(), ops, (System.nanoTime() - start) / 1e6);
+        return true;
     }
 
     // Read
     public Node getNode(String id) {
-        return getSegment(id).getNode(id);
+        return withShard(id, s -> s.getNode(id));
     }
 
     public Relation getRelation(String f, String t) {
-        for (Relation r : getSegment(f).getRelationsFrom(f))
+        for (Relation r : withShard(f, s -> s.getRelationsFrom(f)))
             if (r.getTargetId().equals(t))
                 return r;
         return null;
@@ -248,29 +1090,52 @@ public class GraphEngine {
 
     public List<Node> search(String q) {
         List<Node> r = new ArrayList<>();
-        for (int i = 0; i < BUCKET_COUNT; i++) {
-            touchSegment(i);
-            r.addAll(segments[i].search(q));
-        }
+        forEachShard(s -> r.addAll(s.search(q)));
         return r;
     }
 
     public List<Node> traverse(String f, String t) {
-        return getSegment(f).getRelationsFrom(f).stream().filter(r -> r.getType().equalsIgnoreCase(t))
-                .map(r -> getSegment(r.getTargetId()).getNode(r.getTargetId())).filter(Objects::nonNull)
+        return withShard(f, s -> s.getRelationsFrom(f)).stream().filter(r -> r.getType().equalsIgnoreCase(t))
+                .map(r -> peekNode(r.getTargetId())).filter(Objects::nonNull)
                 .collect(Collectors.toList());
     }
 
     // Pathfinding
+    /**
+     * Finds the cheapest path along relations, weighted by their numeric property {@code k}
+     * (1 where it is missing), with Dijkstra's algorithm over the {@link #getTopology() topology}.
+     * Weights must not be negative.
+     * @param min Must be {@code true}: with cycles a highest-cost path is unbounded, so none is returned for {@code false}.
+     * @return The path and its cost, or {@code null} if there is none.
+     */
     public PathResult findWeightedPath(String s, String e, String k, boolean min) {
-        // (Paste previous Dijkstra logic here)
-        // For brevity in this response, assume previous logic exists
-        return null;
+        if (!min) return null;
+        Topology t = getTopology();
+        int from = t.indexOf(s);
+        int to = t.indexOf(e);
+        if (from < 0 || to < 0) return null;
+        double[] cost = new double[1];
+        int[] path = t.cheapestPath(from, to, edgeWeights(t, k), cost);
+        return path.length == 0 ? null : new PathResult(idsOf(t, path), cost[0]);
     }
 
+    /**
+     * Finds a path with the fewest hops along relations, breadth-first over the {@link #getTopology() topology}.
+     * @param d The most hops to search.
+     * @return The ids along the path, both ends included, or an empty list if there is none.
+     */
     public List<String> findShortestPath(String s, String e, int d) {
-        // (Paste previous BFS logic here)
-        return Collections.emptyList();
+        Topology t = getTopology();
+        int from = t.indexOf(s);
+        int to = t.indexOf(e);
+        if (from < 0 || to < 0) return Collections.emptyList();
+        return idsOf(t, t.shortestPath(from, to, d));
+    }
+
+    private static List<String> idsOf(Topology t, int[] path) {
+        List<String> ids = new ArrayList<>(path.length);
+        for (int v : path) ids.add(t.idOf(v));
+        return ids;
     }
 
     public static class PathResult {
@@ -286,8 +1151,10 @@ public class GraphEngine {
     // Admin
     public void setAutoIndexing(boolean e) {
         this.autoIndexing = e;
-        for (DataSegment s : segments)
-            s.setIndexing(e);
+        Routing r = routing;
+        r.current.setIndexing(e);
+        if (r.next != null)
+            r.next.setIndexing(e);
     }
 
     public boolean isAutoIndexing() {
@@ -296,34 +1163,354 @@ public class GraphEngine {
 
     public Collection<Node> getAllNodes() {
         List<Node> all = new ArrayList<>();
-        for (int i = 0; i < BUCKET_COUNT; i++) {
-            touchSegment(i);
-            all.addAll(segments[i].getNodes());
-        }
+        forEachShard(s -> all.addAll(s.getNodes()));
         return all;
     }
 
     public List<Relation> getAllRelations() {
         List<Relation> all = new ArrayList<>();
-        for (int i = 0; i < BUCKET_COUNT; i++) {
-            touchSegment(i);
-            all.addAll(segments[i].getAllRelations());
-        }
+        forEachShard(s -> all.addAll(s.getAllRelations()));
         return all;
     }
 
     public void wipeDatabase() {
+        awaitReshard();
         wal.clearLog();
-        for (DataSegment s : segments)
+        int shardCount = getShardCount();
+        for (DataSegment s : routing.current.segments)
             s.unload();
+        cache.awaitWriteBack();
+        awaitCompactions();
+        dirty.clear();
         File d = new File(dbDirectory);
         if (d.exists())
             for (File f : d.listFiles())
-                f.delete();
-        initialize();
+                if (!TransactionManager.isLogFile(f.getName()))
+                    f.delete();
+        cache.clear();
+        initialize(shardCount);
+        topologyVersion.incrementAndGet();
+        IncrementalPageRank model = incrementalPageRank.get();
+        if (model != null) loadIncrementalPageRank(model, model.getErrorBound());
+    }
+
+    /**
+     * Blocks until every compaction submitted so far has finished.
+     */
+    private void awaitCompactions() {
+        Future<?> barrier = compactor.submit(() -> {});
+        try {
+            barrier.get();
+        } catch (Exception e) {
+            System.err.println("Compaction wait interrupted: " + e.getMessage());
+        }
+    }
+
+    // --- Segment Cache ---
+
+    /**
+     * Sets the estimated heap the resident segments may use before the least recently used are evicted.
+     */
+    public void setCacheBudget(long bytes) {
+        if (bytes < 1) throw new IllegalArgumentException("Cache budget must be positive");
+        cache.setBudget(bytes);
+    }
+
+    public long getCacheBudget() {
+        return cache.getBudget();
+    }
+
+    /**
+     * @return The estimated heap held by resident segments.
+     */
+    public long getCachedBytes() {
+        return cache.getChargedBytes();
+    }
+
+    // --- WAL ---
+
+    /**
+     * Sets when a mutation counts as committed; see {@link TransactionManager.Durability}.
+     */
+    public void setWalDurability(TransactionManager.Durability durability) {
+        wal.setDurability(durability);
+    }
+
+    public TransactionManager.Durability getWalDurability() {
+        return wal.getDurability();
+    }
+
+    /** Sets the size at which the WAL moves on to a new file. */
+    void setWalFileSize(long bytes) {
+        wal.setMaxFileSize(bytes);
+    }
+
+    int getWalFileCount() {
+        return wal.fileCount();
+    }
+
+    // --- Change Data Capture ---
+
+    /**
+     * Tails committed changes from {@code fromLsn} on; see {@link TransactionManager#subscribe}.
+     * Checkpoints keep the WAL files an open subscription has not read yet.
+     */
+    public TransactionManager.Subscription subscribeChanges(long fromLsn, Consumer<TransactionManager.WalEntry> listener) {
+        return wal.subscribe(fromLsn, listener);
+    }
+
+    /**
+     * Reads up to {@code max} committed changes from {@code fromLsn} on.
+     * @throws IllegalStateException If the log no longer goes back to {@code fromLsn}.
+     */
+    public List<TransactionManager.WalEntry> readChanges(long fromLsn, int max) {
+        return wal.readCommitted(fromLsn, max);
+    }
+
+    /** @return The LSN the next committed change will get. */
+    public long getCommittedLsn() {
+        return wal.committedLsn();
+    }
+
+    /** @return The oldest LSN changes can still be read from. */
+    public long getOldestLsn() {
+        return wal.oldestLsn();
+    }
+
+    // --- Backup ---
+
+    /**
+     * Takes an online backup into {@code dest}; see {@link Backup}. Writes carry on meanwhile
+     * and nothing is checkpointed: the backup holds the shard files as last saved plus the
+     * log files needed to bring them up to date, pinned against deletion while they are linked.
+     * @param dest A new or empty directory.
+     * @param previous The previous backup, to link unchanged files from when they cannot be
+     *                 linked from the database, or {@code null}.
+     */
+    public synchronized Backup.Result backup(Path dest, Path previous) throws IOException {
+        awaitReshard();
+        Files.createDirectories(dest);
+        Backup.Result result = new Backup.Result();
+        result.timestamp = System.currentTimeMillis();
+        long from = walRetentionLsn();
+        backupFloor = from;
+        try {
+            for (String name : new String[] { Manifest.FILE_NAME, INCOMING_INDEX_MARKER }) {
+                File file = new File(dbDirectory, name);
+                if (file.exists()) {
+                    Files.copy(file.toPath(), dest.resolve(name));
+                    result.copied(file.length());
+                }
+            }
+            for (DataSegment segment : routing.current.segments)
+                segment.forEachFile(file -> Backup.link(file, dest.resolve(file.getFileName()), previous, result));
+            // Every change the shard files hold was logged by now, so the log copied next covers them.
+            result.lsn = wal.backupFiles(from, dest, previous, result);
+        } finally {
+            backupFloor = Long.MAX_VALUE;
+        }
+        Backup.writeInfo(dest, result);
+        return result;
+    }
+
+    /**
+     * Archives WAL files instead of only deleting them once checkpointed, so that a backup
+     * can be restored to any later point; see {@link TransactionManager#setArchiveDirectory}.
+     * @param archiveDir The archive directory, or {@code null} to stop archiving.
+     */
+    public void setWalArchive(File archiveDir) {
+        wal.setArchiveDirectory(archiveDir);
+    }
+
+    public File getWalArchive() {
+        return wal.getArchiveDirectory();
+    }
+
+    // --- Resharding ---
+
+    public String getDbDirectory() {
+        return dbDirectory;
+    }
+
+    public int getShardCount() {
+        return routing.current.segments.length;
+    }
+
+    public boolean isResharding() {
+        return routing.next != null;
+    }
+
+    /**
+     * Starts moving the database to a new number of shards in the background.
+     * Reads and writes continue throughout: each old shard is migrated under its own lock,
+     * after which operations on its ids are routed to the new layout. The new generation of
+     * files is committed by rewriting the manifest, and the old files are deleted afterwards.
+     * Until then no WAL file is deleted, so a crash mid-reshard recovers on the old layout.
+     * @param shardCount The new number of shards.
+     * @return A future that completes when the reshard is committed.
+     */
+    public synchronized Future<?> reshard(int shardCount) {
+        if (shardCount < 1) throw new IllegalArgumentException("Shard count must be positive");
+        Routing r = routing;
+        if (r.next != null) throw new IllegalStateException("Resharding already in progress");
+        if (shardCount == r.current.segments.length) return CompletableFuture.completedFuture(null);
+
+        int generation = r.current.generation + 1;
+        deleteShardFiles(name -> Manifest.ownsFile(generation, name));
+        ShardLayout next = new ShardLayout(generation, shardCount);
+        next.setIndexing(autoIndexing);
+        routing = new Routing(r.current, next);
+        reshardTask = resharder.submit(() -> migrate(r.current, next));
+        return reshardTask;
+    }
+
+    private void migrate(ShardLayout from, ShardLayout to) {
+        long start = System.nanoTime();
+        System.out.println(" [RESHARD] " + from.segments.length + " -> " + to.segments.length + " shards...");
+        for (int i = 0; i < from.segments.length; i++) {
+            from.locks[i].writeLock().lock();
+            try {
+                DataSegment old = from.segments[i];
+                for (Node n : old.getNodes())
+                    to.segmentFor(n.getId()).putNode(n);
+                for (Relation r : old.getAllRelations())
+                    to.segmentFor(r.getSourceId()).addRelation(r);
+                old.getIncomingIndex().forEach((target, sources) -> {
+                    DataSegment segment = to.segmentFor(target);
+                    for (String src : sources) segment.addIncoming(target, src);
+                });
+                from.migrated.set(i, 1);
+                cache.remove(old);
+                old.unload();
+            } finally { from.locks[i].writeLock().unlock(); }
+
+            // Write back new shards that nobody is using, so memory stays bounded.
+            for (DataSegment segment : to.segments)
+                if (!cache.contains(segment)) segment.unload();
+        }
+
+        for (DataSegment segment : to.segments) segment.save();
+        try {
+            new Manifest(to.segments.length, to.generation).write(dbDirectory);
+        } catch (IOException e) {
+            // Keep routing to the new layout; the retained WAL covers a restart on the old one.
+            System.err.println("Reshard Commit Failed: " + e.getMessage());
+            return;
+        }
+        routing = new Routing(to, null);
+        awaitCompactions();
+        deleteShardFiles(name -> Manifest.ownsFile(from.generation, name));
+        System.out.printf(" [RESHARD] Done in %.2f s.%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    private void awaitReshard() {
+        try {
+            reshardTask.get();
+        } catch (Exception e) {
+            System.err.println("Reshard wait interrupted: " + e.getMessage());
+        }
+    }
+
+    /** One generation of shard files and the locks that guard their migration. */
+    private final class ShardLayout {
+        final int generation;
+        final DataSegment[] segments;
+        final ReentrantReadWriteLock[] locks;
+        final AtomicIntegerArray migrated;
+
+        ShardLayout(int generation, int shardCount) {
+            this.generation = generation;
+            this.segments = new DataSegment[shardCount];
+            this.locks = new ReentrantReadWriteLock[shardCount];
+            this.migrated = new AtomicIntegerArray(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                segments[i] = new DataSegment(i, Manifest.shardName(generation, i), dbDirectory, crypto);
+                segments[i].setDirtyListener(dirty::add);
+                segments[i].setLsnFloor(GraphEngine.this::commitFloor);
+                locks[i] = new ReentrantReadWriteLock();
+            }
+        }
+
+        /** Same buckets as the original {@code Math.abs(hash) % 16}, but never negative for other counts. */
+        int shardOf(String id) {
+            return Math.abs(id.hashCode() % segments.length);
+        }
+
+        DataSegment segmentFor(String id) {
+            return segments[shardOf(id)];
+        }
+
+        void setIndexing(boolean enabled) {
+            for (DataSegment s : segments)
+                s.setIndexing(enabled);
+        }
+    }
+
+    private static final class Routing {
+        final ShardLayout current;
+        final ShardLayout next;
+
+        Routing(ShardLayout current, ShardLayout next) {
+            this.current = current;
+            this.next = next;
+        }
+
+        /**
+         * @return The position of the segment owning {@code id}: its shard number in the current
+         *         layout or, once that shard has been migrated, the current shard count plus its
+         *         shard number in the next one. Only stable while the owning shard is read-locked.
+         */
+        int slotOf(String id) {
+            int shard = current.shardOf(id);
+            if (next != null && current.migrated.get(shard) == 1)
+                return current.segments.length + next.shardOf(id);
+            return shard;
+        }
+
+        DataSegment segmentAt(int slot) {
+            int count = current.segments.length;
+            return slot < count ? current.segments[slot] : next.segments[slot - count];
+        }
     }
 
     public void commit() {
         checkpoint();
     }
-}
\ No newline at end of file
+
+    /**
+     * Checkpoints, waits for the background resharder, write-back and compactor to finish,
+     * and stops their threads. Another engine may then safely open the same directory.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        awaitReshard();
+        checkpoint();
+        cache.awaitWriteBack();
+        awaitCompactions();
+        wal.close();
+        resharder.shutdown();
+        flusher.shutdown();
+        cache.shutdown();
+        compactor.shutdown();
+    }
+
+    /**
+     * Stops the background threads and closes the WAL without checkpointing, as a crash would:
+     * queued saves, compactions and migrations are dropped. Another engine may then open the
+     * same directory and recover it.
+     */
+    synchronized void abandon() {
+        if (closed) return;
+        closed = true;
+        List<ExecutorService> executors = List.of(resharder, flusher, compactor);
+        executors.forEach(ExecutorService::shutdownNow);
+        try {
+            cache.shutdownNow();
+            for (ExecutorService executor : executors) executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wal.close();
+    }
+}
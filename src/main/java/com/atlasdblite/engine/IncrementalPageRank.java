@@ -0,0 +1,314 @@
+package com.atlasdblite.engine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps PageRank scores up to date as nodes and edges come and go, without recomputing them,
+ * using the residual push method of Zhang, Lofgren and Goel ("Approximate Personalized PageRank
+ * on Dynamic Graphs", KDD 2016) with every node as a source.
+ * <p>
+ * For teleport probability {@code a = 1 - d} the model holds an estimate {@code x} and a
+ * residual {@code r} for every node, with the invariant
+ * <pre>  x(t) + a r(t) = a + (1 - a) * sum over edges u->t of x(u) / outDegree(u)</pre>
+ * whose exact solution ({@code r = 0}) is PageRank up to a constant factor. Pushing a node moves
+ * {@code a r} into its estimate and spreads the rest of its residual over its out-edges; a
+ * mutation only touches the residuals of its ends, so keeping the invariant costs O(1) per edge
+ * and the pushes that follow stay local. Once no residual exceeds the threshold the normalized
+ * estimate is within {@code errorBound} (L1) of the normalized exact ranks, which equal those of
+ * {@link PageRank} with a uniform personalization vector.
+ * <p>
+ * Not thread-safe: {@link GraphEngine} reads and updates it while holding the model's monitor.
+ */
+final class IncrementalPageRank {
+    private static final int[] NONE = new int[0];
+
+    private final double alpha;
+    private final double errorBound;
+    private final Topology.Dictionary ids = new Topology.Dictionary();
+    private final Map<String, Integer> types = new HashMap<>();
+
+    private int[][] out = new int[16][];
+    private int[][] outTypes = new int[16][];
+    private int[] outDegree = new int[16];
+    private int[][] in = new int[16][];
+    private int[] inDegree = new int[16];
+    private double[] x = new double[16];
+    private double[] r = new double[16];
+    private boolean[] alive = new boolean[16];
+    private int live;
+    /** The sum of the estimates of the live nodes. */
+    private double mass;
+
+    private int[] queue = new int[16];
+    private boolean[] queued = new boolean[16];
+    private int head, count;
+    private long pushes;
+    /** The scores as last handed out, or {@code null} once a change has made them stale. */
+    private Map<String, Double> scores;
+
+    /**
+     * @param dampingFactor The damping factor {@code d}.
+     * @param errorBound The L1 distance allowed between the maintained and exact normalized ranks.
+     */
+    IncrementalPageRank(double dampingFactor, double errorBound) {
+        if (dampingFactor < 0 || dampingFactor >= 1) throw new IllegalArgumentException("Damping factor must be in [0, 1)");
+        if (errorBound <= 0) throw new IllegalArgumentException("Error bound must be positive");
+        this.alpha = 1 - dampingFactor;
+        this.errorBound = errorBound;
+    }
+
+    /**
+     * Loads a topology, warm-started from ranks computed over it (or from nothing if {@code ranks} is
+     * {@code null}), and pushes until within the bound.
+     */
+    void load(Topology t, PageRank.Result ranks) {
+        int n = t.size();
+        grow(n);
+        double dangling = 0;
+        for (int v = 0; v < n; v++) {
+            ids.add(t.idOf(v));
+            alive[v] = true;
+            out[v] = Arrays.copyOfRange(t.targets, t.outOffsets[v], t.outOffsets[v + 1]);
+            outTypes[v] = new int[out[v].length];
+            outDegree[v] = out[v].length;
+            in[v] = Arrays.copyOfRange(t.sources, t.inOffsets[v], t.inOffsets[v + 1]);
+            inDegree[v] = in[v].length;
+            if (outDegree[v] == 0 && ranks != null) dangling += ranks.rankOf(t.idOf(v));
+        }
+        for (int v = 0; v < n; v++)
+            for (int e = t.outOffsets[v], i = 0; e < t.outOffsets[v + 1]; e++, i++)
+                outTypes[v][i] = typeId(t.typeName(t.edgeTypes[e]));
+        live = n;
+
+        // Full PageRank redistributes dangling rank; without that the ranks shrink by this factor.
+        double scale = ranks == null ? 0 : alpha * n / (alpha + (1 - alpha) * dangling);
+        mass = 0;
+        for (int v = 0; v < n; v++) {
+            x[v] = ranks == null ? 0 : ranks.rankOf(t.idOf(v)) * scale;
+            mass += x[v];
+        }
+        for (int v = 0; v < n; v++) {
+            double sum = 0;
+            for (int i = 0; i < inDegree[v]; i++) sum += x[in[v][i]] / outDegree[in[v][i]];
+            r[v] = (alpha + (1 - alpha) * sum - x[v]) / alpha;
+            enqueue(v);
+        }
+        settle();
+    }
+
+    // --- Mutations ---
+
+    /** Makes the model's node match the graph. Removing a node removes its edges. */
+    void syncNode(String id, boolean present) {
+        int v = ids.find(id);
+        if (present && (v < 0 || !alive[v])) {
+            addNode(id);
+        } else if (!present && v >= 0 && alive[v]) {
+            while (outDegree[v] > 0) removeEdge(v, outDegree[v] - 1);
+            while (inDegree[v] > 0) {
+                int u = in[v][inDegree[v] - 1];
+                removeEdge(u, find(u, v));
+            }
+            mass -= x[v];
+            x[v] = 0;
+            r[v] = 0;
+            alive[v] = false;
+            live--;
+            scores = null;
+        }
+    }
+
+    /** Makes the model's edge match the graph. Types compare case-insensitively, as relations do. */
+    void syncEdge(String source, String target, String type, boolean present) {
+        int u = ids.find(source);
+        int w = ids.find(target);
+        int k = typeId(type);
+        int at = u < 0 || w < 0 ? -1 : find(u, w, k);
+        if (present && at < 0) {
+            if (u < 0 || !alive[u]) u = addNode(source);
+            if (w < 0 || !alive[w]) w = addNode(target);
+            addEdge(u, w, k);
+        } else if (!present && at >= 0) {
+            removeEdge(u, at);
+        }
+    }
+
+    private int addNode(String id) {
+        int v = ids.add(id);
+        grow(v + 1);
+        alive[v] = true;
+        live++;
+        out[v] = NONE;
+        outTypes[v] = NONE;
+        in[v] = NONE;
+        outDegree[v] = inDegree[v] = 0;
+        x[v] = 0;
+        r[v] = 1; // x + a r = a with no in-edges.
+        enqueue(v);
+        scores = null;
+        return v;
+    }
+
+    private void addEdge(int u, int w, int type) {
+        int k = outDegree[u];
+        double xu = x[u];
+        if (k > 0) {
+            // Scale x(u) so the old out-edges carry the same x(u) / k as before.
+            x[u] += xu / k;
+            mass += xu / k;
+            r[u] -= xu / (k * alpha);
+            r[w] += (1 - alpha) * xu / (k * alpha);
+        } else {
+            r[w] += (1 - alpha) * xu / alpha;
+        }
+        if (k == out[u].length) {
+            out[u] = Arrays.copyOf(out[u], Math.max(2, k * 2));
+            outTypes[u] = Arrays.copyOf(outTypes[u], out[u].length);
+        }
+        out[u][k] = w;
+        outTypes[u][k] = type;
+        outDegree[u]++;
+        if (inDegree[w] == in[w].length) in[w] = Arrays.copyOf(in[w], Math.max(2, inDegree[w] * 2));
+        in[w][inDegree[w]++] = u;
+        enqueue(u);
+        enqueue(w);
+        scores = null;
+    }
+
+    /** Removes out-edge number {@code at} of {@code u}. */
+    private void removeEdge(int u, int at) {
+        int w = out[u][at];
+        int k = outDegree[u];
+        double xu = x[u];
+        if (k > 1) {
+            x[u] -= xu / k;
+            mass -= xu / k;
+            r[u] += xu / (k * alpha);
+            r[w] -= (1 - alpha) * xu / (k * alpha);
+        } else {
+            r[w] -= (1 - alpha) * xu / alpha;
+        }
+        out[u][at] = out[u][k - 1];
+        outTypes[u][at] = outTypes[u][k - 1];
+        outDegree[u]--;
+        for (int i = 0; i < inDegree[w]; i++) {
+            if (in[w][i] == u) {
+                in[w][i] = in[w][--inDegree[w]];
+                break;
+            }
+        }
+        enqueue(u);
+        enqueue(w);
+        scores = null;
+    }
+
+    private int find(int u, int w, int type) {
+        for (int i = 0; i < outDegree[u]; i++)
+            if (out[u][i] == w && outTypes[u][i] == type) return i;
+        return -1;
+    }
+
+    private int find(int u, int w) {
+        for (int i = 0; i < outDegree[u]; i++)
+            if (out[u][i] == w) return i;
+        return -1;
+    }
+
+    private int typeId(String type) {
+        return types.computeIfAbsent(type.toLowerCase(), k -> types.size());
+    }
+
+    // --- Pushing ---
+
+    /**
+     * Pushes queued nodes until no residual is above the threshold, which puts the sum of the
+     * absolute residuals, and so the L1 error of the estimate, within the bound.
+     */
+    void settle() {
+        if (live == 0) {
+            count = 0;
+            return;
+        }
+        // Every live node's exact score is at least alpha, so the mass never drops below alpha * live.
+        double threshold = errorBound * Math.max(mass, alpha * live) / (2 * live);
+        while (count > 0) {
+            int v = queue[head];
+            head = (head + 1) % queue.length;
+            count--;
+            queued[v] = false;
+            double residual = r[v];
+            if (!alive[v] || Math.abs(residual) <= threshold) continue;
+            r[v] = 0;
+            x[v] += alpha * residual;
+            mass += alpha * residual;
+            pushes++;
+            int k = outDegree[v];
+            if (k == 0) continue;
+            double share = (1 - alpha) * residual / k;
+            for (int i = 0; i < k; i++) {
+                int w = out[v][i];
+                r[w] += share;
+                if (Math.abs(r[w]) > threshold) enqueue(w);
+            }
+        }
+    }
+
+    private void enqueue(int v) {
+        if (queued[v]) return;
+        if (count == queue.length) {
+            int[] bigger = new int[queue.length * 2];
+            for (int i = 0; i < count; i++) bigger[i] = queue[(head + i) % queue.length];
+            queue = bigger;
+            head = 0;
+        }
+        queue[(head + count++) % queue.length] = v;
+        queued[v] = true;
+    }
+
+    // --- Reading ---
+
+    /** @return The scores, scaled so the highest is 10 as {@link PageRank.Result#getScores()} does. */
+    Map<String, Double> getScores() {
+        if (scores != null) return scores;
+        double max = 0;
+        for (int v = 0; v < ids.size(); v++)
+            if (alive[v]) max = Math.max(max, x[v]);
+        Map<String, Double> map = new HashMap<>(live * 4 / 3 + 1);
+        for (int v = 0; v < ids.size(); v++)
+            if (alive[v]) map.put(ids.key(v), max > 0 ? x[v] / max * 10.0 : 0.0);
+        scores = Collections.unmodifiableMap(map);
+        return scores;
+    }
+
+    /** @return The rank of a node, normalized so all ranks sum to 1, or 0 if there is no such node. */
+    double rankOf(String id) {
+        int v = ids.find(id);
+        return v < 0 || !alive[v] || mass <= 0 ? 0 : x[v] / mass;
+    }
+
+    double getErrorBound() {
+        return errorBound;
+    }
+
+    /** @return The number of pushes so far, a measure of the work done. */
+    long getPushes() {
+        return pushes;
+    }
+
+    private void grow(int n) {
+        if (n <= alive.length) return;
+        int size = Math.max(n, alive.length * 2);
+        out = Arrays.copyOf(out, size);
+        outTypes = Arrays.copyOf(outTypes, size);
+        outDegree = Arrays.copyOf(outDegree, size);
+        in = Arrays.copyOf(in, size);
+        inDegree = Arrays.copyOf(inDegree, size);
+        x = Arrays.copyOf(x, size);
+        r = Arrays.copyOf(r, size);
+        alive = Arrays.copyOf(alive, size);
+        queued = Arrays.copyOf(queued, size);
+    }
+}
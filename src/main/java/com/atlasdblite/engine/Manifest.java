@@ -0,0 +1,72 @@
+package com.atlasdblite.engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The database manifest: a small plaintext properties file recording the shard layout.
+ * The shard count is chosen when the database is created and only changes through
+ * resharding, which writes a new generation of shard files and then swaps the manifest
+ * atomically. Shard files from any other generation are leftovers of an interrupted
+ * reshard and are removed on open.
+ */
+class Manifest {
+    static final String FILE_NAME = "MANIFEST";
+    /** Layout of databases created before the manifest existed. */
+    static final int LEGACY_SHARD_COUNT = 16;
+
+    final int shardCount;
+    final int generation;
+
+    Manifest(int shardCount, int generation) {
+        this.shardCount = shardCount;
+        this.generation = generation;
+    }
+
+    /**
+     * @return The stored manifest, or {@code null} if the database has none yet.
+     */
+    static Manifest read(String dbDirectory) throws IOException {
+        Path path = Paths.get(dbDirectory, FILE_NAME);
+        if (!Files.exists(path)) return null;
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            props.load(in);
+        }
+        return new Manifest(Integer.parseInt(props.getProperty("shards")),
+                Integer.parseInt(props.getProperty("generation", "0")));
+    }
+
+    void write(String dbDirectory) throws IOException {
+        Path path = Paths.get(dbDirectory, FILE_NAME);
+        Path temp = path.resolveSibling(FILE_NAME + ".tmp");
+        Properties props = new Properties();
+        props.setProperty("shards", Integer.toString(shardCount));
+        props.setProperty("generation", Integer.toString(generation));
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            props.store(out, "AtlasDB-Lite shard layout");
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The file name prefix of shard {@code i}. Generation 0 keeps the original {@code part_N} names.
+     */
+    static String shardName(int generation, int i) {
+        return generation == 0 ? "part_" + i : "part_g" + generation + "_" + i;
+    }
+
+    /**
+     * @return {@code true} if the file is a shard file of the given generation.
+     */
+    static boolean ownsFile(int generation, String fileName) {
+        String pattern = generation == 0 ? "part_\\d+\\..*" : "part_g" + generation + "_\\d+\\..*";
+        return fileName.matches(pattern);
+    }
+}
@@ -0,0 +1,237 @@
+package com.atlasdblite.engine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * PageRank over a {@link Topology}, computed in parallel on a fork-join pool.
+ * <p>
+ * Each iteration is two passes over the nodes, both split into ranges of about equal work
+ * (nodes plus in-edges): the first computes every node's share per out-edge and the rank held
+ * by dangling nodes (no out-edges), the second pulls the shares over the in-edges into
+ * <pre>  PR'(v) = (1 - d) p(v) + d (sum of in-shares + dangling mass * p(v))</pre>
+ * where {@code p} is the personalization vector (uniform unless set), so the ranks always sum
+ * to 1. Iteration stops once the L1 distance between successive rank vectors falls below the
+ * tolerance, or after the maximum number of iterations. All arrays are allocated up front.
+ */
+public final class PageRank {
+    /** Ranges per worker, so that a slow range does not hold up a whole iteration. */
+    private static final int RANGES_PER_THREAD = 4;
+
+    private double dampingFactor = 0.85;
+    private double tolerance = 1e-6;
+    private int maxIterations = 100;
+    private Map<String, Double> personalization;
+
+    public PageRank setDampingFactor(double dampingFactor) {
+        if (dampingFactor < 0 || dampingFactor >= 1) throw new IllegalArgumentException("Damping factor must be in [0, 1)");
+        this.dampingFactor = dampingFactor;
+        return this;
+    }
+
+    /** Sets the L1 change between iterations below which the ranks count as converged; 0 always runs every iteration. */
+    public PageRank setTolerance(double tolerance) {
+        if (tolerance < 0) throw new IllegalArgumentException("Tolerance must not be negative");
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    public PageRank setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) throw new IllegalArgumentException("Iterations must be positive");
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    /**
+     * Biases the random jumps, and the rank of dangling nodes, towards the given nodes in
+     * proportion to their weights (personalized PageRank). Unknown ids are ignored.
+     * @param weights Non-negative weights by node id, or {@code null} for the uniform vector.
+     */
+    public PageRank setPersonalization(Map<String, Double> weights) {
+        this.personalization = weights;
+        return this;
+    }
+
+    public double getDampingFactor() {
+        return dampingFactor;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    /** The ranks and how the iteration ended. */
+    public static final class Result {
+        private final Topology topology;
+        private final double[] ranks;
+        private final int iterations;
+        private final double residual;
+        private final boolean converged;
+
+        Result(Topology topology, double[] ranks, int iterations, double residual, boolean converged) {
+            this.topology = topology;
+            this.ranks = ranks;
+            this.iterations = iterations;
+            this.residual = residual;
+            this.converged = converged;
+        }
+
+        public int getIterations() { return iterations; }
+        /** @return The L1 change made by the last iteration. */
+        public double getResidual() { return residual; }
+        public boolean isConverged() { return converged; }
+
+        /** @return The rank of a node, or 0 if there is no such node. */
+        public double rankOf(String id) {
+            int v = topology.indexOf(id);
+            return v < 0 ? 0 : ranks[v];
+        }
+
+        /** @return The ranks by node id; they sum to 1. */
+        public Map<String, Double> getRanks() {
+            return toMap(1.0);
+        }
+
+        /** @return The ranks scaled so the highest is 10, for display. */
+        public Map<String, Double> getScores() {
+            double max = 0;
+            for (double r : ranks) max = Math.max(max, r);
+            return toMap(max > 0 ? 10.0 / max : 0);
+        }
+
+        private Map<String, Double> toMap(double scale) {
+            Map<String, Double> map = new HashMap<>(ranks.length * 4 / 3 + 1);
+            for (int v = 0; v < ranks.length; v++) map.put(topology.idOf(v), ranks[v] * scale);
+            return map;
+        }
+    }
+
+    /**
+     * Runs on {@code pool}; the calling thread takes part in the work.
+     */
+    public Result run(Topology t, ForkJoinPool pool) {
+        int n = t.size();
+        if (n == 0) return new Result(t, new double[0], 0, 0, true);
+        double[] jump = jumpVector(t);
+        double[] ranks = Arrays.copyOf(jump, n);
+        double[] next = new double[n];
+        double[] shares = new double[n];
+        int[] bounds = ranges(t, pool.getParallelism() * RANGES_PER_THREAD);
+
+        int iterations = 0;
+        double residual = Double.POSITIVE_INFINITY;
+        while (iterations < maxIterations && residual >= tolerance) {
+            double[] current = ranks;
+            double[] out = next;
+            double dangling = pool.invoke(new RangeTask(bounds, 0, bounds.length - 1, (lo, hi) -> {
+                double sum = 0;
+                for (int v = lo; v < hi; v++) {
+                    int degree = t.outOffsets[v + 1] - t.outOffsets[v];
+                    if (degree == 0) {
+                        shares[v] = 0;
+                        sum += current[v];
+                    } else {
+                        shares[v] = current[v] / degree;
+                    }
+                }
+                return sum;
+            }));
+            double d = dampingFactor;
+            residual = pool.invoke(new RangeTask(bounds, 0, bounds.length - 1, (lo, hi) -> {
+                double change = 0;
+                for (int v = lo; v < hi; v++) {
+                    double sum = 0;
+                    for (int e = t.inOffsets[v]; e < t.inOffsets[v + 1]; e++) sum += shares[t.sources[e]];
+                    double r = (1 - d) * jump[v] + d * (sum + dangling * jump[v]);
+                    change += Math.abs(r - current[v]);
+                    out[v] = r;
+                }
+                return change;
+            }));
+            ranks = out;
+            next = current;
+            iterations++;
+        }
+        return new Result(t, ranks, iterations, residual, residual < tolerance);
+    }
+
+    /** @return The personalization vector, normalized to sum to 1. */
+    private double[] jumpVector(Topology t) {
+        int n = t.size();
+        double[] p = new double[n];
+        double total = 0;
+        if (personalization != null) {
+            for (Map.Entry<String, Double> e : personalization.entrySet()) {
+                int v = t.indexOf(e.getKey());
+                if (v < 0 || e.getValue() == null) continue;
+                if (e.getValue() < 0) throw new IllegalArgumentException("Personalization weights must not be negative");
+                p[v] += e.getValue();
+                total += e.getValue();
+            }
+        }
+        if (total <= 0) {
+            Arrays.fill(p, 1.0 / n);
+            return p;
+        }
+        for (int v = 0; v < n; v++) p[v] /= total;
+        return p;
+    }
+
+    /**
+     * Splits the nodes into at most {@code count} ranges of about equal work.
+     * @return The range bounds: range {@code i} is {@code [bounds[i], bounds[i + 1])}.
+     */
+    private static int[] ranges(Topology t, int count) {
+        int n = t.size();
+        long work = (long) n + t.edgeCount();
+        count = Math.max(1, Math.min(count, n));
+        int[] bounds = new int[count + 1];
+        int v = 0;
+        for (int i = 1; i < count; i++) {
+            long target = work * i / count;
+            while (v < n && (long) v + t.inOffsets[v] < target) v++;
+            bounds[i] = v;
+        }
+        bounds[count] = n;
+        return bounds;
+    }
+
+    @FunctionalInterface
+    private interface RangeSum {
+        double apply(int from, int to);
+    }
+
+    /** Sums {@link RangeSum} over ranges {@code [lo, hi)} of the bounds, splitting in halves. */
+    private static final class RangeTask extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] bounds;
+        private final int lo;
+        private final int hi;
+        private final RangeSum body;
+
+        RangeTask(int[] bounds, int lo, int hi, RangeSum body) {
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
+            this.body = body;
+        }
+
+        @Override
+        protected Double compute() {
+            if (hi - lo == 1) return body.apply(bounds[lo], bounds[hi]);
+            int mid = (lo + hi) >>> 1;
+            RangeTask left = new RangeTask(bounds, lo, mid, body);
+            left.fork();
+            double right = new RangeTask(bounds, mid, hi, body).compute();
+            return left.join() + right;
+        }
+    }
+}
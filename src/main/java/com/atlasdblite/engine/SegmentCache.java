@@ -0,0 +1,366 @@
+package com.atlasdblite.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the resident segments within an estimated heap budget using the 2Q replacement policy.
+ * <ul>
+ *   <li><b>A1in</b> — FIFO of segments seen once recently, capped at a quarter of the budget.</li>
+ *   <li><b>Am</b> — LRU of segments that were accessed again after leaving A1in.</li>
+ *   <li><b>A1out</b> — ghost list remembering (without data) what was recently pushed out of A1in.</li>
+ * </ul>
+ * A segment enters Am only when it is requested while remembered in A1out, so a one-off pass
+ * over every shard cycles through A1in and leaves the hot set in Am alone. Scan accesses go one
+ * step further: they never reorder resident segments and leave no ghost behind.
+ * <p>
+ * A segment is charged what it weighed the last time it was touched or recharged. A clean victim
+ * is dropped on the spot unless a checkpoint is saving it; that one, and every dirty victim, is
+ * handed to a background write-back thread, so a caller never waits for another shard's save.
+ * <p>
+ * Hits on resident segments do not take the policy lock. They are recorded in one of several
+ * striped, lossy ring buffers and replayed in batches by whichever thread finds a buffer full and
+ * wins a {@code tryLock}. Recording a hit is a lock-free map lookup plus one array store; when a
+ * buffer overflows the oldest accesses are simply dropped, which only makes recency a sample.
+ */
+class SegmentCache {
+    private static final int STRIPES = stripeCount();
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+    /** Ghosts hold no data, and a database has few segments, so A1out can remember generously. */
+    private static final int MAX_GHOSTS = 1024;
+
+    private final LinkedHashMap<DataSegment, Entry> a1in = new LinkedHashMap<>();
+    private final LinkedHashMap<DataSegment, Entry> am = new LinkedHashMap<>();
+    private final LinkedHashSet<DataSegment> a1out = new LinkedHashSet<>();
+    /** Lock-free view of which segments are resident, read by the hit path. */
+    private final Map<DataSegment, Entry> resident = new ConcurrentHashMap<>();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[STRIPES];
+    /** Guards the queues and counters; {@code synchronized} is not used so drains can {@code tryLock}. */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Consumer<DataSegment> afterEviction;
+    private final ExecutorService writeBack = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "atlas-writeback");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private long budget;
+    private long charged;
+    private long a1inCharged;
+
+    private static final class Entry {
+        long size;
+        boolean scanned;
+    }
+
+    /** A ring of recent hits. Slots are overwritten when the drain falls behind. */
+    private static final class ReadBuffer {
+        final AtomicReferenceArray<DataSegment> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        final AtomicInteger writes = new AtomicInteger();
+    }
+
+    private static int stripeCount() {
+        int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+        return Math.max(1, Math.min(n, 64));
+    }
+
+    /**
+     * @param budget The heap budget in bytes.
+     * @param afterEviction Called once a victim has been unloaded, e.g. to schedule compaction.
+     */
+    SegmentCache(long budget, Consumer<DataSegment> afterEviction) {
+        this.budget = budget;
+        this.afterEviction = afterEviction;
+        for (int i = 0; i < STRIPES; i++) readBuffers[i] = new ReadBuffer();
+    }
+
+    /**
+     * Records a point access and evicts others until the budget is met.
+     * The touched segment itself is never evicted.
+     */
+    void touch(DataSegment segment) {
+        if (resident.containsKey(segment)) {
+            recordHit(segment);
+        } else {
+            access(segment, false);
+        }
+    }
+
+    private void recordHit(DataSegment segment) {
+        ReadBuffer buffer = readBuffers[stripe()];
+        int n = buffer.writes.getAndIncrement();
+        buffer.slots.lazySet(n & BUFFER_MASK, segment);
+        if ((n & BUFFER_MASK) == BUFFER_MASK && lock.tryLock()) {
+            List<DataSegment> victims;
+            try {
+                drainReadBuffers();
+                victims = evict(segment);
+            } finally { lock.unlock(); }
+            for (DataSegment victim : victims) release(victim);
+        }
+    }
+
+    private static int stripe() {
+        // Fibonacci hashing spreads sequential thread ids across the stripes.
+        return (int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 40) & (STRIPES - 1);
+    }
+
+    /** Replays the buffered hits in stripe order. Called with the lock held. */
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            for (int i = 0; i < BUFFER_SIZE; i++) {
+                DataSegment segment = buffer.slots.getAndSet(i, null);
+                if (segment != null) hit(segment, false);
+            }
+        }
+    }
+
+    /**
+     * Records an access made by a full scan. A resident segment keeps its position; a new one
+     * is admitted to A1in but leaves no ghost when it falls out, so scans cannot promote anything.
+     */
+    void touchForScan(DataSegment segment) {
+        access(segment, true);
+    }
+
+    /**
+     * Updates a segment's charge once a scan is done with it, without counting it as an access.
+     * The scan no longer needs the segment, so it is not protected and may be the one evicted.
+     */
+    void recharge(DataSegment segment) {
+        List<DataSegment> victims;
+        lock.lock();
+        try {
+            boolean inA1in = a1in.containsKey(segment);
+            Entry e = inA1in ? a1in.get(segment) : am.get(segment);
+            if (e == null) return;
+            resize(e, segment.estimatedBytes(), inA1in);
+            victims = evict(null);
+        } finally { lock.unlock(); }
+        for (DataSegment victim : victims) release(victim);
+    }
+
+    private void access(DataSegment segment, boolean scan) {
+        List<DataSegment> victims;
+        lock.lock();
+        try {
+            drainReadBuffers();
+            if (!hit(segment, scan)) {
+                Entry e = new Entry();
+                e.scanned = scan;
+                if (!scan && a1out.remove(segment)) {
+                    am.put(segment, e);
+                    resize(e, segment.estimatedBytes(), false);
+                } else {
+                    a1in.put(segment, e);
+                    resize(e, segment.estimatedBytes(), true);
+                }
+                resident.put(segment, e);
+            }
+            victims = evict(segment);
+        } finally { lock.unlock(); }
+        for (DataSegment victim : victims) release(victim);
+    }
+
+    /**
+     * Applies an access to a resident segment. Called with the lock held.
+     * @return {@code false} if the segment is not resident (any more).
+     */
+    private boolean hit(DataSegment segment, boolean scan) {
+        long size = segment.estimatedBytes();
+        Entry e;
+        if ((e = am.get(segment)) != null) {
+            if (!scan) am.put(segment, am.remove(segment)); // Move to the MRU end.
+            resize(e, size, false);
+        } else if ((e = a1in.get(segment)) != null) {
+            if (!scan) e.scanned = false;
+            resize(e, size, true);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private void resize(Entry e, long size, boolean inA1in) {
+        charged += size - e.size;
+        if (inA1in) a1inCharged += size - e.size;
+        e.size = size;
+    }
+
+    void setBudget(long bytes) {
+        lock.lock();
+        try { this.budget = bytes; } finally { lock.unlock(); }
+    }
+
+    long getBudget() {
+        lock.lock();
+        try { return budget; } finally { lock.unlock(); }
+    }
+
+    /** Replays pending hits first, so the figure reflects the latest sizes. */
+    long getChargedBytes() {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            return charged;
+        } finally { lock.unlock(); }
+    }
+
+    boolean contains(DataSegment segment) {
+        return resident.containsKey(segment);
+    }
+
+    /**
+     * @return {@code true} if the segment has earned a place in the protected (Am) queue.
+     */
+    boolean isHot(DataSegment segment) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            return am.containsKey(segment);
+        } finally { lock.unlock(); }
+    }
+
+    List<DataSegment> residents() {
+        lock.lock();
+        try {
+            List<DataSegment> all = new ArrayList<>(am.keySet());
+            all.addAll(a1in.keySet());
+            return all;
+        } finally { lock.unlock(); }
+    }
+
+    /** Forgets a segment without unloading it. */
+    void remove(DataSegment segment) {
+        lock.lock();
+        try {
+            Entry e = a1in.remove(segment);
+            if (e != null) a1inCharged -= e.size;
+            else e = am.remove(segment);
+            if (e != null) charged -= e.size;
+            a1out.remove(segment);
+            resident.remove(segment);
+        } finally { lock.unlock(); }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            a1in.clear();
+            am.clear();
+            a1out.clear();
+            resident.clear();
+            charged = 0;
+            a1inCharged = 0;
+        } finally { lock.unlock(); }
+    }
+
+    /**
+     * Blocks until every write-back handed off so far has finished.
+     */
+    void awaitWriteBack() {
+        Future<?> barrier = writeBack.submit(() -> {});
+        try {
+            barrier.get();
+        } catch (Exception e) {
+            System.err.println("Write-back wait interrupted: " + e.getMessage());
+        }
+    }
+
+    void shutdown() {
+        writeBack.shutdown();
+    }
+
+    /** Stops the write-back thread without running the unloads still queued, and waits for it. */
+    void shutdownNow() throws InterruptedException {
+        writeBack.shutdownNow();
+        writeBack.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 2Q reclaim: while A1in holds more than its share, its oldest entry goes (and is remembered
+     * in A1out); otherwise the least recently used entry of Am goes.
+     */
+    private List<DataSegment> evict(DataSegment keep) {
+        List<DataSegment> victims = new ArrayList<>();
+        while (charged > budget) {
+            DataSegment victim = null;
+            if (a1inCharged > budget / 4) victim = pollFirst(a1in, keep, true);
+            if (victim == null) victim = pollFirst(am, keep, false);
+            if (victim == null) victim = pollFirst(a1in, keep, true);
+            if (victim == null) break;
+            victims.add(victim);
+        }
+        return victims;
+    }
+
+    private DataSegment pollFirst(LinkedHashMap<DataSegment, Entry> queue, DataSegment keep, boolean fromA1in) {
+        Iterator<Map.Entry<DataSegment, Entry>> it = queue.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<DataSegment, Entry> e = it.next();
+            if (e.getKey() == keep) continue;
+            it.remove();
+            resident.remove(e.getKey());
+            charged -= e.getValue().size;
+            if (fromA1in) {
+                a1inCharged -= e.getValue().size;
+                if (!e.getValue().scanned) remember(e.getKey());
+            }
+            return e.getKey();
+        }
+        return null;
+    }
+
+    private void remember(DataSegment segment) {
+        a1out.add(segment);
+        Iterator<DataSegment> it = a1out.iterator();
+        while (a1out.size() > MAX_GHOSTS && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void release(DataSegment victim) {
+        if (victim.isDirty() || !victim.tryUnloadClean(() -> !contains(victim)))
+            writeBack.submit(() -> unload(victim));
+        else
+            unloaded(victim);
+    }
+
+    private void unload(DataSegment victim) {
+        victim.unload(() -> !contains(victim)); // Skipped if touched again since it was evicted.
+        unloaded(victim);
+    }
+
+    /**
+     * Settles the charge once a victim has been dealt with. Residency is checked under the
+     * segment's locks, but a reader can still re-admit it between that check and the image being
+     * dropped; its entry was then charged for an image that is gone, so it is charged anew.
+     */
+    private void unloaded(DataSegment victim) {
+        boolean readmitted;
+        lock.lock();
+        try {
+            boolean inA1in = a1in.containsKey(victim);
+            Entry e = inA1in ? a1in.get(victim) : am.get(victim);
+            readmitted = e != null;
+            if (readmitted) resize(e, victim.estimatedBytes(), inA1in);
+        } finally { lock.unlock(); }
+        if (!readmitted) afterEviction.accept(victim);
+    }
+}
@@ -0,0 +1,181 @@
+package com.atlasdblite.engine;
+
+import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The materialized contents of a shard: its nodes and the relations they own.
+ * Relations are held as adjacency lists keyed by source id, so expanding a node
+ * costs O(degree) rather than a scan of every edge in the shard. The shard also keeps
+ * the reverse side for the nodes it owns: which source ids have edges pointing at them,
+ * wherever those sources live, so deleting a node only visits the shards involved.
+ * Every mutation is idempotent (relations are keyed by source, target and type),
+ * so a run can be replayed on top of a base that already contains it without
+ * producing duplicates. Not thread-safe; callers hold the owning segment's lock.
+ */
+class SegmentImage {
+    // Rough per-entry heap cost, including the map entries and strings that hold them.
+    private static final long NODE_BYTES = 320;
+    private static final long RELATION_BYTES = 160;
+    private static final long INCOMING_BYTES = 120;
+
+    final Map<String, Node> nodes = new HashMap<>();
+    final Map<String, List<Relation>> outgoing = new HashMap<>();
+    final Map<String, Set<String>> incoming = new HashMap<>();
+    private int relationCount;
+    /** The WAL position this image is known to reflect: every operation logged at or below it is included. */
+    long lsn;
+
+    Node putNode(Node node) {
+        return nodes.put(node.getId(), node);
+    }
+
+    /**
+     * Removes a node, its outgoing relations and its incoming index entry.
+     * Relations are dropped even if the node is already gone so replays stay idempotent.
+     */
+    Node removeNode(String id) {
+        Node removed = nodes.remove(id);
+        incoming.remove(id);
+        List<Relation> edges = outgoing.remove(id);
+        if (edges != null) relationCount -= edges.size();
+        return removed;
+    }
+
+    /**
+     * Adds a relation, replacing an existing one with the same source, target and type.
+     * @return {@code true} if the relation did not exist before.
+     */
+    boolean addRelation(Relation relation) {
+        List<Relation> edges = outgoing.computeIfAbsent(relation.getSourceId(), k -> new ArrayList<>(2));
+        for (int i = 0; i < edges.size(); i++) {
+            if (matches(edges.get(i), relation.getTargetId(), relation.getType())) {
+                edges.set(i, relation);
+                return false;
+            }
+        }
+        edges.add(relation);
+        relationCount++;
+        return true;
+    }
+
+    /**
+     * Appends a relation read from a base file, which never holds duplicates.
+     */
+    void appendRelation(Relation relation) {
+        outgoing.computeIfAbsent(relation.getSourceId(), k -> new ArrayList<>(2)).add(relation);
+        relationCount++;
+    }
+
+    boolean removeRelation(String sourceId, String targetId, String type) {
+        List<Relation> edges = outgoing.get(sourceId);
+        if (edges == null) return false;
+        boolean removed = edges.removeIf(r -> matches(r, targetId, type));
+        if (removed) {
+            relationCount--;
+            if (edges.isEmpty()) outgoing.remove(sourceId);
+        }
+        return removed;
+    }
+
+    boolean removeRelationsTo(String targetId) {
+        boolean removed = false;
+        for (Iterator<List<Relation>> it = outgoing.values().iterator(); it.hasNext(); ) {
+            List<Relation> edges = it.next();
+            int before = edges.size();
+            if (edges.removeIf(r -> r.getTargetId().equals(targetId))) {
+                relationCount -= before - edges.size();
+                removed = true;
+                if (edges.isEmpty()) it.remove();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Drops every relation from {@code sourceId} to {@code targetId}, whatever its type.
+     */
+    boolean removeRelationsBetween(String sourceId, String targetId) {
+        List<Relation> edges = outgoing.get(sourceId);
+        if (edges == null) return false;
+        int before = edges.size();
+        if (!edges.removeIf(r -> r.getTargetId().equals(targetId))) return false;
+        relationCount -= before - edges.size();
+        if (edges.isEmpty()) outgoing.remove(sourceId);
+        return true;
+    }
+
+    boolean hasRelation(String sourceId, String targetId) {
+        for (Relation r : relationsFrom(sourceId))
+            if (r.getTargetId().equals(targetId)) return true;
+        return false;
+    }
+
+    boolean addIncoming(String targetId, String sourceId) {
+        return incoming.computeIfAbsent(targetId, k -> new HashSet<>(2)).add(sourceId);
+    }
+
+    boolean removeIncoming(String targetId, String sourceId) {
+        Set<String> sources = incoming.get(targetId);
+        if (sources == null || !sources.remove(sourceId)) return false;
+        if (sources.isEmpty()) incoming.remove(targetId);
+        return true;
+    }
+
+    /**
+     * @return The ids of the nodes with at least one edge to {@code targetId}; a read-only view.
+     */
+    Set<String> incomingTo(String targetId) {
+        Set<String> sources = incoming.get(targetId);
+        return sources == null ? Collections.emptySet() : Collections.unmodifiableSet(sources);
+    }
+
+    /**
+     * @return The relations owned by {@code sourceId}; a read-only view, empty if there are none.
+     */
+    List<Relation> relationsFrom(String sourceId) {
+        List<Relation> edges = outgoing.get(sourceId);
+        return edges == null ? Collections.emptyList() : Collections.unmodifiableList(edges);
+    }
+
+    /**
+     * @return A copy of every relation in the shard, grouped by source.
+     */
+    List<Relation> allRelations() {
+        List<Relation> all = new ArrayList<>(relationCount);
+        for (List<Relation> edges : outgoing.values()) all.addAll(edges);
+        return all;
+    }
+
+    int relationCount() {
+        return relationCount;
+    }
+
+    /**
+     * @return An estimate of the heap held by this image, cheap enough to call on every access.
+     */
+    long estimatedBytes() {
+        return nodes.size() * NODE_BYTES + relationCount * RELATION_BYTES + incoming.size() * INCOMING_BYTES;
+    }
+
+    void clear() {
+        nodes.clear();
+        outgoing.clear();
+        incoming.clear();
+        relationCount = 0;
+        lsn = 0;
+    }
+
+    private static boolean matches(Relation r, String targetId, String type) {
+        return r.getTargetId().equals(targetId) && r.getType().equalsIgnoreCase(type);
+    }
+}
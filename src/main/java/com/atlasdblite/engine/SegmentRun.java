@@ -0,0 +1,133 @@
+package com.atlasdblite.engine;
+
+import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable batch of mutations flushed from a {@link DataSegment}.
+ * Runs are appended next to the shard's base file and replayed in sequence order on load;
+ * the background compactor folds them back into the base and drops their tombstones.
+ */
+final class SegmentRun {
+    static final byte PUT_NODE = 1;
+    static final byte REMOVE_NODE = 2;
+    static final byte ADD_RELATION = 3;
+    static final byte REMOVE_RELATION = 4;
+    static final byte REMOVE_RELATIONS_TO = 5;
+    static final byte REMOVE_RELATIONS_BETWEEN = 6;
+    static final byte ADD_INCOMING = 7;
+    static final byte REMOVE_INCOMING = 8;
+    static final byte PERSISTED_LSN = 9;
+
+    private SegmentRun() {}
+
+    static void write(DataOutputStream out, long seq, List<Record> records) throws IOException {
+        out.writeLong(seq);
+        out.writeInt(records.size());
+        for (Record r : records) r.writeTo(out);
+    }
+
+    static List<Record> read(DataInput in) throws IOException {
+        in.readLong();
+        int count = in.readInt();
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) records.add(Record.readFrom(in));
+        return records;
+    }
+
+    /**
+     * A single logged mutation. Node and relation payloads reuse the model's binary serialization.
+     * Edge-pair ops carry the target in {@code key} and the source in {@code source}.
+     * A {@link #PERSISTED_LSN} record closes a run and carries the WAL position it is complete up to.
+     */
+    static final class Record {
+        final byte op;
+        final Node node;
+        final Relation relation;
+        final String key;
+        final String source;
+        final long lsn;
+
+        private Record(byte op, Node node, Relation relation, String key) {
+            this(op, node, relation, key, null);
+        }
+
+        private Record(byte op, Node node, Relation relation, String key, String source) {
+            this(op, node, relation, key, source, 0);
+        }
+
+        private Record(byte op, Node node, Relation relation, String key, String source, long lsn) {
+            this.op = op;
+            this.node = node;
+            this.relation = relation;
+            this.key = key;
+            this.source = source;
+            this.lsn = lsn;
+        }
+
+        static Record putNode(Node n) { return new Record(PUT_NODE, n, null, null); }
+        static Record removeNode(String id) { return new Record(REMOVE_NODE, null, null, id); }
+        static Record addRelation(Relation r) { return new Record(ADD_RELATION, null, r, null); }
+        static Record removeRelation(String s, String t, String type) {
+            return new Record(REMOVE_RELATION, null, new Relation(s, t, type), null);
+        }
+        static Record removeRelationsTo(String targetId) { return new Record(REMOVE_RELATIONS_TO, null, null, targetId); }
+        static Record removeRelationsBetween(String s, String t) { return new Record(REMOVE_RELATIONS_BETWEEN, null, null, t, s); }
+        static Record addIncoming(String t, String s) { return new Record(ADD_INCOMING, null, null, t, s); }
+        static Record removeIncoming(String t, String s) { return new Record(REMOVE_INCOMING, null, null, t, s); }
+        static Record persistedLsn(long lsn) { return new Record(PERSISTED_LSN, null, null, null, null, lsn); }
+
+        void applyTo(SegmentImage image) {
+            switch (op) {
+                case PUT_NODE: image.putNode(node); break;
+                case REMOVE_NODE: image.removeNode(key); break;
+                case ADD_RELATION: image.addRelation(relation); break;
+                case REMOVE_RELATION:
+                    image.removeRelation(relation.getSourceId(), relation.getTargetId(), relation.getType());
+                    break;
+                case REMOVE_RELATIONS_TO: image.removeRelationsTo(key); break;
+                case REMOVE_RELATIONS_BETWEEN: image.removeRelationsBetween(source, key); break;
+                case ADD_INCOMING: image.addIncoming(key, source); break;
+                case REMOVE_INCOMING: image.removeIncoming(key, source); break;
+                case PERSISTED_LSN: image.lsn = Math.max(image.lsn, lsn); break;
+                default: throw new IllegalStateException("Unknown run op: " + op);
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(op);
+            switch (op) {
+                case PUT_NODE: node.writeTo(out); break;
+                case ADD_RELATION:
+                case REMOVE_RELATION: relation.writeTo(out); break;
+                case REMOVE_RELATIONS_BETWEEN:
+                case ADD_INCOMING:
+                case REMOVE_INCOMING: out.writeUTF(key); out.writeUTF(source); break;
+                case PERSISTED_LSN: out.writeLong(lsn); break;
+                default: out.writeUTF(key);
+            }
+        }
+
+        static Record readFrom(DataInput in) throws IOException {
+            byte op = in.readByte();
+            switch (op) {
+                case PUT_NODE: return new Record(op, Node.readFrom(in), null, null);
+                case ADD_RELATION:
+                case REMOVE_RELATION: return new Record(op, null, Relation.readFrom(in), null);
+                case REMOVE_NODE:
+                case REMOVE_RELATIONS_TO: return new Record(op, null, null, in.readUTF());
+                case REMOVE_RELATIONS_BETWEEN:
+                case ADD_INCOMING:
+                case REMOVE_INCOMING: return new Record(op, null, null, in.readUTF(), in.readUTF());
+                case PERSISTED_LSN: return new Record(op, null, null, null, null, in.readLong());
+                default: throw new IOException("Unknown run op: " + op);
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.atlasdblite.engine;
+
+import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
+import com.atlasdblite.security.CryptoManager;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns the on-disk layout of a single shard: one base file ({@code <name>.dat})
+ * plus zero or more immutable run files ({@code <name>.<seq>.run}), where the name
+ * is {@code part_N} (or {@code part_g<generation>_N} once the database has been resharded).
+ * <p>
+ * Flushing appends a new run, so checkpoint cost scales with the number of changes
+ * rather than the size of the shard. Compaction merges the base with the runs that
+ * existed when it started, atomically replaces the base and only then deletes those runs.
+ * A crash in between is harmless because run replay is idempotent.
+ * <p>
+ * Base files use the {@link BlockFile} layout ({@code SEG_V3}): independently sealed blocks
+ * plus an index, so a single node can be read without decrypting the whole shard. Runs use the
+ * {@code RUN_V2} layout: a plaintext magic followed by one AES-GCM sealed payload, streamed
+ * straight from the serializer into the cipher and read back through a private memory mapping.
+ * A base file from before the block layout ({@code SEG_V1} Base64 text) is still readable
+ * and is rewritten by the next compaction.
+ * <p>
+ * Runs and bases also record the WAL position (LSN) the shard is persisted up to, so recovery
+ * can skip the log records this shard already contains.
+ */
+class SegmentStore {
+    private static final byte[] RUN_MAGIC = "RUN_V2".getBytes(StandardCharsets.US_ASCII);
+    private static final String LEGACY_BASE_HEADER = "SEG_V1";
+    private static final String RUN_SUFFIX = ".run";
+
+    private final String name;
+    private final File dir;
+    private final Path basePath;
+    private final CryptoManager crypto;
+    private final ReentrantLock fileLock = new ReentrantLock();
+
+    private List<Long> runs;
+    private long nextSeq = 1;
+    private volatile BlockFile.Reader baseReader;
+    private volatile boolean hasLegacyFiles = false;
+
+    SegmentStore(String name, String rootDir, CryptoManager crypto) {
+        this.name = name;
+        this.dir = new File(rootDir);
+        this.basePath = Paths.get(rootDir, name + ".dat");
+        this.crypto = crypto;
+    }
+
+    /**
+     * Reads the base file and replays every run on top of it.
+     */
+    SegmentImage load() throws Exception {
+        fileLock.lock();
+        try {
+            return readImage(runs());
+        } finally { fileLock.unlock(); }
+    }
+
+    /**
+     * Persists the given mutations as a new immutable run. Callers close the batch with a
+     * {@link SegmentRun.Record#persistedLsn} record when they know the WAL position it covers.
+     */
+    void appendRun(List<SegmentRun.Record> records) throws Exception {
+        fileLock.lock();
+        try {
+            List<Long> existing = runs();
+            long seq = nextSeq++;
+            Path target = runPath(seq);
+            publish(writeTemp(target, RUN_MAGIC, out -> SegmentRun.write(out, seq, records)), target);
+            existing.add(seq);
+        } finally { fileLock.unlock(); }
+    }
+
+    /**
+     * Reads a single node without materializing the shard. Runs are consulted newest first;
+     * if none of them touched the node, only the base block whose key range covers it is decrypted.
+     * @return The node, or {@code null} if it does not exist on disk.
+     */
+    Node readNode(String nodeId) throws Exception {
+        fileLock.lock();
+        try {
+            List<Long> seqs = runs();
+            for (int i = seqs.size() - 1; i >= 0; i--) {
+                List<SegmentRun.Record> records = SegmentRun.read(openRun(runPath(seqs.get(i))));
+                for (int j = records.size() - 1; j >= 0; j--) {
+                    SegmentRun.Record r = records.get(j);
+                    if (r.op == SegmentRun.PUT_NODE && r.node.getId().equals(nodeId)) return r.node;
+                    if (r.op == SegmentRun.REMOVE_NODE && r.key.equals(nodeId)) return null;
+                }
+            }
+            BlockFile.Reader reader = baseReader();
+            if (reader != null) return reader.findNode(nodeId);
+            return Files.exists(basePath) ? readImage(new ArrayList<>()).nodes.get(nodeId) : null;
+        } finally { fileLock.unlock(); }
+    }
+
+    /**
+     * Hands every file of the shard to {@code visitor}. Compaction cannot replace the base or
+     * delete a run meanwhile, so the files form a consistent copy of the shard.
+     */
+    void forEachFile(FileVisitor visitor) throws IOException {
+        fileLock.lock();
+        try {
+            if (Files.exists(basePath)) visitor.visit(basePath);
+            for (Long seq : runs()) visitor.visit(runPath(seq));
+        } finally { fileLock.unlock(); }
+    }
+
+    int runCount() {
+        fileLock.lock();
+        try { return runs().size(); } finally { fileLock.unlock(); }
+    }
+
+    /**
+     * @return {@code true} if enough runs have accumulated, or if a legacy file still needs migrating.
+     */
+    boolean needsCompaction(int runThreshold) {
+        return hasLegacyFiles || runCount() >= runThreshold;
+    }
+
+    /**
+     * Folds all current runs into a new base file. Runs appended while the merge is in
+     * progress are left untouched and will be picked up by the next compaction.
+     * @return The number of runs that were merged.
+     */
+    int compact() throws Exception {
+        List<Long> merged;
+        fileLock.lock();
+        try { merged = new ArrayList<>(runs()); } finally { fileLock.unlock(); }
+        if (merged.isEmpty() && !hasLegacyFiles) return 0;
+
+        // Only the compactor deletes runs or replaces the base, so these reads need no lock.
+        SegmentImage image = readImage(merged);
+        List<Node> nodes = new ArrayList<>(image.nodes.values());
+        nodes.sort(Comparator.comparing(Node::getId));
+        List<String> sources = new ArrayList<>(image.outgoing.keySet());
+        sources.sort(null);
+
+        Path temp = basePath.resolveSibling(basePath.getFileName() + ".tmp");
+        try (BlockFile.Writer writer = new BlockFile.Writer(temp, crypto)) {
+            for (Node n : nodes) writer.append(BlockFile.NODES, n.getId(), n::writeTo);
+            for (String source : sources)
+                for (Relation r : image.outgoing.get(source)) writer.append(BlockFile.RELATIONS, source, r::writeTo);
+            List<String> targets = new ArrayList<>(image.incoming.keySet());
+            targets.sort(null);
+            for (String target : targets) {
+                Set<String> from = image.incoming.get(target);
+                writer.append(BlockFile.INCOMING, target, out -> {
+                    out.writeUTF(target);
+                    out.writeInt(from.size());
+                    for (String s : from) out.writeUTF(s);
+                });
+            }
+            if (image.lsn > 0) writer.append(BlockFile.META, "lsn", out -> out.writeLong(image.lsn));
+        }
+
+        fileLock.lock();
+        try {
+            publish(temp, basePath);
+            baseReader = null;
+            for (Long seq : merged) Files.deleteIfExists(runPath(seq));
+            runs.removeAll(merged);
+            hasLegacyFiles = false;
+        } finally { fileLock.unlock(); }
+        return merged.size();
+    }
+
+    // --- File Helpers ---
+
+    private SegmentImage readImage(List<Long> seqs) throws Exception {
+        SegmentImage image = new SegmentImage();
+        BlockFile.Reader reader = baseReader();
+        if (reader != null) {
+            reader.scan(BlockFile.NODES, (in, count) -> {
+                for (int i = 0; i < count; i++) image.putNode(Node.readFrom(in));
+            });
+            reader.scan(BlockFile.RELATIONS, (in, count) -> {
+                for (int i = 0; i < count; i++) image.appendRelation(Relation.readFrom(in));
+            });
+            reader.scan(BlockFile.INCOMING, (in, count) -> {
+                for (int i = 0; i < count; i++) {
+                    String target = in.readUTF();
+                    int n = in.readInt();
+                    for (int j = 0; j < n; j++) image.addIncoming(target, in.readUTF());
+                }
+            });
+            reader.scan(BlockFile.META, (in, count) -> image.lsn = in.readLong());
+        } else if (Files.exists(basePath)) {
+            hasLegacyFiles = true;
+            DataInput in = openLegacyBase(basePath);
+            int nc = in.readInt();
+            for (int i = 0; i < nc; i++) image.putNode(Node.readFrom(in));
+            int rc = in.readInt();
+            for (int i = 0; i < rc; i++) image.appendRelation(Relation.readFrom(in));
+        }
+        for (Long seq : seqs) {
+            for (SegmentRun.Record r : SegmentRun.read(openRun(runPath(seq))))
+                r.applyTo(image);
+        }
+        return image;
+    }
+
+    /**
+     * Opens (and caches) the reader for a block-format base file. The mapping stays valid after
+     * compaction replaces the file, so a reader handed out earlier can finish its work.
+     * @return The reader, or {@code null} if there is no base or it predates the block layout.
+     */
+    private BlockFile.Reader baseReader() throws Exception {
+        BlockFile.Reader reader = baseReader;
+        if (reader == null && Files.exists(basePath) && BlockFile.isBlockFile(basePath)) {
+            reader = new BlockFile.Reader(basePath, crypto);
+            baseReader = reader;
+        }
+        return reader;
+    }
+
+    /** Lazily discovers run files left by previous sessions. Caller holds {@link #fileLock}. */
+    private List<Long> runs() {
+        if (runs != null) return runs;
+        runs = new ArrayList<>();
+        String prefix = name + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(RUN_SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                String seq = f.getName().substring(prefix.length(), f.getName().length() - RUN_SUFFIX.length());
+                try { runs.add(Long.parseLong(seq)); } catch (NumberFormatException ignored) {}
+            }
+        }
+        runs.sort(null);
+        if (!runs.isEmpty()) nextSeq = runs.get(runs.size() - 1) + 1;
+        return runs;
+    }
+
+    private Path runPath(long seq) {
+        return basePath.resolveSibling(name + "." + seq + RUN_SUFFIX);
+    }
+
+    /**
+     * Maps a run file and returns its decrypted payload. The payload is decrypted in place inside a
+     * private (copy-on-write) mapping, so the only copy of the plaintext lives in the page cache
+     * rather than on the Java heap.
+     */
+    private DataInput openRun(Path path) throws Exception {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.PRIVATE, 0, ch.size());
+            if (!startsWith(map, RUN_MAGIC)) throw new IOException("Bad Header: " + path.getFileName());
+            map.position(RUN_MAGIC.length);
+            return new ByteBufferInput(crypto.decryptInPlace(map.slice()));
+        }
+    }
+
+    /** Reads a base file of the original layout: Base64 text of the encrypted, Base64-encoded payload. */
+    @SuppressWarnings("deprecation")
+    private DataInput openLegacyBase(Path path) throws Exception {
+        byte[] fileBytes = Files.readAllBytes(path);
+        byte[] binaryData = Base64.getDecoder().decode(crypto.decrypt(new String(fileBytes)));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(binaryData));
+        if (!LEGACY_BASE_HEADER.equals(in.readUTF())) throw new IOException("Bad Header");
+        return in;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, byte[] magic) {
+        if (buf.remaining() < magic.length) return false;
+        for (int i = 0; i < magic.length; i++)
+            if (buf.get(i) != magic[i]) return false;
+        return true;
+    }
+
+    /**
+     * Streams a payload through the cipher into a .tmp file next to the target.
+     * Nothing is buffered beyond the stream buffers, so memory use does not grow with the shard.
+     */
+    private Path writeTemp(Path target, byte[] magic, PayloadWriter payload) throws IOException {
+        Path tempPath = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream raw = Files.newOutputStream(tempPath)) {
+            raw.write(magic);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(crypto.encryptingStream(raw)))) {
+                payload.writeTo(out);
+            }
+        }
+        return tempPath;
+    }
+
+    /** Atomically moves a completed .tmp file over its target. */
+    private static void publish(Path tempPath, Path target) throws IOException {
+        Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @FunctionalInterface
+    interface FileVisitor {
+        void visit(Path file) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface PayloadWriter {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+}
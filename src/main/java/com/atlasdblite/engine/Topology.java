@@ -0,0 +1,360 @@
+package com.atlasdblite.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable snapshot of the graph's structure in compressed sparse row (CSR) form, which
+ * the graph algorithms run over instead of node and relation objects.
+ * <p>
+ * Node ids are numbered {@code 0..size()-1} by a string-to-int dictionary. The out-edges of
+ * node {@code v} are {@code targets[outOffsets[v] .. outOffsets[v + 1])}, each with its relation
+ * type number in the parallel {@code edgeTypes}; the in-edges are
+ * {@code sources[inOffsets[v] .. inOffsets[v + 1])}. Relations whose source or target node does
+ * not exist are left out. A graph of {@code n} nodes and {@code m} edges takes about
+ * {@code 8n + 12m} bytes of arrays besides the id strings themselves.
+ * <p>
+ * {@link GraphEngine#getTopology()} builds one on demand and reuses it until the graph's
+ * structure changes.
+ */
+public final class Topology {
+    final int[] outOffsets;
+    final int[] targets;
+    final int[] edgeTypes;
+    final int[] inOffsets;
+    final int[] sources;
+
+    /** The engine's structure version this snapshot was built at. */
+    final long version;
+    private final Dictionary ids;
+    private final String[] types;
+    private final Map<String, Integer> typeIndex;
+    /** Edge weights by property key, see {@link #weights}. */
+    private final Map<String, double[]> weights = new ConcurrentHashMap<>();
+
+    private Topology(Builder b, long version) {
+        this.version = version;
+        this.ids = b.ids;
+        this.types = b.types.toArray(new String[0]);
+        this.typeIndex = b.typeIndex;
+        int n = ids.size();
+        int m = b.edges;
+
+        outOffsets = new int[n + 1];
+        inOffsets = new int[n + 1];
+        for (int e = 0; e < m; e++) {
+            outOffsets[b.from[e] + 1]++;
+            inOffsets[b.to[e] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            outOffsets[v + 1] += outOffsets[v];
+            inOffsets[v + 1] += inOffsets[v];
+        }
+        targets = new int[m];
+        edgeTypes = new int[m];
+        sources = new int[m];
+        int[] outNext = Arrays.copyOf(outOffsets, n);
+        int[] inNext = Arrays.copyOf(inOffsets, n);
+        for (int e = 0; e < m; e++) {
+            int at = outNext[b.from[e]]++;
+            targets[at] = b.to[e];
+            edgeTypes[at] = b.type[e];
+            sources[inNext[b.to[e]]++] = b.from[e];
+        }
+    }
+
+    /** @return The number of nodes. */
+    public int size() {
+        return ids.size();
+    }
+
+    /** @return The number of edges. */
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /** @return The dense number of a node, or -1 if there is no such node. */
+    public int indexOf(String id) {
+        return ids.find(id);
+    }
+
+    /** @return The id of node {@code v}. */
+    public String idOf(int v) {
+        return ids.key(v);
+    }
+
+    public int outDegree(int v) {
+        return outOffsets[v + 1] - outOffsets[v];
+    }
+
+    public int inDegree(int v) {
+        return inOffsets[v + 1] - inOffsets[v];
+    }
+
+    /** @return The number of a relation type (case-insensitive), or -1 if no edge has it. */
+    public int typeOf(String type) {
+        Integer t = typeIndex.get(type.toLowerCase());
+        return t == null ? -1 : t;
+    }
+
+    /** @return The name of relation type {@code t}, as first seen. */
+    public String typeName(int t) {
+        return types[t];
+    }
+
+    /**
+     * @return The position of the edge {@code source -> target} of the given type in
+     *         {@link #targets}, or -1 if there is none.
+     */
+    int edgeIndex(String source, String target, String type) {
+        int s = indexOf(source);
+        int t = indexOf(target);
+        int k = typeOf(type);
+        if (s < 0 || t < 0 || k < 0) return -1;
+        for (int e = outOffsets[s]; e < outOffsets[s + 1]; e++)
+            if (targets[e] == t && edgeTypes[e] == k) return e;
+        return -1;
+    }
+
+    /**
+     * @return The edge weights read from relation property {@code key}, indexed like
+     *         {@link #targets}, if they have been computed for this snapshot; otherwise {@code null}.
+     */
+    double[] weights(String key) {
+        return weights.get(key);
+    }
+
+    void putWeights(String key, double[] w) {
+        weights.putIfAbsent(key, w);
+    }
+
+    // --- Algorithms ---
+
+    /**
+     * Breadth-first search along out-edges.
+     * @return The nodes of a path with the fewest hops from {@code from} to {@code to}, both
+     *         included, or an empty array if there is none within {@code maxDepth} hops.
+     */
+    int[] shortestPath(int from, int to, int maxDepth) {
+        if (from == to) return new int[] { from };
+        int[] parent = new int[size()];
+        Arrays.fill(parent, -1);
+        parent[from] = from;
+        int[] queue = new int[size()];
+        int head = 0, tail = 0;
+        queue[tail++] = from;
+        for (int depth = 1; depth <= maxDepth && head < tail; depth++) {
+            int levelEnd = tail;
+            while (head < levelEnd) {
+                int v = queue[head++];
+                for (int e = outOffsets[v]; e < outOffsets[v + 1]; e++) {
+                    int w = targets[e];
+                    if (parent[w] >= 0) continue;
+                    parent[w] = v;
+                    if (w == to) return walkBack(parent, from, to);
+                    queue[tail++] = w;
+                }
+            }
+        }
+        return new int[0];
+    }
+
+    /**
+     * Dijkstra's algorithm along out-edges.
+     * @param w Non-negative edge weights, indexed like {@link #targets}.
+     * @param cost Receives the path's total weight in its first element.
+     * @return The nodes of the cheapest path from {@code from} to {@code to}, or an empty array if there is none.
+     */
+    int[] cheapestPath(int from, int to, double[] w, double[] cost) {
+        double[] dist = new double[size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        int[] parent = new int[size()];
+        Arrays.fill(parent, -1);
+        dist[from] = 0;
+        parent[from] = from;
+        Heap heap = new Heap();
+        heap.push(from, 0);
+        while (!heap.isEmpty()) {
+            double d = heap.peekKey();
+            int v = heap.pop();
+            if (d > dist[v]) continue; // A stale entry: v was reached more cheaply since.
+            if (v == to) {
+                cost[0] = d;
+                return walkBack(parent, from, to);
+            }
+            for (int e = outOffsets[v]; e < outOffsets[v + 1]; e++) {
+                int t = targets[e];
+                double nd = d + w[e];
+                if (nd < dist[t]) {
+                    dist[t] = nd;
+                    parent[t] = v;
+                    heap.push(t, nd);
+                }
+            }
+        }
+        return new int[0];
+    }
+
+    private static int[] walkBack(int[] parent, int from, int to) {
+        int length = 1;
+        for (int v = to; v != from; v = parent[v]) length++;
+        int[] path = new int[length];
+        for (int v = to, i = length - 1; i >= 0; v = parent[v], i--) path[i] = v;
+        return path;
+    }
+
+    /** A binary min-heap of node numbers keyed by distance, with lazy deletion. */
+    private static final class Heap {
+        private int[] nodes = new int[16];
+        private double[] keys = new double[16];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        void push(int node, double key) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int p = (i - 1) / 2;
+                if (keys[p] <= key) break;
+                nodes[i] = nodes[p];
+                keys[i] = keys[p];
+                i = p;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            int lastNode = nodes[--size];
+            double lastKey = keys[size];
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size) break;
+                if (c + 1 < size && keys[c + 1] < keys[c]) c++;
+                if (keys[c] >= lastKey) break;
+                nodes[i] = nodes[c];
+                keys[i] = keys[c];
+                i = c;
+            }
+            nodes[i] = lastNode;
+            keys[i] = lastKey;
+            return top;
+        }
+    }
+
+    // --- Building ---
+
+    /**
+     * Collects nodes, then edges, and lays them out as CSR arrays. Edges are buffered as
+     * three int arrays (twelve bytes each) until {@link #build}.
+     */
+    static final class Builder {
+        private final Dictionary ids = new Dictionary();
+        private final List<String> types = new ArrayList<>();
+        private final Map<String, Integer> typeIndex = new HashMap<>();
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private int[] type = new int[1024];
+        private int edges;
+
+        void addNode(String id) {
+            ids.add(id);
+        }
+
+        /** Adds an edge between two nodes added before; one with an unknown end is ignored. */
+        void addEdge(String source, String target, String relationType) {
+            int s = ids.find(source);
+            int t = ids.find(target);
+            if (s < 0 || t < 0) return;
+            Integer k = typeIndex.get(relationType.toLowerCase());
+            if (k == null) {
+                k = types.size();
+                types.add(relationType);
+                typeIndex.put(relationType.toLowerCase(), k);
+            }
+            if (edges == from.length) {
+                from = Arrays.copyOf(from, edges * 2);
+                to = Arrays.copyOf(to, edges * 2);
+                type = Arrays.copyOf(type, edges * 2);
+            }
+            from[edges] = s;
+            to[edges] = t;
+            type[edges] = k;
+            edges++;
+        }
+
+        Topology build(long version) {
+            return new Topology(this, version);
+        }
+    }
+
+    /**
+     * Assigns ids consecutive numbers in the order they are added. An open-addressing table
+     * of {@code int} slots avoids a boxed entry per node.
+     */
+    static final class Dictionary {
+        private String[] keys = new String[1024];
+        /** Node number + 1 per slot; 0 marks an empty slot. */
+        private int[] slots = new int[2048];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        String key(int v) {
+            return keys[v];
+        }
+
+        int find(String key) {
+            int mask = slots.length - 1;
+            for (int i = mix(key.hashCode()) & mask; ; i = (i + 1) & mask) {
+                int slot = slots[i];
+                if (slot == 0) return -1;
+                if (keys[slot - 1].equals(key)) return slot - 1;
+            }
+        }
+
+        /** @return The number of {@code key}, assigning the next one if it has none yet. */
+        int add(String key) {
+            int found = find(key);
+            if (found >= 0) return found;
+            if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+            keys[size++] = key;
+            if (size * 2 > slots.length) {
+                slots = new int[slots.length * 2];
+                for (int v = 0; v < size; v++) insert(v);
+            } else {
+                insert(size - 1);
+            }
+            return size - 1;
+        }
+
+        private void insert(int v) {
+            int mask = slots.length - 1;
+            int i = mix(keys[v].hashCode()) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = v + 1;
+        }
+
+        private static int mix(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+}
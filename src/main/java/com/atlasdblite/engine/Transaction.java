@@ -0,0 +1,148 @@
+package com.atlasdblite.engine;
+
+import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A group of mutations that is committed as a unit. Nothing is written until {@link #commit()},
+ * which logs the whole group as a single WAL record (one durable write) and then applies it with
+ * every shard it touches locked, so readers see either all of it or none of it.
+ * <p>
+ * Obtained from {@link GraphEngine#beginTransaction()}. Not thread-safe; a transaction belongs to
+ * the thread that builds it. Reads made while building it see the committed graph plus the
+ * transaction's own node writes.
+ */
+public final class Transaction {
+    private final GraphEngine engine;
+    private final List<TransactionManager.WalEntry> ops = new ArrayList<>();
+    /** Latest version of each node written by this transaction; a {@code null} value marks a delete. */
+    private final Map<String, Node> nodes = new HashMap<>();
+    private boolean finished;
+
+    Transaction(GraphEngine engine) {
+        this.engine = engine;
+    }
+
+    public Transaction persistNode(Node n) {
+        writeNode(n, TransactionManager.WalEntry.addNode(n));
+        return this;
+    }
+
+    /**
+     * Sets one property on an existing node. Only the key and value are logged, unless the node
+     * was written just before in this transaction, in which case the update is folded into that write.
+     * @throws IllegalArgumentException If the node does not exist.
+     */
+    public Transaction updateNode(String id, String key, Object value) {
+        return changeProperty(id, key, value, TransactionManager.WalEntry.setProperty(id, key, value));
+    }
+
+    /**
+     * @throws IllegalArgumentException If the node does not exist.
+     */
+    public Transaction removeProperty(String id, String key) {
+        return changeProperty(id, key, null, TransactionManager.WalEntry.removeProperty(id, key));
+    }
+
+    public Transaction deleteNode(String id) {
+        checkOpen();
+        ops.add(TransactionManager.WalEntry.deleteNode(id, Collections.emptySet(), Collections.emptySet()));
+        nodes.put(id, null);
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException If either node does not exist.
+     */
+    public Transaction persistRelation(String f, String t, String type, Map<String, Object> p) {
+        checkOpen();
+        if (lookup(f) == null || lookup(t) == null)
+            throw new IllegalArgumentException("Nodes not found");
+        ops.add(TransactionManager.WalEntry.addLink(new Relation(f, t, type, p)));
+        return this;
+    }
+
+    public Transaction persistRelation(String f, String t, String type) {
+        return persistRelation(f, t, type, new HashMap<>());
+    }
+
+    public Transaction deleteRelation(String f, String t, String type) {
+        checkOpen();
+        ops.add(TransactionManager.WalEntry.deleteLink(new Relation(f, t, type)));
+        return this;
+    }
+
+    /**
+     * @return The number of operations buffered so far.
+     */
+    public int size() {
+        return ops.size();
+    }
+
+    /**
+     * Logs the buffered operations as one WAL record and applies them atomically.
+     * An empty transaction writes nothing. If logging fails the transaction stays open,
+     * so it can be committed again or rolled back.
+     */
+    public void commit() {
+        checkOpen();
+        if (!ops.isEmpty()) engine.commitTransaction(ops);
+        finished = true;
+    }
+
+    /** Discards the buffered operations. */
+    public void rollback() {
+        checkOpen();
+        finished = true;
+        ops.clear();
+        nodes.clear();
+    }
+
+    private void writeNode(Node n, TransactionManager.WalEntry entry) {
+        checkOpen();
+        int last = ops.size() - 1;
+        // Adds and updates both replace the stored node, so the later write subsumes the earlier one.
+        if (last >= 0 && isNodeWrite(ops.get(last), n.getId())) ops.set(last, entry);
+        else ops.add(entry);
+        nodes.put(n.getId(), n);
+    }
+
+    private Transaction changeProperty(String id, String key, Object value, TransactionManager.WalEntry delta) {
+        checkOpen();
+        Node current = lookup(id);
+        if (current == null) throw new IllegalArgumentException("Node not found: " + id);
+        Node updated = new Node(id, current.getLabel());
+        current.getProperties().forEach(updated::addProperty);
+        if (value == null) updated.removeProperty(key);
+        else updated.addProperty(key, value);
+        int last = ops.size() - 1;
+        if (last >= 0 && isNodeWrite(ops.get(last), id)) {
+            // The node is already logged whole, so its new version replaces that write.
+            boolean added = ops.get(last).op == TransactionManager.WalEntry.ADD_NODE;
+            ops.set(last, added ? TransactionManager.WalEntry.addNode(updated) : TransactionManager.WalEntry.updateNode(updated));
+        } else {
+            ops.add(delta);
+        }
+        nodes.put(id, updated);
+        return this;
+    }
+
+    private static boolean isNodeWrite(TransactionManager.WalEntry e, String id) {
+        return (e.op == TransactionManager.WalEntry.ADD_NODE || e.op == TransactionManager.WalEntry.UPDATE_NODE)
+                && e.node.getId().equals(id);
+    }
+
+    private Node lookup(String id) {
+        return nodes.containsKey(id) ? nodes.get(id) : engine.peekNode(id);
+    }
+
+    private void checkOpen() {
+        if (finished) throw new IllegalStateException("Transaction already finished");
+    }
+}
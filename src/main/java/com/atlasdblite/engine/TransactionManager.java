@@ -1,80 +1,900 @@
 package com.atlasdblite.engine;
 
+import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
 import com.atlasdblite.security.CryptoManager;
 import com.google.gson.Gson;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
 /**
  * Manages the Global Write-Ahead Log (WAL).
  * Ensures ACID properties by recording operations before they are applied to memory.
+ * <p>
+ * The log is a sequence of files {@code wal_<firstLsn>.log}. Every record has a log sequence
+ * number (LSN): the first record of a file carries the number in its name and the rest follow
+ * on from it, so LSNs are never stored and keep increasing across files. The flusher starts a
+ * new file once the current one passes {@link #DEFAULT_FILE_SIZE}; {@link #deleteBefore} drops
+ * whole files once every shard has persisted past them, so the log never has to be rewritten.
+ * <p>
+ * Each file starts with a {@code WAL_V4} magic followed by binary records:
+ * <pre>
+ *   op:byte | length:varint | crc32c:int | sealed body
+ * </pre>
+ * The body holds the timestamp and the operation's payload in the models' own binary encoding,
+ * sealed with AES-GCM and bound to the opcode. The checksum covers the opcode, the length and the
+ * sealed body, so a record torn by a crash is recognised without trying to decrypt it; the newest
+ * file is cut back to the last whole record on open. The single line-based {@code global.wal} of
+ * older versions is moved aside on open, replayed first with LSN 0 and removed once the shards
+ * have persisted it.
+ * <p>
+ * Writes are group-committed: callers queue sealed records and a single flusher thread writes
+ * each batch and, depending on the {@link Durability} policy, forces it to disk once for all of them.
+ * The log is fail-stop: if a batch cannot be written, it is cut off the file as far as possible,
+ * its writers and everything queued behind it are failed, and every later write is refused, so
+ * the LSNs handed out always match the positions recovery gives the records on disk.
+ * <p>
+ * Committed records can be tailed with {@link #subscribe} (change data capture). The most recent
+ * ones are kept in memory so subscribers that keep up never touch the files; one that falls
+ * behind reads them back from disk, and its position holds back {@link #subscriberFloor()} so
+ * the files it still needs are not deleted under it.
  */
 public class TransactionManager {
-    private static final String WAL_FILE = "atlas_db/global.wal";
+    public static final long DEFAULT_FILE_SIZE = 16L * 1024 * 1024;
+    private static final String LEGACY_FILE_NAME = "global.wal";
+    private static final String LEGACY_MOVED_NAME = LEGACY_FILE_NAME + ".legacy";
+    private static final String FILE_PREFIX = "wal_";
+    private static final String FILE_SUFFIX = ".log";
+    private static final byte[] MAGIC = "WAL_V4".getBytes(StandardCharsets.US_ASCII);
+    /** How many records recovery may have in flight between the scanner and the consumer. */
+    private static final int DECODE_WINDOW = 1024;
+    /** Longest body a record may claim; anything larger is a torn or corrupt length. */
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+    /** How many of the latest committed entries are kept in memory for subscribers. */
+    private static final int RECENT_ENTRIES = 4096;
+    /** Most entries a subscriber is handed per read. */
+    private static final int SUBSCRIBER_BATCH = 1024;
+
+    private final File dir;
     private final CryptoManager crypto;
     private final Gson gson;
-    private PrintWriter writer;
+    /** Guards the files: the flusher's writes, rotation, deletion and recovery reads. */
+    private final ReentrantLock io = new ReentrantLock();
+    private final Thread flusher;
+    private volatile long maxFileBytes = DEFAULT_FILE_SIZE;
+    private volatile File archiveDir;
+
+    // Guarded by io.
+    private FileChannel channel;
+    private long fileFirstLsn;
+    /** LSN the next record written to the current file gets. */
+    private long fileEndLsn;
+
+    // Guarded by this object's monitor.
+    private Durability durability;
+    private List<byte[]> queue = new ArrayList<>();
+    /** The entries of the queued records, in the same order. */
+    private List<WalEntry> queuedEntries = new ArrayList<>();
+    /** The latest committed entries, with their LSNs, oldest first and without gaps. */
+    private final ArrayDeque<WalEntry> recent = new ArrayDeque<>();
+    private long queuedBytes;
+    private long firstQueuedAt;
+    /** LSN the next queued record gets, and the first LSN not yet on disk. */
+    private long nextLsn;
+    private long writtenLsn;
+    /** Why the log stopped taking writes, or {@code null} while it still does. */
+    private IOException failure;
+    private boolean closed;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
 
-    public TransactionManager(CryptoManager crypto) {
+    /**
+     * @param dbDirectory The database directory the log lives in.
+     * @param crypto The security manager used to encrypt entries.
+     */
+    public TransactionManager(String dbDirectory, CryptoManager crypto) {
+        this(dbDirectory, crypto, Durability.parse(System.getProperty("atlas.wal.durability", "fsync")));
+    }
+
+    /**
+     * @param dbDirectory The database directory the log lives in.
+     * @param crypto The security manager used to encrypt entries.
+     * @param durability When a write counts as committed.
+     */
+    public TransactionManager(String dbDirectory, CryptoManager crypto, Durability durability) {
+        this.dir = new File(dbDirectory);
         this.crypto = crypto;
         this.gson = new Gson();
+        this.durability = durability;
+        String archive = System.getProperty("atlas.wal.archive");
+        if (archive != null && !archive.isEmpty()) setArchiveDirectory(new File(archive));
         initialize();
+        this.flusher = new Thread(this::flushLoop, "atlas-wal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @return {@code true} if {@code fileName} is one of the log's files, current or legacy.
+     */
+    public static boolean isLogFile(String fileName) {
+        return (fileName.startsWith(FILE_PREFIX) && fileName.endsWith(FILE_SUFFIX)) || fileName.startsWith(LEGACY_FILE_NAME);
     }
 
     private void initialize() {
         try {
-            File wal = new File(WAL_FILE);
-            if (!wal.exists()) {
-                if (wal.getParentFile() != null) wal.getParentFile().mkdirs();
-                wal.createNewFile();
+            dir.mkdirs();
+            File legacy = new File(dir, LEGACY_FILE_NAME);
+            if (legacy.exists()) {
+                // Keep the old log for recovery; new records go to numbered files.
+                if (legacy.length() == 0) legacy.delete();
+                else if (!legacy.renameTo(new File(dir, LEGACY_MOVED_NAME)))
+                    throw new IOException("Could not move old WAL aside");
             }
-            // Append mode, Auto-flush enabled
-            this.writer = new PrintWriter(new FileWriter(wal, true), true);
+            List<Long> files = logFiles();
+            long first = files.isEmpty() ? 1 : files.get(files.size() - 1);
+            long records = 0;
+            File last = logFile(first);
+            if (last.length() > 0) {
+                Extent extent = scan(last, MAGIC, first, null);
+                if (extent.bytes < last.length()) {
+                    System.err.println(" [WAL] Discarding torn tail of " + (last.length() - extent.bytes) + " bytes.");
+                    try (FileChannel ch = FileChannel.open(last.toPath(), StandardOpenOption.WRITE)) {
+                        ch.truncate(extent.bytes);
+                    }
+                }
+                records = extent.records;
+            }
+            openFile(first);
+            fileEndLsn = nextLsn = writtenLsn = first + records;
         } catch (IOException e) {
             throw new RuntimeException("CRITICAL: Could not open WAL. " + e.getMessage());
         }
     }
 
+    /** Makes the file starting at {@code firstLsn} the current one. Caller holds {@link #io} (or is the constructor). */
+    private void openFile(long firstLsn) throws IOException {
+        channel = FileChannel.open(logFile(firstLsn).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel.size() == 0) {
+            channel.write(ByteBuffer.wrap(MAGIC));
+            channel.force(false);
+        }
+        fileFirstLsn = firstLsn;
+    }
+
+    /** Closes the current file and starts the next one at {@link #fileEndLsn}. Caller holds {@link #io}. */
+    private void rotate() throws IOException {
+        if (fileEndLsn == fileFirstLsn) return;
+        if (!channel.isOpen()) throw new ClosedChannelException();
+        channel.close();
+        openFile(fileEndLsn);
+    }
+
+    private File logFile(long firstLsn) {
+        return logFile(dir, firstLsn);
+    }
+
+    static File logFile(File dir, long firstLsn) {
+        return new File(dir, String.format("%s%020d%s", FILE_PREFIX, firstLsn, FILE_SUFFIX));
+    }
+
+    /** @return The first LSNs of the numbered log files, in order. */
+    private List<Long> logFiles() {
+        return logFiles(dir);
+    }
+
+    /** @return The first LSNs of the numbered log files in {@code dir}, in order. */
+    static List<Long> logFiles(File dir) {
+        List<Long> firsts = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files != null) {
+            for (File f : files) {
+                String lsn = f.getName().substring(FILE_PREFIX.length(), f.getName().length() - FILE_SUFFIX.length());
+                try { firsts.add(Long.parseLong(lsn)); } catch (NumberFormatException ignored) {}
+            }
+        }
+        firsts.sort(null);
+        return firsts;
+    }
+
     // --- Logging Primitives ---
 
-    public synchronized void writeEntry(WalEntry entry) {
+    /**
+     * Appends an entry and returns once it is committed under the current {@link Durability}.
+     * The record is encoded and sealed on the calling thread; concurrent callers then share
+     * the flusher's write and, if the policy forces, its single {@code fsync}.
+     * @return The entry's LSN.
+     */
+    public long writeEntry(WalEntry entry) {
+        byte[] frame;
         try {
-            String json = gson.toJson(entry);
-            String encrypted = crypto.encrypt(json);
-            writer.println(encrypted);
+            frame = encode(entry);
         } catch (Exception e) {
             throw new RuntimeException("WAL Write Failed: " + e.getMessage());
         }
+        synchronized (this) {
+            if (closed) throw new RuntimeException("WAL Write Failed: log is closed");
+            if (failure != null) throw new RuntimeException("WAL Write Failed: log stopped after an earlier error: " + failure.getMessage());
+            if (queue.isEmpty()) firstQueuedAt = System.nanoTime();
+            queue.add(frame);
+            queuedEntries.add(entry);
+            queuedBytes += frame.length;
+            long lsn = nextLsn++;
+            notifyAll();
+            awaitWritten(lsn + 1);
+            return lsn;
+        }
+    }
+
+    /**
+     * @return The LSN the next entry will get. Every entry written so far has a lower one.
+     */
+    public synchronized long nextLsn() {
+        return nextLsn;
+    }
+
+    /** Encodes and seals a record straight into its frame, the only array the frame needs. */
+    private byte[] encode(WalEntry entry) throws Exception {
+        Body body = new Body();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeLong(entry.timestamp);
+        entry.writePayload(out);
+        int sealedLength = body.size() + CryptoManager.NONCE_LENGTH + CryptoManager.TAG_LENGTH;
+
+        byte[] header = new byte[1 + 5];
+        header[0] = entry.op;
+        int headerLength = 1 + putVarint(header, 1, sealedLength);
+        int bodyStart = headerLength + Integer.BYTES;
+        byte[] frame = new byte[bodyStart + sealedLength];
+        System.arraycopy(header, 0, frame, 0, headerLength);
+        crypto.encrypt(body.array(), 0, body.size(), new byte[] { entry.op }, frame, bodyStart);
+
+        CRC32C crc = new CRC32C();
+        crc.update(frame, 0, headerLength);
+        crc.update(frame, bodyStart, sealedLength);
+        ByteBuffer.wrap(frame, headerLength, Integer.BYTES).putInt((int) crc.getValue());
+        return frame;
+    }
+
+    /** A {@link ByteArrayOutputStream} whose contents can be sealed without copying them out first. */
+    private static final class Body extends ByteArrayOutputStream {
+        Body() { super(128); }
+        byte[] array() { return buf; }
+    }
+
+    /** Waits until every entry below {@code lsn} is on disk. Called holding the monitor. */
+    private void awaitWritten(long lsn) {
+        boolean interrupted = false;
+        while (writtenLsn < lsn && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (writtenLsn < lsn) throw new RuntimeException("WAL Write Failed: " + failure.getMessage());
+    }
+
+    /**
+     * The group-commit loop: takes everything queued, writes it with one gathering write,
+     * forces it if the policy asks to, and releases all the writers of the batch together.
+     * A batch never spans two files; the next file is started once the current one is full.
+     * The first error stops the loop and the log for good, see {@link #stop}.
+     */
+    private void flushLoop() {
+        while (true) {
+            List<byte[]> batch;
+            List<WalEntry> entries;
+            long batchEnd;
+            Durability policy;
+            synchronized (this) {
+                try {
+                    while (queue.isEmpty() && !closed) wait();
+                    if (queue.isEmpty()) return;
+                    policy = durability;
+                    // Linger for more writers, unless the batch is already big enough.
+                    long deadline = firstQueuedAt + policy.maxDelayNanos;
+                    long remaining;
+                    while (!closed && queuedBytes < policy.maxBytes && (remaining = deadline - System.nanoTime()) > 0)
+                        wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = queue;
+                entries = queuedEntries;
+                batchEnd = nextLsn;
+                queue = new ArrayList<>();
+                queuedEntries = new ArrayList<>();
+                queuedBytes = 0;
+            }
+
+            IOException error = null;
+            boolean written = false;
+            io.lock();
+            try {
+                long good = channel.size();
+                try {
+                    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                    for (int i = 0; i < buffers.length; i++) buffers[i] = ByteBuffer.wrap(batch.get(i));
+                    while (buffers[buffers.length - 1].hasRemaining()) channel.write(buffers);
+                    if (policy.force) channel.force(false);
+                } catch (IOException e) {
+                    // Cut off whatever part of the batch got out, so recovery does not replay records
+                    // whose writers are told they failed. If even that fails, they may come back, as
+                    // with any write whose fsync failed.
+                    try { channel.truncate(good); } catch (IOException ignored) {}
+                    throw e;
+                }
+                fileEndLsn = batchEnd;
+                written = true;
+                if (channel.size() >= maxFileBytes) rotate();
+            } catch (IOException e) {
+                error = e;
+                try { channel.close(); } catch (IOException ignored) {}
+            } finally { io.unlock(); }
+
+            synchronized (this) {
+                if (written) {
+                    writtenLsn = batchEnd;
+                    long lsn = batchEnd - entries.size();
+                    for (WalEntry e : entries) recent.add(e.at(lsn++));
+                    while (recent.size() > RECENT_ENTRIES) recent.poll();
+                }
+                if (error != null) {
+                    stop(error);
+                    return;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops the log after a failed write: the queued records are dropped, their writers are
+     * released with the error and no more are taken. The LSN sequence is cut back to the last
+     * record on disk, which is where recovery will carry on from. Called holding the monitor.
+     */
+    private void stop(IOException error) {
+        failure = error;
+        queue = new ArrayList<>();
+        queuedEntries = new ArrayList<>();
+        queuedBytes = 0;
+        nextLsn = writtenLsn;
+        notifyAll();
+    }
+
+    public synchronized void setDurability(Durability durability) {
+        this.durability = durability;
+        notifyAll();
+    }
+
+    public synchronized Durability getDurability() {
+        return durability;
+    }
+
+    /** Sets the size at which the flusher starts a new file. */
+    void setMaxFileSize(long bytes) {
+        this.maxFileBytes = bytes;
+    }
+
+    /**
+     * @return The number of log files on disk, the legacy log included.
+     */
+    public int fileCount() {
+        io.lock();
+        try {
+            return logFiles().size() + (new File(dir, LEGACY_MOVED_NAME).exists() ? 1 : 0);
+        } finally { io.unlock(); }
+    }
+
+    /** Discards every entry written so far. */
+    public void clearLog() {
+        io.lock();
+        try {
+            rotate();
+            deleteFilesBefore(fileFirstLsn);
+        } catch (IOException e) {
+            System.err.println("Failed to clear WAL: " + e.getMessage());
+        } finally { io.unlock(); }
+    }
+
+    /**
+     * Deletes the files whose entries all have an LSN below {@code lsn}. The current file is
+     * never deleted, so the LSN sequence carries on across restarts. The legacy log (LSN 0) goes as
+     * soon as {@code lsn} is positive.
+     * @return The number of files deleted.
+     */
+    public int deleteBefore(long lsn) {
+        if (lsn <= 0) return 0;
+        io.lock();
+        try {
+            return deleteFilesBefore(Math.min(lsn, fileFirstLsn));
+        } finally { io.unlock(); }
+    }
+
+    /** Caller holds {@link #io}. */
+    private int deleteFilesBefore(long lsn) {
+        int deleted = new File(dir, LEGACY_MOVED_NAME).delete() ? 1 : 0;
+        List<Long> files = logFiles();
+        for (int i = 0; i + 1 < files.size() && files.get(i + 1) <= lsn; i++) {
+            File file = logFile(files.get(i));
+            if (!archive(file)) break; // Keep it, and everything after it, until it can be archived.
+            if (file.delete()) deleted++;
+        }
+        return deleted;
+    }
+
+    // --- Archiving & Backup ---
+
+    /**
+     * Keeps every log file in {@code archiveDir} (hard-linked where possible) before it is
+     * deleted, so the archive plus a backup can be replayed to any later point.
+     * @param archiveDir The archive directory, or {@code null} to stop archiving.
+     */
+    public void setArchiveDirectory(File archiveDir) {
+        if (archiveDir != null) archiveDir.mkdirs();
+        this.archiveDir = archiveDir;
+    }
+
+    public File getArchiveDirectory() {
+        return archiveDir;
+    }
+
+    /** @return {@code false} if archiving is on and the file could not be archived. */
+    private boolean archive(File file) {
+        File target = archiveDir;
+        if (target == null) return true;
+        try {
+            Path archived = target.toPath().resolve(file.getName());
+            Files.deleteIfExists(archived); // Left by a crash between archiving and deleting.
+            Backup.link(file.toPath(), archived, null, null);
+            return true;
+        } catch (IOException e) {
+            System.err.println("WAL Archive Failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds the log files holding the records from {@code fromLsn} on to a backup, once every
+     * entry logged so far is on disk. Files that are complete are linked; the current one,
+     * which is still being appended to, is copied as far as it has been written.
+     * @return The LSN the backed-up log ends at.
+     */
+    long backupFiles(long fromLsn, Path dest, Path previous, Backup.Result result) throws IOException {
+        synchronized (this) {
+            awaitWritten(nextLsn);
+            if (failure != null) throw new IOException("WAL stopped after an earlier error: " + failure.getMessage(), failure);
+        }
+        io.lock();
+        try {
+            File legacy = new File(dir, LEGACY_MOVED_NAME);
+            if (legacy.exists()) Backup.link(legacy.toPath(), dest.resolve(legacy.getName()), previous, result);
+            List<Long> files = logFiles();
+            for (int i = 0; i < files.size(); i++) {
+                if (i + 1 < files.size() && files.get(i + 1) <= fromLsn) continue;
+                File file = logFile(files.get(i));
+                Path target = dest.resolve(file.getName());
+                if (files.get(i) != fileFirstLsn) {
+                    Backup.link(file.toPath(), target, previous, result);
+                    continue;
+                }
+                long length = channel.size();
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    for (long done = 0; done < length; ) done += in.transferTo(done, length - done, out);
+                }
+                result.copied(length);
+            }
+            return fileEndLsn;
+        } finally { io.unlock(); }
+    }
+
+    /**
+     * Copies log files into {@code targetDir} up to a stopping point, for a point-in-time restore.
+     * The files must be consecutive and in LSN order; copying also stops at a gap between them.
+     * @param toLsn The first LSN not to copy.
+     * @param toMillis Records stamped later than this are not copied either.
+     * @return The LSN of the first record that was not copied.
+     */
+    static long copyLogUntil(List<File> files, File targetDir, CryptoManager crypto, long toLsn, long toMillis)
+            throws IOException {
+        long next = -1;
+        for (File file : files) {
+            long first = firstLsnOf(file);
+            if (next >= 0 && first != next) {
+                System.err.println(" [WAL] Log ends at LSN " + next + "; the next file starts at " + first + ".");
+                break;
+            }
+            Extent extent = scan(file, MAGIC, first, (op, sealed, lsn) -> {
+                if (lsn >= toLsn) return false;
+                if (toMillis == Long.MAX_VALUE) return true;
+                try {
+                    return decode(crypto, op, sealed).timestamp <= toMillis;
+                } catch (Exception e) {
+                    throw new IllegalStateException("Record " + lsn + " failed authentication", e);
+                }
+            });
+            long length = Math.max(extent.bytes, MAGIC.length);
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(logFile(targetDir, first).toPath(),
+                         StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (long done = 0; done < length; ) done += in.transferTo(done, length - done, out);
+            }
+            next = first + extent.records;
+            if (extent.bytes < file.length()) break;
+        }
+        return Math.max(next, 1);
+    }
+
+    /** @return The LSN in the name of a numbered log file. */
+    static long firstLsnOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+    }
+
+    /** @return {@code true} for a numbered log file, as opposed to a legacy one. */
+    static boolean isNumberedLogFile(String fileName) {
+        return fileName.startsWith(FILE_PREFIX) && fileName.endsWith(FILE_SUFFIX);
+    }
+
+    // --- Change Data Capture ---
+
+    /**
+     * @return The LSN the next committed entry will get: every entry below it is durable
+     *         under the current {@link Durability}.
+     */
+    public synchronized long committedLsn() {
+        return writtenLsn;
+    }
+
+    /**
+     * @return The oldest LSN that can still be read back, in memory or on disk.
+     */
+    public long oldestLsn() {
+        long oldest;
+        synchronized (this) {
+            oldest = recent.isEmpty() ? writtenLsn : recent.peekFirst().lsn;
+        }
+        io.lock();
+        try {
+            List<Long> files = logFiles();
+            return files.isEmpty() ? oldest : Math.min(oldest, files.get(0));
+        } finally { io.unlock(); }
+    }
+
+    /**
+     * Reads committed entries in LSN order, starting at {@code fromLsn}.
+     * @param max The most entries to return.
+     * @return Up to {@code max} entries; empty if nothing at or after {@code fromLsn} has been committed yet.
+     * @throws IllegalStateException If entries from {@code fromLsn} on are no longer in the log.
+     */
+    public List<WalEntry> readCommitted(long fromLsn, int max) {
+        List<WalEntry> out = new ArrayList<>();
+        long committed;
+        synchronized (this) {
+            committed = writtenLsn;
+            if (!recent.isEmpty() && recent.peekFirst().lsn <= fromLsn) {
+                for (WalEntry e : recent) {
+                    if (out.size() >= max) break;
+                    if (e.lsn >= fromLsn) out.add(e);
+                }
+                return out;
+            }
+        }
+        if (fromLsn >= committed) return out;
+        io.lock();
+        try {
+            List<Long> files = logFiles();
+            if (files.isEmpty() || files.get(0) > fromLsn)
+                throw new IllegalStateException("LSN " + fromLsn + " is no longer in the log");
+            for (int i = 0; i < files.size() && out.size() < max; i++) {
+                if (i + 1 < files.size() && files.get(i + 1) <= fromLsn) continue;
+                scan(logFile(files.get(i)), MAGIC, files.get(i), (op, sealed, lsn) -> {
+                    if (lsn < fromLsn || lsn >= committed || out.size() >= max) return true;
+                    try {
+                        out.add(decode(op, sealed).at(lsn));
+                    } catch (Exception e) {
+                        System.err.println(" [WAL] Record failed authentication; skipped: " + e.getMessage());
+                    }
+                    return true;
+                });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally { io.unlock(); }
+        return out;
+    }
+
+    /**
+     * Delivers every committed entry from {@code fromLsn} on to {@code listener}, in LSN order,
+     * on a thread of its own: first the backlog, then each new entry as it commits. Delivery
+     * stops when the subscription is closed, the log is closed or stopped, the listener throws, or the
+     * entries at the subscriber's position have been deleted.
+     * <p>
+     * Until it is closed, the subscription keeps the files it has not read yet from being deleted.
+     */
+    public Subscription subscribe(long fromLsn, Consumer<WalEntry> listener) {
+        Subscription subscription = new Subscription(Math.max(1, fromLsn), listener);
+        subscriptions.add(subscription);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * @return The lowest LSN an open subscription still has to read, or {@code Long.MAX_VALUE} if none.
+     */
+    public long subscriberFloor() {
+        long floor = Long.MAX_VALUE;
+        for (Subscription s : subscriptions) floor = Math.min(floor, s.position);
+        return floor;
+    }
+
+    /** A listener tailing the log; see {@link #subscribe}. */
+    public final class Subscription implements AutoCloseable {
+        private final Consumer<WalEntry> listener;
+        private final Thread thread;
+        private volatile long position;
+        private volatile boolean cancelled;
+
+        private Subscription(long fromLsn, Consumer<WalEntry> listener) {
+            this.position = fromLsn;
+            this.listener = listener;
+            this.thread = new Thread(this::run, "atlas-cdc");
+            thread.setDaemon(true);
+        }
+
+        /** @return The LSN of the next entry to be delivered. */
+        public long position() {
+            return position;
+        }
+
+        private void run() {
+            try {
+                while (!cancelled) {
+                    List<WalEntry> batch = readCommitted(position, SUBSCRIBER_BATCH);
+                    if (batch.isEmpty()) {
+                        if (!awaitCommit()) return;
+                        continue;
+                    }
+                    for (WalEntry entry : batch) {
+                        if (cancelled) return;
+                        listener.accept(entry);
+                        position = entry.lsn + 1;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("Subscription Failed: " + e.getMessage());
+            } finally {
+                cancelled = true;
+                subscriptions.remove(this);
+            }
+        }
+
+        /** @return {@code false} if the subscription or the log was closed, or the log stopped, while waiting. */
+        private boolean awaitCommit() throws InterruptedException {
+            synchronized (TransactionManager.this) {
+                while (writtenLsn <= position && !cancelled && !closed && failure == null) TransactionManager.this.wait();
+                return !cancelled && !closed && writtenLsn > position;
+            }
+        }
+
+        /** Waits until delivery has stopped. */
+        public void await() throws InterruptedException {
+            thread.join();
+        }
+
+        /** Stops delivery. Safe to call from the listener. */
+        @Override
+        public void close() {
+            cancelled = true;
+            synchronized (TransactionManager.this) {
+                TransactionManager.this.notifyAll();
+            }
+        }
     }
 
-    public synchronized void clearLog() {
+    /**
+     * Writes out anything still queued and stops the flusher thread and any subscriptions.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        io.lock();
         try {
-            writer.close();
-            // Truncate file
-            new FileOutputStream(WAL_FILE).close(); 
-            // Re-open
-            this.writer = new PrintWriter(new FileWriter(WAL_FILE, true), true);
+            channel.close();
         } catch (IOException e) {
-            System.err.println("Failed to truncate WAL: " + e.getMessage());
+            System.err.println("WAL Close Failed: " + e.getMessage());
+        } finally { io.unlock(); }
+    }
+
+    // --- Varints ---
+
+    private static int putVarint(byte[] buf, int offset, int value) {
+        int i = offset;
+        while ((value & ~0x7F) != 0) {
+            buf[i++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
         }
+        buf[i++] = (byte) value;
+        return i - offset;
     }
 
     // --- Recovery Logic ---
 
+    /**
+     * Reads every entry still on disk: the legacy log first (with LSN 0), then the numbered files in LSN order.
+     */
     public List<WalEntry> readLog() {
         List<WalEntry> entries = new ArrayList<>();
-        File wal = new File(WAL_FILE);
-        if (!wal.exists()) return entries;
+        readLog(Runnable::run, entries::add);
+        return entries;
+    }
+
+    /**
+     * Streams every entry still on disk to {@code sink}, in the order of {@link #readLog()}.
+     * Framing and checksums are checked on the calling thread; decrypting and parsing the records
+     * runs on {@code decoders}, up to {@link #DECODE_WINDOW} records ahead of the one being delivered.
+     */
+    public void readLog(Executor decoders, Consumer<WalEntry> sink) {
+        readLegacyLog(new File(dir, LEGACY_MOVED_NAME), sink);
+
+        synchronized (this) {
+            awaitWritten(nextLsn);
+        }
+        Deque<CompletableFuture<WalEntry>> window = new ArrayDeque<>();
+        io.lock();
+        try {
+            for (long first : logFiles()) scan(logFile(first), MAGIC, first, decodeInto(window, decoders, sink));
+            while (!window.isEmpty()) deliver(window.poll(), sink);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally { io.unlock(); }
+    }
+
+    private RecordVisitor decodeInto(Deque<CompletableFuture<WalEntry>> window, Executor decoders,
+                                     Consumer<WalEntry> sink) {
+        return (op, sealed, lsn) -> {
+            window.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return decode(op, sealed).at(lsn);
+                } catch (Exception e) {
+                    // The checksum matched, so this is the wrong key or tampering, not a crash.
+                    System.err.println(" [WAL] Record failed authentication; skipped: " + e.getMessage());
+                    return null;
+                }
+            }, decoders));
+            if (window.size() >= DECODE_WINDOW) deliver(window.poll(), sink);
+            return true;
+        };
+    }
+
+    private static void deliver(CompletableFuture<WalEntry> decoded, Consumer<WalEntry> sink) {
+        WalEntry entry = decoded.join();
+        if (entry != null) sink.accept(entry);
+    }
+
+    /** Receives each whole record found by {@link #scan}. */
+    @FunctionalInterface
+    private interface RecordVisitor {
+        /** @return {@code false} to end the scan before this record. */
+        boolean visit(byte op, byte[] sealed, long lsn);
+    }
+
+    /** Length of the valid prefix of a log file and the number of records in it. */
+    private static final class Extent {
+        long bytes;
+        long records;
+    }
+
+    /**
+     * Walks the records of a log file, stopping at the first one that is incomplete or
+     * fails its checksum: that is where a crash tore the log.
+     * @param firstLsn The LSN of the file's first record, or 0 for a legacy file whose records have none.
+     * @param visitor Receives the records, or {@code null} to only validate. The returned extent
+     *                ends before the record the visitor stopped at, if any.
+     */
+    private static Extent scan(File wal, byte[] magic, long firstLsn, RecordVisitor visitor) throws IOException {
+        Extent extent = new Extent();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(wal)))) {
+            byte[] head = new byte[magic.length];
+            try {
+                in.readFully(head);
+            } catch (EOFException e) {
+                return extent;
+            }
+            if (!Arrays.equals(head, magic)) return extent;
+            extent.bytes = magic.length;
+            byte[] header = new byte[1 + 5];
+            CRC32C crc = new CRC32C();
+            while (true) {
+                int op = in.read();
+                if (op < 0) break;
+                header[0] = (byte) op;
+                int headerLength = 1;
+                int length = 0;
+                byte[] sealed;
+                int checksum;
+                try {
+                    for (int shift = 0; ; shift += 7) {
+                        if (shift > 28) throw new EOFException();
+                        int b = in.readUnsignedByte();
+                        header[headerLength++] = (byte) b;
+                        length |= (b & 0x7F) << shift;
+                        if ((b & 0x80) == 0) break;
+                    }
+                    if (length < 0 || length > MAX_RECORD) break;
+                    checksum = in.readInt();
+                    sealed = new byte[length];
+                    in.readFully(sealed);
+                } catch (EOFException e) {
+                    break; // Torn mid-record.
+                }
+                crc.reset();
+                crc.update(header, 0, headerLength);
+                crc.update(sealed);
+                if ((int) crc.getValue() != checksum) break;
+                long lsn = firstLsn == 0 ? 0 : firstLsn + extent.records;
+                if (visitor != null && !visitor.visit((byte) op, sealed, lsn)) break;
+                extent.bytes += headerLength + Integer.BYTES + length;
+                extent.records++;
+            }
+            return extent;
+        }
+    }
+
+    private WalEntry decode(byte op, byte[] sealed) throws Exception {
+        return decode(crypto, op, sealed);
+    }
+
+    private static WalEntry decode(CryptoManager crypto, byte op, byte[] sealed) throws Exception {
+        ByteBuffer plain = crypto.decrypt(ByteBuffer.wrap(sealed),
+                ByteBuffer.allocate(sealed.length - CryptoManager.NONCE_LENGTH - CryptoManager.TAG_LENGTH),
+                new byte[] { op });
+        ByteBufferInput in = new ByteBufferInput(plain);
+        long timestamp = in.readLong();
+        return WalEntry.readPayload(op, timestamp, in);
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(wal))) {
+    @SuppressWarnings("deprecation")
+    private void readLegacyLog(File legacy, Consumer<WalEntry> entries) {
+        if (!legacy.exists()) return;
+        try (BufferedReader br = new BufferedReader(new FileReader(legacy))) {
             String line;
             while ((line = br.readLine()) != null) {
                 try {
-                    String json = crypto.decrypt(line);
-                    WalEntry entry = gson.fromJson(json, WalEntry.class);
-                    entries.add(entry);
+                    addLegacy(crypto.decrypt(line), entries);
                 } catch (Exception e) {
                     System.err.println(" [WAL] Corrupt entry ignored.");
                 }
@@ -82,19 +902,280 @@ public class TransactionManager {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return entries;
     }
 
-    // --- DTO for Log Entries ---
+    /** Converts a JSON entry of the legacy log, whose payload is itself JSON or an id. */
+    private void addLegacy(String json, Consumer<WalEntry> entries) {
+        JsonEntry e = gson.fromJson(json, JsonEntry.class);
+        WalEntry entry;
+        switch (e.operation) {
+            case "ADD_NODE": entry = WalEntry.addNode(gson.fromJson(e.payload, Node.class)); break;
+            case "UPDATE_NODE": entry = WalEntry.updateNode(gson.fromJson(e.payload, Node.class)); break;
+            case "DELETE_NODE": entry = WalEntry.deleteNode(e.payload, Collections.emptySet(), Collections.emptySet()); break;
+            case "ADD_LINK": entry = WalEntry.addLink(gson.fromJson(e.payload, Relation.class)); break;
+            case "DELETE_LINK": entry = WalEntry.deleteLink(gson.fromJson(e.payload, Relation.class)); break;
+            default: System.err.println(" [WAL] Unknown operation ignored: " + e.operation); return;
+        }
+        entries.accept(entry.stamped(e.timestamp));
+    }
+
+    /** Shape of an entry in the legacy log. */
+    private static final class JsonEntry {
+        long timestamp;
+        String operation;
+        String payload;
+    }
+
+    // --- Durability Policies ---
+
+    /**
+     * When a {@link #writeEntry} counts as committed.
+     * <ul>
+     *   <li>{@code fsync}: forced to disk before returning. Writers arriving while a force is in
+     *       progress share the next one, so throughput grows with concurrency.</li>
+     *   <li>{@code group:<ms>:<bytes>}: forced too, but the flusher waits up to {@code ms} for a
+     *       batch to reach {@code bytes} first, trading commit latency for fewer forces.</li>
+     *   <li>{@code os}: handed to the OS only; survives a process crash but not a power loss.</li>
+     * </ul>
+     */
+    public static final class Durability {
+        final boolean force;
+        final long maxDelayNanos;
+        final long maxBytes;
+        private final String spec;
+
+        private Durability(boolean force, long maxDelayMs, long maxBytes, String spec) {
+            this.force = force;
+            this.maxDelayNanos = maxDelayMs * 1_000_000;
+            this.maxBytes = maxBytes;
+            this.spec = spec;
+        }
+
+        public static Durability fsyncPerCommit() {
+            return new Durability(true, 0, 0, "fsync");
+        }
+
+        public static Durability group(long maxDelayMs, long maxBytes) {
+            if (maxDelayMs < 0 || maxBytes < 0) throw new IllegalArgumentException("Group limits must not be negative");
+            return new Durability(true, maxDelayMs, maxBytes, "group:" + maxDelayMs + ":" + maxBytes);
+        }
+
+        public static Durability osBuffered() {
+            return new Durability(false, 0, 0, "os");
+        }
+
+        /**
+         * @param spec {@code fsync}, {@code os}, or {@code group:<ms>:<bytes>}.
+         */
+        public static Durability parse(String spec) {
+            String[] parts = spec.trim().toLowerCase().split(":");
+            switch (parts[0]) {
+                case "fsync": return fsyncPerCommit();
+                case "os": return osBuffered();
+                case "group":
+                    if (parts.length != 3) throw new IllegalArgumentException("Usage: group:<ms>:<bytes>");
+                    try {
+                        return group(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid group limits: " + spec);
+                    }
+                default: throw new IllegalArgumentException("Unknown durability policy: " + spec);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+
+    // --- Log Entries ---
     public static class WalEntry {
-        public long timestamp;
-        public String operation; // ADD_NODE, DELETE_LINK, etc.
-        public String payload;   // JSON representation of the object or ID
-
-        public WalEntry(String op, String data) {
-            this.timestamp = System.currentTimeMillis();
-            this.operation = op;
-            this.payload = data;
+        public static final byte ADD_NODE = 1;
+        public static final byte UPDATE_NODE = 2;
+        public static final byte DELETE_NODE = 3;
+        public static final byte ADD_LINK = 4;
+        public static final byte DELETE_LINK = 5;
+        public static final byte BATCH = 6;
+        public static final byte SET_PROPERTY = 7;
+        public static final byte REMOVE_PROPERTY = 8;
+
+        public final byte op;
+        public final long timestamp;
+        /** Position in the log; 0 until the entry has been read back, and for entries of the legacy log. */
+        public final long lsn;
+        /** Set for {@link #ADD_NODE} and {@link #UPDATE_NODE}. */
+        public final Node node;
+        /** Set for {@link #ADD_LINK} and {@link #DELETE_LINK}; a deleted link carries no properties. */
+        public final Relation relation;
+        /** Set for {@link #DELETE_NODE}, {@link #SET_PROPERTY} and {@link #REMOVE_PROPERTY}. */
+        public final String id;
+        /** For the property ops: the property changed, and for {@link #SET_PROPERTY} its new value. */
+        public final String key;
+        public final Object value;
+        /**
+         * For {@link #DELETE_NODE}: the nodes with edges to it and the targets of its own edges, so
+         * replay can clean up the other shards even once the node's own shard has persisted the delete.
+         * Empty for entries of the legacy log.
+         */
+        public final Collection<String> sources;
+        public final Collection<String> targets;
+        /** For {@link #BATCH}: the operations of a transaction, which share its timestamp and LSN. */
+        public final List<WalEntry> ops;
+
+        private WalEntry(byte op, long timestamp, long lsn, Node node, Relation relation, String id,
+                         Collection<String> sources, Collection<String> targets, List<WalEntry> ops,
+                         String key, Object value) {
+            this.op = op;
+            this.timestamp = timestamp;
+            this.lsn = lsn;
+            this.node = node;
+            this.relation = relation;
+            this.id = id;
+            this.sources = sources;
+            this.targets = targets;
+            this.ops = ops;
+            this.key = key;
+            this.value = value;
+        }
+
+        private WalEntry(byte op, long timestamp, long lsn, Node node, Relation relation, String id,
+                         Collection<String> sources, Collection<String> targets, List<WalEntry> ops) {
+            this(op, timestamp, lsn, node, relation, id, sources, targets, ops, null, null);
+        }
+
+        private static WalEntry property(byte op, long timestamp, String id, String key, Object value) {
+            return new WalEntry(op, timestamp, 0, null, null, id, Collections.emptySet(), Collections.emptySet(),
+                    Collections.emptyList(), key, value);
+        }
+
+        private WalEntry(byte op, long timestamp, long lsn, Node node, Relation relation, String id,
+                         Collection<String> sources, Collection<String> targets) {
+            this(op, timestamp, lsn, node, relation, id, sources, targets, Collections.emptyList());
+        }
+
+        private WalEntry(byte op, long timestamp, Node node, Relation relation, String id) {
+            this(op, timestamp, 0, node, relation, id, Collections.emptySet(), Collections.emptySet());
+        }
+
+        private WalEntry(byte op, Node node, Relation relation, String id) {
+            this(op, System.currentTimeMillis(), node, relation, id);
+        }
+
+        public static WalEntry addNode(Node n) { return new WalEntry(ADD_NODE, n, null, null); }
+        public static WalEntry updateNode(Node n) { return new WalEntry(UPDATE_NODE, n, null, null); }
+        public static WalEntry deleteNode(String id, Collection<String> sources, Collection<String> targets) {
+            return new WalEntry(DELETE_NODE, System.currentTimeMillis(), 0, null, null, id, sources, targets);
+        }
+        public static WalEntry addLink(Relation r) { return new WalEntry(ADD_LINK, null, r, null); }
+        public static WalEntry deleteLink(Relation r) { return new WalEntry(DELETE_LINK, null, r, null); }
+        /** Sets one property of an existing node; only the key and value are logged, not the node. */
+        public static WalEntry setProperty(String id, String key, Object value) {
+            return property(SET_PROPERTY, System.currentTimeMillis(), id, key, value);
+        }
+        public static WalEntry removeProperty(String id, String key) {
+            return property(REMOVE_PROPERTY, System.currentTimeMillis(), id, key, null);
+        }
+        public static WalEntry batch(List<WalEntry> ops) {
+            return new WalEntry(BATCH, System.currentTimeMillis(), 0, null, null, null,
+                    Collections.emptySet(), Collections.emptySet(), new ArrayList<>(ops));
+        }
+
+        private WalEntry stamped(long timestamp) {
+            return new WalEntry(op, timestamp, lsn, node, relation, id, sources, targets, ops, key, value);
+        }
+
+        private WalEntry at(long lsn) {
+            List<WalEntry> placed = ops;
+            if (!ops.isEmpty()) {
+                placed = new ArrayList<>(ops.size());
+                for (WalEntry e : ops) placed.add(e.at(lsn));
+            }
+            return new WalEntry(op, timestamp, lsn, node, relation, id, sources, targets, placed, key, value);
+        }
+
+        /** @return The name of the operation, e.g. {@code ADD_NODE}. */
+        public String opName() {
+            switch (op) {
+                case ADD_NODE: return "ADD_NODE";
+                case UPDATE_NODE: return "UPDATE_NODE";
+                case DELETE_NODE: return "DELETE_NODE";
+                case ADD_LINK: return "ADD_LINK";
+                case DELETE_LINK: return "DELETE_LINK";
+                case BATCH: return "BATCH";
+                case SET_PROPERTY: return "SET_PROPERTY";
+                case REMOVE_PROPERTY: return "REMOVE_PROPERTY";
+                default: return "UNKNOWN";
+            }
+        }
+
+        void writePayload(DataOutputStream out) throws IOException {
+            switch (op) {
+                case ADD_NODE:
+                case UPDATE_NODE: node.writeTo(out); break;
+                case DELETE_NODE:
+                    out.writeUTF(id);
+                    writeIds(out, sources);
+                    writeIds(out, targets);
+                    break;
+                case ADD_LINK: relation.writeTo(out); break;
+                case DELETE_LINK:
+                    out.writeUTF(relation.getSourceId());
+                    out.writeUTF(relation.getTargetId());
+                    out.writeUTF(relation.getType());
+                    break;
+                case SET_PROPERTY:
+                    out.writeUTF(id);
+                    out.writeUTF(key);
+                    Node.writeValue(out, value);
+                    break;
+                case REMOVE_PROPERTY:
+                    out.writeUTF(id);
+                    out.writeUTF(key);
+                    break;
+                case BATCH:
+                    out.writeInt(ops.size());
+                    for (WalEntry e : ops) {
+                        out.writeByte(e.op);
+                        e.writePayload(out);
+                    }
+                    break;
+                default: throw new IOException("Unknown WAL op: " + op);
+            }
+        }
+
+        static WalEntry readPayload(byte op, long timestamp, DataInput in) throws IOException {
+            switch (op) {
+                case ADD_NODE:
+                case UPDATE_NODE: return new WalEntry(op, timestamp, Node.readFrom(in), null, null);
+                case DELETE_NODE:
+                    return new WalEntry(op, timestamp, 0, null, null, in.readUTF(), readIds(in), readIds(in));
+                case ADD_LINK: return new WalEntry(op, timestamp, null, Relation.readFrom(in), null);
+                case DELETE_LINK:
+                    return new WalEntry(op, timestamp, null, new Relation(in.readUTF(), in.readUTF(), in.readUTF()), null);
+                case SET_PROPERTY:
+                    return property(op, timestamp, in.readUTF(), in.readUTF(), Node.readValue(in));
+                case REMOVE_PROPERTY:
+                    return property(op, timestamp, in.readUTF(), in.readUTF(), null);
+                case BATCH:
+                    int n = in.readInt();
+                    List<WalEntry> ops = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) ops.add(readPayload(in.readByte(), timestamp, in));
+                    return new WalEntry(op, timestamp, 0, null, null, null, Collections.emptySet(), Collections.emptySet(), ops);
+                default: throw new IOException("Unknown WAL op: " + op);
+            }
+        }
+
+        private static void writeIds(DataOutputStream out, Collection<String> ids) throws IOException {
+            out.writeInt(ids.size());
+            for (String id : ids) out.writeUTF(id);
+        }
+
+        private static List<String> readIds(DataInput in) throws IOException {
+            int n = in.readInt();
+            List<String> ids = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) ids.add(in.readUTF());
+            return ids;
         }
     }
 }
@@ -1,6 +1,6 @@
 package com.atlasdblite.models;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -42,6 +42,15 @@ public class Node {
         this.properties.put(key.intern(), value);
     }
 
+    /**
+     * Removes a property from the node.
+     * @param key The property key.
+     * @return The removed value, or {@code null} if the node had no such property.
+     */
+    public Object removeProperty(String key) {
+        return this.properties.remove(key);
+    }
+
     public String getId() { return id; }
     public String getLabel() { return label; }
     public Map<String, Object> getProperties() { return properties; }
@@ -61,30 +70,38 @@ public class Node {
         
         for (Map.Entry<String, Object> entry : properties.entrySet()) {
             out.writeUTF(entry.getKey());
-            Object val = entry.getValue();
-            
-            if (val instanceof List) {
-                out.writeByte(2); // Type 2: List
-                List<?> list = (List<?>) val;
-                out.writeInt(list.size());
-                for (Object item : list) {
-                    out.writeUTF(item.toString());
-                }
-            } else {
-                out.writeByte(1); // Type 1: String
-                out.writeUTF(val.toString());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Writes a single property value, tagged with its type.
+     * @param out The {@link DataOutputStream} to write to.
+     * @param val A String or a List (written as a list of Strings); anything else is written as its String form.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void writeValue(DataOutputStream out, Object val) throws IOException {
+        if (val instanceof List) {
+            out.writeByte(2); // Type 2: List
+            List<?> list = (List<?>) val;
+            out.writeInt(list.size());
+            for (Object item : list) {
+                out.writeUTF(item.toString());
             }
+        } else {
+            out.writeByte(1); // Type 1: String
+            out.writeUTF(val.toString());
         }
     }
 
     /**
      * Creates a Node instance by reading data from a binary input stream.
      * Handles type reconstruction for Strings and Lists.
-     * @param in The {@link DataInputStream} to read from.
+     * @param in The {@link DataInput} to read from (a stream or a mapped buffer).
      * @return A new {@link Node} instance.
      * @throws IOException If an I/O error occurs or the stream is malformed.
      */
-    public static Node readFrom(DataInputStream in) throws IOException {
+    public static Node readFrom(DataInput in) throws IOException {
         String id = in.readUTF();
         String label = in.readUTF();
         Node node = new Node(id, label);
@@ -92,23 +109,30 @@ public class Node {
         int propCount = in.readInt();
         for (int i = 0; i < propCount; i++) {
             String key = in.readUTF();
-            byte type = in.readByte();
-            
-            if (type == 2) { // List
-                int listSize = in.readInt();
-                List<String> list = new ArrayList<>();
-                for (int j = 0; j < listSize; j++) {
-                    list.add(in.readUTF());
-                }
-                node.addProperty(key, list);
-            } else { // String (Default)
-                String value = in.readUTF();
-                node.addProperty(key, value);
-            }
+            node.addProperty(key, readValue(in));
         }
         return node;
     }
 
+    /**
+     * Reads a property value written by {@link #writeValue}.
+     * @param in The {@link DataInput} to read from.
+     * @return A String or a List of Strings.
+     * @throws IOException If an I/O error occurs or the stream is malformed.
+     */
+    public static Object readValue(DataInput in) throws IOException {
+        byte type = in.readByte();
+        if (type == 2) { // List
+            int listSize = in.readInt();
+            List<String> list = new ArrayList<>();
+            for (int j = 0; j < listSize; j++) {
+                list.add(in.readUTF());
+            }
+            return list;
+        }
+        return in.readUTF(); // String (Default)
+    }
+
     @Override
     public String toString() {
         return String.format("[ID: %s | Label: %s] %s", id, label, properties);
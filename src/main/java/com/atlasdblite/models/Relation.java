@@ -1,6 +1,6 @@
 package com.atlasdblite.models;
 
-import java.io.DataInputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -75,7 +75,7 @@ public class Relation {
         }
     }
 
-    public static Relation readFrom(DataInputStream in) throws IOException {
+    public static Relation readFrom(DataInput in) throws IOException {
         String src = in.readUTF();
         String tgt = in.readUTF();
         String type = in.readUTF();
@@ -1,22 +1,52 @@
 package com.atlasdblite.security;
 
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Base64;
 
 /**
  * Manages encryption and decryption for the database.
  * This class handles the loading or generation of a secret key and provides
- * simple methods for encrypting and decrypting data using AES.
+ * authenticated, byte-oriented encryption using AES-GCM.
+ * <p>
+ * Every sealed message is laid out as a random 12-byte nonce followed by the ciphertext
+ * and its 16-byte authentication tag. One-shot operations reuse a cipher cached per thread;
+ * streams get their own cipher because they outlive the call that created them. Callers that
+ * seal many messages can pass their own output buffer, so nothing is allocated per message.
  */
 public class CryptoManager {
     private static final String ALGORITHM = "AES";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
     private static final String KEY_FILE = "atlas.key";
+
+    /** Length of the random nonce that prefixes every sealed message. */
+    public static final int NONCE_LENGTH = 12;
+    /** Length of the GCM authentication tag appended to every sealed message. */
+    public static final int TAG_LENGTH = 16;
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    });
+
+    private final SecureRandom random = new SecureRandom();
     private SecretKey secretKey;
 
     /**
@@ -31,12 +61,137 @@ public class CryptoManager {
         }
     }
 
+    // --- Authenticated Byte API ---
+
+    /**
+     * Encrypts and authenticates a byte array.
+     * @param data The plaintext bytes.
+     * @return The nonce, ciphertext and tag.
+     * @throws Exception If the encryption process fails.
+     */
+    public byte[] encrypt(byte[] data) throws Exception {
+        byte[] out = new byte[NONCE_LENGTH + data.length + TAG_LENGTH];
+        byte[] nonce = newNonce();
+        System.arraycopy(nonce, 0, out, 0, NONCE_LENGTH);
+        Cipher cipher = cachedCipher(Cipher.ENCRYPT_MODE, nonce);
+        cipher.doFinal(data, 0, data.length, out, NONCE_LENGTH);
+        return out;
+    }
+
+    /**
+     * Encrypts a slice of a byte array and binds it to some associated data, such as the
+     * position it will be stored at, so a sealed block cannot be moved without detection.
+     * @param data The buffer holding the plaintext.
+     * @param offset The start of the plaintext.
+     * @param length The number of plaintext bytes.
+     * @param aad Authenticated but unencrypted context that must be supplied again on decryption.
+     * @return The nonce, ciphertext and tag.
+     * @throws Exception If the encryption process fails.
+     */
+    public byte[] encrypt(byte[] data, int offset, int length, byte[] aad) throws Exception {
+        byte[] out = new byte[NONCE_LENGTH + length + TAG_LENGTH];
+        encrypt(data, offset, length, aad, out, 0);
+        return out;
+    }
+
+    /**
+     * Like {@link #encrypt(byte[], int, int, byte[])}, but seals into a buffer of the caller's.
+     * @param out Receives the nonce, ciphertext and tag; needs {@code length + NONCE_LENGTH + TAG_LENGTH}
+     *            bytes from {@code outOffset}. Must not overlap the plaintext.
+     * @return The number of bytes written to {@code out}.
+     * @throws Exception If the encryption process fails.
+     */
+    public int encrypt(byte[] data, int offset, int length, byte[] aad, byte[] out, int outOffset) throws Exception {
+        System.arraycopy(newNonce(), 0, out, outOffset, NONCE_LENGTH);
+        Cipher cipher = cachedCipher(Cipher.ENCRYPT_MODE, out, outOffset);
+        cipher.updateAAD(aad);
+        return NONCE_LENGTH + cipher.doFinal(data, offset, length, out, outOffset + NONCE_LENGTH);
+    }
+
+    /**
+     * Verifies and decrypts a message produced by {@link #encrypt(byte[], int, int, byte[])}.
+     * @param sealed The nonce, ciphertext and tag, from its position to its limit. Not modified.
+     * @param output Receives the plaintext; must have room for the sealed length minus nonce and tag.
+     * @param aad The associated data the message was sealed with.
+     * @return The output buffer, flipped for reading.
+     * @throws Exception If the message or its context was tampered with.
+     */
+    public ByteBuffer decrypt(ByteBuffer sealed, ByteBuffer output, byte[] aad) throws Exception {
+        ByteBuffer in = sealed.duplicate();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        in.get(nonce);
+        Cipher cipher = cachedCipher(Cipher.DECRYPT_MODE, nonce);
+        cipher.updateAAD(aad);
+        output.clear();
+        cipher.doFinal(in, output);
+        return output.flip();
+    }
+
+    /**
+     * Verifies and decrypts a message produced by {@link #encrypt(byte[])}.
+     * @param sealed The nonce, ciphertext and tag.
+     * @return The plaintext bytes.
+     * @throws Exception If the message was tampered with or the decryption fails.
+     */
+    public byte[] decrypt(byte[] sealed) throws Exception {
+        Cipher cipher = cachedCipher(Cipher.DECRYPT_MODE, sealed);
+        return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+    }
+
+    /**
+     * Verifies and decrypts a sealed message in place, e.g. a privately mapped region of a file.
+     * The plaintext overwrites the ciphertext starting right after the nonce.
+     * @param buffer The nonce, ciphertext and tag, from its position to its limit.
+     * @return A view of the plaintext.
+     * @throws Exception If the message was tampered with or the decryption fails.
+     */
+    public ByteBuffer decryptInPlace(ByteBuffer buffer) throws Exception {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        buffer.get(nonce);
+        Cipher cipher = cachedCipher(Cipher.DECRYPT_MODE, nonce);
+        int start = buffer.position();
+        ByteBuffer output = buffer.duplicate();
+        // Cipher ByteBuffer operations are copy-safe, so input and output may share memory.
+        cipher.doFinal(buffer.duplicate(), output);
+        return output.limit(output.position()).position(start).slice();
+    }
+
+    /**
+     * Wraps a stream so that everything written to it is encrypted.
+     * The nonce is written immediately; the authentication tag is written on {@code close()}.
+     * @param out The destination for the sealed bytes.
+     * @return A stream accepting plaintext.
+     * @throws IOException If the nonce cannot be written or the cipher cannot be initialized.
+     */
+    public OutputStream encryptingStream(OutputStream out) throws IOException {
+        byte[] nonce = newNonce();
+        out.write(nonce);
+        return new SealingStream(out, newCipher(Cipher.ENCRYPT_MODE, nonce));
+    }
+
     /**
-     * Encrypts a plain-text string.
+     * Wraps a stream produced by {@link #encryptingStream(OutputStream)} for reading.
+     * The tag is verified when the end of the stream is reached.
+     * @param in The sealed bytes.
+     * @return A stream yielding plaintext.
+     * @throws IOException If the nonce cannot be read or the cipher cannot be initialized.
+     */
+    public InputStream decryptingStream(InputStream in) throws IOException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        new DataInputStream(in).readFully(nonce);
+        return new CipherInputStream(in, newCipher(Cipher.DECRYPT_MODE, nonce));
+    }
+
+    // --- Legacy String API ---
+
+    /**
+     * Encrypts a plain-text string with the original AES/ECB scheme.
      * @param data The string to encrypt.
      * @return A Base64-encoded representation of the encrypted data.
      * @throws Exception If the encryption process fails.
+     * @deprecated Unauthenticated; kept so that pre-GCM data can still be read. Use {@link #encrypt(byte[])}.
      */
+    @Deprecated
     public String encrypt(String data) throws Exception {
         Cipher cipher = Cipher.getInstance(ALGORITHM);
         cipher.init(Cipher.ENCRYPT_MODE, secretKey);
@@ -45,11 +200,13 @@ public class CryptoManager {
     }
 
     /**
-     * Decrypts a Base64-encoded string.
+     * Decrypts a Base64-encoded string produced by {@link #encrypt(String)}.
      * @param encryptedData The encrypted, Base64-encoded string.
      * @return The original plain-text string.
      * @throws Exception If the decryption process fails.
+     * @deprecated Only needed to read legacy segment and WAL files. Use {@link #decrypt(byte[])}.
      */
+    @Deprecated
     public String decrypt(String encryptedData) throws Exception {
         Cipher cipher = Cipher.getInstance(ALGORITHM);
         cipher.init(Cipher.DECRYPT_MODE, secretKey);
@@ -57,6 +214,89 @@ public class CryptoManager {
         return new String(cipher.doFinal(decodedBytes));
     }
 
+    /**
+     * Encrypts through one output buffer for the life of the stream. A {@code CipherOutputStream}
+     * allocates a new array for every write, which costs more than the cipher itself.
+     */
+    private static final class SealingStream extends OutputStream {
+        private static final int CHUNK = 16 * 1024;
+
+        private final OutputStream out;
+        private final Cipher cipher;
+        private final byte[] sealed;
+        private boolean closed;
+
+        SealingStream(OutputStream out, Cipher cipher) {
+            this.out = out;
+            this.cipher = cipher;
+            // Room for a chunk plus the partial block held back from the previous one, or for the tag.
+            this.sealed = new byte[Math.max(cipher.getOutputSize(CHUNK), cipher.getOutputSize(0))];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                for (int end = off + len; off < end; off += CHUNK) {
+                    int n = cipher.update(b, off, Math.min(CHUNK, end - off), sealed, 0);
+                    out.write(sealed, 0, n);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        /** Writes the last block and the tag, then closes the underlying stream. */
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try (OutputStream o = out) {
+                o.write(sealed, 0, cipher.doFinal(sealed, 0));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encryption failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // --- Cipher Helpers ---
+
+    private byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /** Initializes this thread's cipher with the nonce held in the first bytes of {@code nonce}. */
+    private Cipher cachedCipher(int mode, byte[] nonce) throws GeneralSecurityException {
+        return cachedCipher(mode, nonce, 0);
+    }
+
+    private Cipher cachedCipher(int mode, byte[] nonce, int offset) throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(mode, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce, offset, NONCE_LENGTH));
+        return cipher;
+    }
+
+    private Cipher newCipher(int mode, byte[] nonce) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, secretKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cipher initialization failed: " + e.getMessage(), e);
+        }
+    }
+
     /**
      * Loads the secret key from the {@code atlas.key} file if it exists.
      * If not, it generates a new 256-bit AES key and saves it to the file for future use.
@@ -80,4 +320,4 @@ public class CryptoManager {
             return key;
         }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,9 @@
 package com.atlasdblite.server;
 
 import com.atlasdblite.engine.GraphEngine;
+import com.atlasdblite.engine.PageRank;
+import com.atlasdblite.engine.Transaction;
+import com.atlasdblite.engine.TransactionManager;
 import com.atlasdblite.models.Node;
 import com.atlasdblite.models.Relation;
 import com.google.gson.Gson;
@@ -15,20 +18,37 @@ import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 
 public class APIServer {
+    /** L1 error allowed in the dashboard's PageRank scores; see {@link GraphEngine#startIncrementalPageRank}. */
+
     private final GraphEngine engine;
     private HttpServer server;
     private final Gson gson;
+    private final ChangeJson changes = new ChangeJson();
+    /** Set when the engine follows a primary; reported by {@code /api/status}. */
+    private volatile Replica replica;
+    /** Open change streams, closed when the server stops. */
+    private final Set<TransactionManager.Subscription> streams = ConcurrentHashMap.newKeySet();
 
     public APIServer(GraphEngine engine) {
         this.engine = engine;
         this.gson = new Gson();
     }
 
+    /**
+     * Reports replication state in {@code /api/status} for an engine that follows a primary.
+     */
+    public void setReplica(Replica replica) {
+        this.replica = replica;
+    }
+
     public void start(int port) throws IOException {
         if (server != null)
             return;
@@ -59,11 +79,10 @@ public class APIServer {
 
         // 2. Full Graph Data
         server.createContext("/api/graph", exchange -> {
+            // Kept current by incremental mode when it is on; otherwise computed once, on first use.
             Map<String, Double> scores = engine.getPageRankScores();
-
-            if (scores.isEmpty()) {
-                scores = engine.calculatePageRank(20, 0.85);
-            }
+            if (scores.isEmpty() && !engine.isIncrementalPageRank())
+                scores = engine.calculatePageRank(new PageRank()).getScores();
 
             GraphDTO dto = new GraphDTO(
                     engine.getAllNodes(),
@@ -75,6 +94,7 @@ public class APIServer {
         // 3. Node Operations (Create, Update, Delete)
         server.createContext("/api/node", exchange -> {
             String method = exchange.getRequestMethod();
+            if (rejectWrite(exchange)) return;
             try {
                 if ("POST".equalsIgnoreCase(method)) {
                     NodeDTO dto = parseBody(exchange, NodeDTO.class);
@@ -89,8 +109,11 @@ public class APIServer {
                         sendResponse(exchange, 404, "{\"error\":\"Node not found\"}");
                         return;
                     }
-                    if (dto.props != null) {
-                        dto.props.forEach((k, v) -> engine.updateNode(dto.id, k, v.toString()));
+                    if (dto.props != null && !dto.props.isEmpty()) {
+                        // One transaction logs every changed property in a single WAL record.
+                        Transaction tx = engine.beginTransaction();
+                        dto.props.forEach((k, v) -> tx.updateNode(dto.id, k, v.toString()));
+                        tx.commit();
                     }
                     sendResponse(exchange, 200, "{\"message\":\"Node Updated\"}");
                 } else if ("DELETE".equalsIgnoreCase(method)) {
@@ -117,6 +140,7 @@ public class APIServer {
         // 4. Link Operations (Create, Update, Delete)
         server.createContext("/api/link", exchange -> {
             String method = exchange.getRequestMethod();
+            if (rejectWrite(exchange)) return;
             try {
                 if ("POST".equalsIgnoreCase(method)) {
                     LinkDTO dto = parseBody(exchange, LinkDTO.class);
@@ -157,7 +181,28 @@ public class APIServer {
         });
 
         // Standard Endpoints
-        server.createContext("/api/status", exchange -> sendResponse(exchange, 200, "{\"status\":\"online\"}"));
+        server.createContext("/api/status", exchange -> {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("status", "online");
+            status.put("lsn", engine.getCommittedLsn());
+            Replica follower = replica;
+            if (follower != null) {
+                status.put("role", "replica");
+                status.put("primary", follower.getPrimary());
+                status.put("appliedLsn", follower.getPosition());
+                status.put("lag", follower.getLag());
+            }
+            sendResponse(exchange, 200, gson.toJson(status));
+        });
+
+        // Consistent starting point for a replica: every change below lsn is in the graph.
+        server.createContext("/api/snapshot", exchange -> {
+            SnapshotDTO dto = new SnapshotDTO();
+            dto.lsn = engine.getAppliedLsn();
+            dto.nodes = engine.getAllNodes();
+            dto.edges = engine.getAllRelations();
+            sendResponse(exchange, 200, gson.toJson(dto));
+        });
         server.createContext("/api/nodes", exchange -> sendResponse(exchange, 200, gson.toJson(engine.getAllNodes())));
         server.createContext("/api/search", exchange -> {
             String q = exchange.getRequestURI().getQuery();
@@ -169,11 +214,69 @@ public class APIServer {
             }
         });
 
+        // Change stream: committed WAL records as NDJSON, from ?from=<lsn> on (default: from now).
+        // Each line carries its lsn; a client resumes with from=<last lsn + 1>. With follow=false
+        // the response ends at the newest committed change instead of staying open.
+        server.createContext("/api/changes", exchange -> {
+            Map<String, String> params = queryToMap(exchange.getRequestURI().getQuery());
+            long from;
+            try {
+                from = params.containsKey("from") ? Long.parseLong(params.get("from")) : engine.getCommittedLsn();
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "{\"error\":\"Invalid from parameter\"}");
+                return;
+            }
+            if (from < engine.getOldestLsn()) {
+                sendResponse(exchange, 410, "{\"error\":\"Changes before LSN " + engine.getOldestLsn() + " are gone\"}");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                if ("false".equalsIgnoreCase(params.get("follow"))) {
+                    long end = engine.getCommittedLsn();
+                    long next = from;
+                    while (next < end) {
+                        List<TransactionManager.WalEntry> changes = engine.readChanges(next, 1024);
+                        if (changes.isEmpty()) break;
+                        for (TransactionManager.WalEntry change : changes) {
+                            if (change.lsn >= end) {
+                                next = end;
+                                break;
+                            }
+                            writeChange(os, change);
+                            next = change.lsn + 1;
+                        }
+                    }
+                    return;
+                }
+                TransactionManager.Subscription[] self = new TransactionManager.Subscription[1];
+                self[0] = engine.subscribeChanges(from, change -> {
+                    try {
+                        writeChange(os, change);
+                    } catch (IOException e) {
+                        self[0].close(); // The client went away.
+                    }
+                });
+                streams.add(self[0]);
+                try {
+                    self[0].await();
+                } catch (InterruptedException e) {
+                    self[0].close();
+                } finally {
+                    streams.remove(self[0]);
+                }
+            } catch (IllegalStateException e) {
+                System.err.println("Change Stream Failed: " + e.getMessage());
+            }
+        });
+
         server.start();
         System.out.println(" [WEB] Dashboard available at http://localhost:" + port);
     }
 
     public void stop() {
+        for (TransactionManager.Subscription stream : streams) stream.close();
         if (server != null) {
             server.stop(0);
             server = null;
@@ -190,6 +293,22 @@ public class APIServer {
         }
     }
 
+    /**
+     * Answers 403 to a mutating request when the engine is a read-only replica.
+     * @return {@code true} if the request was rejected.
+     */
+    private boolean rejectWrite(HttpExchange exchange) throws IOException {
+        if (!engine.isReadOnly() || "GET".equalsIgnoreCase(exchange.getRequestMethod()))
+            return false;
+        sendResponse(exchange, 403, "{\"error\":\"Read-only replica\"}");
+        return true;
+    }
+
+    private void writeChange(OutputStream os, TransactionManager.WalEntry change) throws IOException {
+        os.write((changes.toJson(change) + "\n").getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+
     private <T> T parseBody(HttpExchange exchange, Class<T> clazz) {
         return gson.fromJson(new InputStreamReader(exchange.getRequestBody()), clazz);
     }
@@ -221,6 +340,12 @@ public class APIServer {
         Map<String, Object> props;
     }
 
+    static class SnapshotDTO {
+        long lsn;
+        Collection<Node> nodes;
+        List<Relation> edges;
+    }
+
     private static class GraphDTO {
         Collection<Node> nodes;
         List<Relation> edges;
@@ -0,0 +1,107 @@
+package com.atlasdblite.server;
+
+import com.atlasdblite.engine.TransactionManager.WalEntry;
+import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The JSON form of a committed change, as streamed by {@code /api/changes}: one object per
+ * line with its {@code lsn}, {@code timestamp}, {@code op} and the operation's fields.
+ * A delete carries only the node id; whoever applies it works out the edges itself.
+ */
+final class ChangeJson {
+    private final Gson gson = new Gson();
+
+    String toJson(WalEntry e) {
+        return gson.toJson(toMap(e));
+    }
+
+    private Map<String, Object> toMap(WalEntry e) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("lsn", e.lsn);
+        m.put("timestamp", e.timestamp);
+        m.put("op", e.opName());
+        switch (e.op) {
+            case WalEntry.ADD_NODE:
+            case WalEntry.UPDATE_NODE:
+                m.put("node", e.node);
+                break;
+            case WalEntry.DELETE_NODE:
+                m.put("id", e.id);
+                break;
+            case WalEntry.ADD_LINK:
+            case WalEntry.DELETE_LINK:
+                m.put("relation", e.relation);
+                break;
+            case WalEntry.SET_PROPERTY:
+            case WalEntry.REMOVE_PROPERTY:
+                m.put("id", e.id);
+                m.put("key", e.key);
+                if (e.value != null) m.put("value", e.value);
+                break;
+            case WalEntry.BATCH:
+                List<Map<String, Object>> ops = new ArrayList<>();
+                for (WalEntry op : e.ops) {
+                    Map<String, Object> child = toMap(op);
+                    child.remove("lsn");
+                    child.remove("timestamp");
+                    ops.add(child);
+                }
+                m.put("ops", ops);
+                break;
+        }
+        return m;
+    }
+
+    /**
+     * Parses one line of the stream.
+     */
+    Change parse(String line) {
+        return gson.fromJson(line, Change.class);
+    }
+
+    private static WalEntry toEntry(Change c) {
+        switch (c.op) {
+            case "ADD_NODE": return WalEntry.addNode(c.node);
+            case "UPDATE_NODE": return WalEntry.updateNode(c.node);
+            case "DELETE_NODE": return WalEntry.deleteNode(c.id, Collections.emptySet(), Collections.emptySet());
+            case "ADD_LINK": return WalEntry.addLink(c.relation);
+            case "DELETE_LINK": return WalEntry.deleteLink(c.relation);
+            case "SET_PROPERTY": return WalEntry.setProperty(c.id, c.key, c.value);
+            case "REMOVE_PROPERTY": return WalEntry.removeProperty(c.id, c.key);
+            case "BATCH":
+                List<WalEntry> ops = new ArrayList<>();
+                for (Change op : c.ops) ops.add(toEntry(op));
+                return WalEntry.batch(ops);
+            default: throw new IllegalArgumentException("Unknown change: " + c.op);
+        }
+    }
+
+    /** Shape of a streamed change. */
+    static class Change {
+        long lsn;
+        String op;
+        Node node;
+        Relation relation;
+        String id;
+        String key;
+        Object value;
+        List<Change> ops;
+
+        /**
+         * Rebuilds the entry the change describes. The entry is new: it has no LSN and is
+         * stamped with the current time.
+         * @throws IllegalArgumentException If the operation is unknown.
+         */
+        WalEntry toEntry() {
+            return ChangeJson.toEntry(this);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.atlasdblite.server;
+
+import com.atlasdblite.engine.GraphEngine;
+import com.atlasdblite.engine.TransactionManager.WalEntry;
+import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Keeps a local engine in step with a primary by tailing the change stream of the primary's
+ * API server ({@code /api/changes}) and applying each change with
+ * {@link GraphEngine#applyReplicated}. The engine is read-only while it follows, so it can
+ * serve searches and traversals for the primary without ever diverging from it.
+ * <p>
+ * The replica's position (the next primary LSN to apply) is kept in {@code replica.lsn} in its
+ * database directory, saved every {@link #SAVE_EVERY} changes and whenever it has caught up.
+ * A restart resumes from there and may re-apply a few changes, which is harmless. Without a
+ * saved position, or once the primary has deleted the log the replica still needed, the engine
+ * is wiped and reloaded from the primary's {@code /api/snapshot} first.
+ */
+public class Replica {
+    private static final String POSITION_FILE = "replica.lsn";
+    private static final int SAVE_EVERY = 1000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final GraphEngine engine;
+    private final String primary;
+    private final File positionFile;
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final ChangeJson changes = new ChangeJson();
+    private final Gson gson = new Gson();
+    private final Thread thread;
+    /** Next primary LSN to apply; 0 until a snapshot has been loaded. */
+    private volatile long position;
+    private volatile boolean stopped;
+    private volatile InputStream stream;
+
+    /**
+     * @param engine The engine to keep in step; it is made read-only by {@link #start()}.
+     * @param primary Base URL of the primary's API server, e.g. {@code http://localhost:8080}.
+     */
+    public Replica(GraphEngine engine, String primary) {
+        this.engine = engine;
+        this.primary = primary.endsWith("/") ? primary.substring(0, primary.length() - 1) : primary;
+        this.positionFile = new File(engine.getDbDirectory(), POSITION_FILE);
+        this.position = loadPosition();
+        this.thread = new Thread(this::run, "atlas-replica");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        engine.setReadOnly(true);
+        thread.start();
+        System.out.println(" [REPLICA] Following " + primary + " from LSN " + position + ".");
+    }
+
+    /**
+     * Stops following and makes the engine writable again, e.g. to promote it.
+     */
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+        closeStream();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        savePosition();
+        engine.setReadOnly(false);
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    /** @return The next primary LSN this replica will apply. */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return How many committed changes the primary is ahead by, or -1 if it cannot be reached.
+     */
+    public long getLag() {
+        try {
+            HttpResponse<String> res = client.send(get("/api/status"), HttpResponse.BodyHandlers.ofString());
+            Status status = gson.fromJson(res.body(), Status.class);
+            return Math.max(0, status.lsn - position);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            try {
+                if (position == 0) loadSnapshot();
+                follow();
+            } catch (Exception e) {
+                if (stopped) break;
+                System.err.println("Replication Failed: " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void loadSnapshot() throws IOException, InterruptedException {
+        HttpResponse<String> res = client.send(get("/api/snapshot"), HttpResponse.BodyHandlers.ofString());
+        if (res.statusCode() != 200) throw new IOException("Primary answered " + res.statusCode() + " for a snapshot");
+        APIServer.SnapshotDTO snapshot = gson.fromJson(res.body(), APIServer.SnapshotDTO.class);
+        engine.wipeDatabase();
+        for (Node n : snapshot.nodes) engine.applyReplicated(WalEntry.addNode(n));
+        for (Relation r : snapshot.edges) engine.applyReplicated(WalEntry.addLink(r));
+        position = snapshot.lsn;
+        savePosition();
+        System.out.println(" [REPLICA] Loaded snapshot of " + snapshot.nodes.size() + " nodes at LSN " + position + ".");
+    }
+
+    /** Applies the change stream until it ends, the replica stops or a change fails. */
+    private void follow() throws IOException, InterruptedException {
+        HttpResponse<InputStream> res = client.send(get("/api/changes?from=" + position), HttpResponse.BodyHandlers.ofInputStream());
+        if (res.statusCode() == 410) {
+            res.body().close();
+            System.out.println(" [REPLICA] Primary no longer has LSN " + position + "; reloading snapshot.");
+            position = 0;
+            return;
+        }
+        if (res.statusCode() != 200) {
+            res.body().close();
+            throw new IOException("Primary answered " + res.statusCode() + " for changes");
+        }
+        stream = res.body();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            int unsaved = 0;
+            String line;
+            while (!stopped && (line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                ChangeJson.Change change = changes.parse(line);
+                engine.applyReplicated(change.toEntry());
+                position = change.lsn + 1;
+                if (++unsaved >= SAVE_EVERY || !in.ready()) {
+                    savePosition();
+                    unsaved = 0;
+                }
+            }
+        } finally {
+            stream = null;
+        }
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder().uri(URI.create(primary + path)).GET().build();
+    }
+
+    private void closeStream() {
+        InputStream s = stream;
+        if (s == null) return;
+        try {
+            s.close();
+        } catch (IOException ignored) {}
+    }
+
+    private long loadPosition() {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(positionFile.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private void savePosition() {
+        if (position == 0) return;
+        File tmp = new File(positionFile.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), Long.toString(position).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), positionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Replica Position Save Failed: " + e.getMessage());
+        }
+    }
+
+    /** The part of {@code /api/status} the replica reads. */
+    private static class Status {
+        long lsn;
+    }
+}
@@ -1,16 +1,32 @@
 package com.atlasdblite.engine;
 
 import com.atlasdblite.models.Node;
+import com.atlasdblite.models.Relation;
+import com.atlasdblite.security.CryptoManager;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GraphEngineTest {
 
@@ -25,6 +41,7 @@ public class GraphEngineTest {
 
     @AfterMethod
     public void tearDown() {
+        engine.close();
         deleteTestDir();
     }
 
@@ -45,10 +62,16 @@ public class GraphEngineTest {
             engine.persistNode(new Node("node_"+i, "Test"));
         }
         
+        engine.close();
+
         GraphEngine reloaded = new GraphEngine(TEST_DB_DIR);
-        Assert.assertEquals(reloaded.getAllNodes().size(), 50);
-        Assert.assertNotNull(reloaded.getNode("node_0"));
-        Assert.assertNotNull(reloaded.getNode("node_49"));
+        try {
+            Assert.assertEquals(reloaded.getAllNodes().size(), 50);
+            Assert.assertNotNull(reloaded.getNode("node_0"));
+            Assert.assertNotNull(reloaded.getNode("node_49"));
+        } finally {
+            reloaded.close();
+        }
     }
 
     @Test
@@ -76,4 +99,725 @@ public class GraphEngineTest {
         
         Assert.assertTrue(engine.traverse("A", "PARENT_OF").isEmpty());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSegmentRunsCompactIntoBase() {
+        DataSegment segment = new DataSegment(0, TEST_DB_DIR, new CryptoManager());
+        segment.putNode(new Node("keep", "Test"));
+        segment.putNode(new Node("drop", "Test"));
+        segment.save();
+        segment.addRelation(new Relation("keep", "drop", "LINK"));
+        segment.save();
+        segment.removeNode("drop");
+        segment.removeRelationsTo("drop");
+        segment.save();
+        Assert.assertEquals(segment.getRunCount(), 3);
+
+        segment.compact();
+        Assert.assertEquals(segment.getRunCount(), 0);
+
+        DataSegment reloaded = new DataSegment(0, TEST_DB_DIR, new CryptoManager());
+        Assert.assertNotNull(reloaded.getNode("keep"));
+        Assert.assertNull(reloaded.getNode("drop"));
+        Assert.assertTrue(reloaded.getAllRelations().isEmpty());
+    }
+
+    @Test
+    public void testLegacySegmentIsMigratedToBlockFormat() throws Exception {
+        CryptoManager crypto = new CryptoManager();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF("SEG_V1");
+        out.writeInt(1);
+        new Node("legacy", "Old").writeTo(out);
+        out.writeInt(0);
+        Files.createDirectories(Paths.get(TEST_DB_DIR));
+        String enc = crypto.encrypt(Base64.getEncoder().encodeToString(baos.toByteArray()));
+        Files.write(Paths.get(TEST_DB_DIR, "part_0.dat"), enc.getBytes());
+
+        DataSegment segment = new DataSegment(0, TEST_DB_DIR, crypto);
+        Assert.assertNotNull(segment.getNode("legacy"));
+        Assert.assertTrue(segment.needsCompaction(Integer.MAX_VALUE));
+
+        segment.compact();
+        byte[] header = Arrays.copyOf(Files.readAllBytes(Paths.get(TEST_DB_DIR, "part_0.dat")), 6);
+        Assert.assertEquals(new String(header, StandardCharsets.US_ASCII), "SEG_V3");
+        Assert.assertNotNull(new DataSegment(0, TEST_DB_DIR, crypto).getNode("legacy"));
+    }
+
+    @Test
+    public void testPointReadWithoutLoadingSegment() {
+        CryptoManager crypto = new CryptoManager();
+        DataSegment segment = new DataSegment(0, TEST_DB_DIR, crypto);
+        // Enough nodes to span several blocks.
+        for (int i = 0; i < 5000; i++) {
+            Node n = new Node(String.format("n%05d", i), "Bulk");
+            n.addProperty("payload", "value-" + i + "-padding-padding-padding");
+            segment.putNode(n);
+        }
+        segment.save();
+        segment.compact();
+        segment.putNode(new Node("n00042", "Updated"));
+        segment.removeNode("n04999");
+        segment.save();
+
+        DataSegment cold = new DataSegment(0, TEST_DB_DIR, crypto);
+        Assert.assertEquals(cold.peekNode("n03000").getProperties().get("payload"), "value-3000-padding-padding-padding");
+        Assert.assertEquals(cold.peekNode("n00042").getLabel(), "Updated");
+        Assert.assertNull(cold.peekNode("n04999"));
+        Assert.assertNull(cold.peekNode("missing"));
+
+        cold.compact();
+        Assert.assertEquals(cold.peekNode("n00000").getLabel(), "Bulk");
+        Assert.assertEquals(cold.getNodes().size(), 4999);
+    }
+
+    @Test
+    public void testAdjacencyStaysInSyncWithMutations() {
+        CryptoManager crypto = new CryptoManager();
+        DataSegment segment = new DataSegment(0, TEST_DB_DIR, crypto);
+        segment.addRelation(new Relation("a", "b", "KNOWS"));
+        segment.addRelation(new Relation("a", "c", "KNOWS"));
+        segment.addRelation(new Relation("a", "b", "knows")); // Upsert, not a duplicate.
+        segment.addRelation(new Relation("d", "b", "KNOWS"));
+        Assert.assertEquals(segment.getRelationsFrom("a").size(), 2);
+
+        segment.removeRelation("a", "c", "KNOWS");
+        segment.removeRelationsTo("b");
+        Assert.assertTrue(segment.getRelationsFrom("a").isEmpty());
+        Assert.assertTrue(segment.getRelationsFrom("d").isEmpty());
+
+        segment.addRelation(new Relation("x", "y", "LINK"));
+        segment.addRelation(new Relation("z", "y", "LINK"));
+        segment.removeNode("x");
+        segment.save();
+        segment.compact();
+
+        DataSegment reloaded = new DataSegment(0, TEST_DB_DIR, crypto);
+        Assert.assertTrue(reloaded.getRelationsFrom("x").isEmpty());
+        Assert.assertEquals(reloaded.getRelationsFrom("z").size(), 1);
+        Assert.assertEquals(reloaded.getAllRelations().size(), 1);
+    }
+
+    @Test
+    public void testDeleteNodeUsesIncomingIndex() {
+        engine.persistNode(new Node("hub", "Hub"));
+        for (int i = 0; i < 20; i++) {
+            engine.persistNode(new Node("spoke_" + i, "Spoke"));
+            engine.persistRelation("spoke_" + i, "hub", "POINTS_TO");
+            engine.persistRelation("hub", "spoke_" + i, "OWNS");
+        }
+        engine.close();
+
+        GraphEngine reloaded = new GraphEngine(TEST_DB_DIR);
+        try {
+            Assert.assertTrue(reloaded.deleteNode("hub"));
+            Assert.assertTrue(reloaded.getAllRelations().isEmpty());
+            Assert.assertEquals(reloaded.getAllNodes().size(), 20);
+        } finally {
+            reloaded.close();
+        }
+
+        // Deleting a spoke must not resurrect anything or leave edges behind.
+        GraphEngine again = new GraphEngine(TEST_DB_DIR);
+        try {
+            again.persistRelation("spoke_1", "spoke_2", "NEXT");
+            Assert.assertTrue(again.deleteNode("spoke_2"));
+            Assert.assertNull(again.getRelation("spoke_1", "spoke_2"));
+        } finally {
+            again.close();
+        }
+    }
+
+    @Test
+    public void testIncomingIndexIsBuiltForExistingData() throws Exception {
+        engine.persistNode(new Node("a", "Test"));
+        engine.persistNode(new Node("b", "Test"));
+        engine.persistRelation("a", "b", "LINK");
+        engine.close();
+        Files.delete(Paths.get(TEST_DB_DIR, "incoming.idx"));
+
+        GraphEngine reloaded = new GraphEngine(TEST_DB_DIR);
+        try {
+            Assert.assertTrue(Files.exists(Paths.get(TEST_DB_DIR, "incoming.idx")));
+            Assert.assertTrue(reloaded.deleteNode("b"));
+            Assert.assertTrue(reloaded.getAllRelations().isEmpty());
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    public void testOnlineReshardKeepsDataAndAcceptsWrites() throws Exception {
+        engine.close();
+        deleteTestDir();
+        GraphEngine small = new GraphEngine(TEST_DB_DIR, 4);
+        for (int i = 0; i < 200; i++) {
+            small.persistNode(new Node("n" + i, "Test"));
+            if (i > 0) small.persistRelation("n" + i, "n" + (i - 1), "NEXT");
+        }
+        small.checkpoint();
+        Assert.assertEquals(small.getShardCount(), 4);
+
+        java.util.concurrent.Future<?> done = small.reshard(7);
+        for (int i = 200; i < 300; i++) small.persistNode(new Node("n" + i, "Late"));
+        small.persistRelation("n250", "n0", "BACK");
+        done.get();
+
+        Assert.assertEquals(small.getShardCount(), 7);
+        Assert.assertFalse(small.isResharding());
+        Assert.assertEquals(small.getAllNodes().size(), 300);
+        Assert.assertEquals(small.getAllRelations().size(), 200);
+        Assert.assertTrue(small.deleteNode("n0"));
+        Assert.assertNull(small.getRelation("n1", "n0"));
+        small.close();
+
+        String[] oldFiles = new File(TEST_DB_DIR).list((d, name) -> name.matches("part_\\d+\\..*"));
+        Assert.assertEquals(oldFiles.length, 0);
+
+        GraphEngine reopened = new GraphEngine(TEST_DB_DIR);
+        try {
+            Assert.assertEquals(reopened.getShardCount(), 7);
+            Assert.assertEquals(reopened.getAllNodes().size(), 299);
+            Assert.assertEquals(reopened.traverse("n5", "NEXT").get(0).getId(), "n4");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testCacheBudgetEvictsWithoutLosingWrites() {
+        engine.setCacheBudget(1024);
+        for (int i = 0; i < 100; i++) {
+            Node n = new Node("c" + i, "Cached");
+            n.addProperty("payload", "x" + i);
+            engine.persistNode(n);
+            if (i > 0) engine.persistRelation("c" + i, "c" + (i - 1), "NEXT");
+        }
+        // Far below the ~60 KB the whole graph is charged at: only the last touched shard stays.
+        Assert.assertTrue(engine.getCachedBytes() < 10_000);
+        Assert.assertEquals(engine.getAllNodes().size(), 100);
+        engine.close();
+
+        GraphEngine reopened = new GraphEngine(TEST_DB_DIR);
+        try {
+            Assert.assertEquals(reopened.getAllNodes().size(), 100);
+            Assert.assertEquals(reopened.getAllRelations().size(), 99);
+            Assert.assertEquals(reopened.getNode("c42").getProperties().get("payload"), "x42");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testFullScansDoNotEvictHotShards() {
+        for (int i = 0; i < 400; i++) engine.persistNode(new Node("s" + i, "Scan"));
+        engine.checkpoint();
+
+        // A few shards' worth: a small hot set fits, the whole graph does not.
+        engine.setCacheBudget(4 * 25 * 320 + 2048);
+        // A second point access after s7's shard has been pushed out of A1in promotes it to Am.
+        int shards = engine.getShardCount();
+        int hot = Math.abs("s7".hashCode() % shards);
+        engine.getNode("s7");
+        for (int i = 0; i < 400; i++) {
+            String id = "s" + i;
+            if (Math.abs(id.hashCode() % shards) != hot) engine.getNode(id);
+        }
+        engine.getNode("s7");
+        Assert.assertTrue(engine.isHotShard("s7"));
+
+        engine.getAllNodes();
+        engine.search("nothing-matches");
+        Assert.assertTrue(engine.isHotShard("s7"));
+        Assert.assertEquals(engine.getNode("s7").getLabel(), "Scan");
+    }
+
+    @Test
+    public void testCheckpointWritesOnlyDirtyShards() {
+        for (int i = 0; i < 100; i++) engine.persistNode(new Node("d" + i, "Dirty"));
+        engine.checkpoint();
+        int runs = countRunFiles();
+
+        engine.persistNode(new Node("d1", "Touched"));
+        engine.checkpoint();
+        Assert.assertEquals(countRunFiles(), runs + 1);
+
+        engine.checkpoint();
+        Assert.assertEquals(countRunFiles(), runs + 1);
+        Assert.assertEquals(engine.getNode("d1").getLabel(), "Touched");
+    }
+
+    @Test
+    public void testWalRotatesAndDeletesOnlyWholeFilesBelowTheLsn() {
+        String dir = TEST_DB_DIR + "/wal_rotate";
+        TransactionManager wal = new TransactionManager(dir, new CryptoManager());
+        wal.setMaxFileSize(1); // Every batch fills a file.
+        long first = wal.writeEntry(delete("a"));
+        wal.writeEntry(delete("b"));
+        long third = wal.writeEntry(delete("c"));
+        Assert.assertEquals(third, first + 2);
+        Assert.assertEquals(wal.fileCount(), 4); // Three full files and the empty current one.
+
+        Assert.assertEquals(wal.deleteBefore(third), 2);
+        List<TransactionManager.WalEntry> entries = wal.readLog();
+        Assert.assertEquals(entries.size(), 1);
+        Assert.assertEquals(entries.get(0).id, "c");
+        Assert.assertEquals(entries.get(0).lsn, third);
+        wal.close();
+
+        // LSNs carry on across a restart and a clear.
+        TransactionManager reopened = new TransactionManager(dir, new CryptoManager());
+        Assert.assertEquals(reopened.nextLsn(), third + 1);
+        reopened.clearLog();
+        Assert.assertTrue(reopened.readLog().isEmpty());
+        Assert.assertEquals(reopened.writeEntry(delete("d")), third + 1);
+    }
+
+    @Test
+    public void testCheckpointDeletesPersistedWalFilesAndRecoveryReplaysTheRest() {
+        engine.setWalFileSize(1);
+        engine.persistNode(new Node("a", "A"));
+        engine.persistNode(new Node("b", "B"));
+        engine.persistRelation("a", "b", "KNOWS");
+        Assert.assertTrue(engine.getWalFileCount() > 1);
+        engine.checkpoint();
+        Assert.assertEquals(engine.getWalFileCount(), 1);
+
+        engine.deleteNode("b");
+        engine.persistNode(new Node("c", "C"));
+        engine.abandon(); // As if the process had crashed.
+        engine = new GraphEngine(TEST_DB_DIR);
+        Assert.assertNull(engine.getNode("b"));
+        Assert.assertNotNull(engine.getNode("c"));
+        Assert.assertTrue(engine.traverse("a", "KNOWS").isEmpty());
+        Assert.assertTrue(engine.getAllRelations().isEmpty());
+    }
+
+    @Test
+    public void testPartitionedRecoveryMatchesTheLiveGraph() {
+        for (int i = 0; i < 200; i++) engine.persistNode(new Node("r" + i, "Replay"));
+        for (int i = 0; i < 200; i++) {
+            String target = "r" + (i * 7 % 200);
+            engine.persistRelation("r" + i, target, "A");
+            if (i % 3 == 0) engine.persistRelation("r" + i, target, "B");
+        }
+        for (int i = 0; i < 200; i += 2) engine.deleteRelation("r" + i, "r" + (i * 7 % 200), "A");
+        for (int i = 0; i < 200; i += 10) engine.deleteNode("r" + i);
+        List<String> live = relationKeys(engine);
+
+        engine.abandon(); // As if the process had crashed.
+        engine = new GraphEngine(TEST_DB_DIR);
+        Assert.assertEquals(relationKeys(engine), live);
+        Assert.assertEquals(engine.getAllNodes().size(), 180);
+
+        // Deleting every node must find every remaining edge through the rebuilt incoming index.
+        for (int i = 0; i < 200; i++) engine.deleteNode("r" + i);
+        Assert.assertTrue(engine.getAllRelations().isEmpty());
+    }
+
+    @Test
+    public void testLazyRecoveryReplaysEachShardOnFirstLoad() {
+        engine.setWalFileSize(1);
+        for (int i = 0; i < 64; i++) engine.persistNode(new Node("z" + i, "Lazy"));
+        engine.persistRelation("z1", "z2", "NEXT");
+        engine.deleteNode("z3");
+
+        engine.abandon(); // As if the process had crashed.
+        System.setProperty("atlas.recovery", "lazy");
+        try {
+            engine = new GraphEngine(TEST_DB_DIR);
+        } finally {
+            System.clearProperty("atlas.recovery");
+        }
+        int deferred = engine.countDeferredShards();
+        Assert.assertTrue(deferred > 1);
+        Assert.assertEquals(engine.getNode("z5").getLabel(), "Lazy");
+        Assert.assertEquals(engine.countDeferredShards(), deferred - 1);
+
+        // Shards still waiting for their replay keep their log across a checkpoint and another crash.
+        engine.checkpoint();
+        Assert.assertTrue(engine.getWalFileCount() > 1);
+        engine.abandon();
+        engine = new GraphEngine(TEST_DB_DIR);
+        Assert.assertEquals(engine.getAllNodes().size(), 63);
+        Assert.assertEquals(engine.traverse("z1", "NEXT").size(), 1);
+        Assert.assertNull(engine.getNode("z3"));
+    }
+
+    @Test
+    public void testTransactionIsOneWalRecordAndSurvivesACrash() {
+        engine.persistNode(new Node("a", "A"));
+        engine.persistRelation("a", "a", "SELF");
+        engine.setWalFileSize(1);
+        int files = engine.getWalFileCount();
+
+        Transaction tx = engine.beginTransaction()
+                .persistNode(new Node("b", "B"))
+                .updateNode("b", "name", "Bob")
+                .updateNode("b", "age", "30")
+                .persistRelation("a", "b", "KNOWS")
+                .deleteRelation("a", "a", "SELF");
+        Assert.assertEquals(tx.size(), 3); // The node writes are folded into one.
+        tx.commit();
+        Assert.assertEquals(engine.getWalFileCount(), files + 1);
+
+        Transaction discarded = engine.beginTransaction().deleteNode("a");
+        discarded.rollback();
+        Assert.assertEquals(engine.getWalFileCount(), files + 1);
+        Assert.assertTrue(engine.updateRelation("a", "b", "knows", "LIKES"));
+        Assert.assertFalse(engine.updateRelation("a", "b", "KNOWS", "LIKES"));
+
+        engine.abandon(); // As if the process had crashed.
+        engine = new GraphEngine(TEST_DB_DIR);
+        Assert.assertEquals(engine.getNode("b").getProperties().get("age"), "30");
+        Assert.assertEquals(engine.getNode("b").getProperties().get("name"), "Bob");
+        Assert.assertEquals(relationKeys(engine), Collections.singletonList("a>b:LIKES"));
+
+        // A node deleted in the same transaction that linked it leaves no edge behind.
+        engine.beginTransaction().persistRelation("b", "a", "BACK").deleteNode("a").commit();
+        Assert.assertNull(engine.getNode("a"));
+        Assert.assertTrue(engine.getAllRelations().isEmpty());
+    }
+
+    @Test
+    public void testFailedCommitLeavesTheTransactionOpen() {
+        Transaction tx = engine.beginTransaction().persistNode(new Node("x", "X"));
+        engine.close(); // The WAL now refuses writes.
+        Assert.assertThrows(RuntimeException.class, tx::commit);
+        Assert.assertEquals(tx.size(), 1);
+        tx.rollback();
+        Assert.assertEquals(tx.size(), 0);
+    }
+
+    @Test
+    public void testBatchDeleteUnlinksEdgesLinkedAfterItsListsWereCollected() throws Exception {
+        for (int i = 0; i < 10; i++) engine.persistNode(new Node("n" + i, "Node"));
+        engine.persistNode(new Node("hub", "Hub"));
+        engine.persistRelation("hub", "n0", "OUT");
+        // Lists collected before the links below committed, as a transaction racing them would log.
+        TransactionManager.WalEntry stale = TransactionManager.WalEntry.batch(Collections.singletonList(
+                TransactionManager.WalEntry.deleteNode("hub", Collections.emptySet(), Collections.singleton("n0"))));
+        Thread[] linkers = new Thread[4];
+        for (int t = 0; t < linkers.length; t++) {
+            int id = t;
+            linkers[t] = new Thread(() -> {
+                for (int i = id; i < 10; i += linkers.length) engine.persistRelation("n" + i, "hub", "IN");
+            });
+            linkers[t].start();
+        }
+        for (Thread l : linkers) l.join();
+
+        engine.applyReplicated(stale); // Applied as logged, as a replica or the live commit does.
+        Assert.assertNull(engine.getNode("hub"));
+        Assert.assertTrue(engine.getAllRelations().isEmpty(), "No edge is left pointing at the deleted node");
+    }
+
+    @Test
+    public void testPropertyUpdatesLogOnlyTheChangedProperty() {
+        Node big = new Node("big", "Doc");
+        List<String> tags = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) tags.add("tag-" + i);
+        big.addProperty("tags", tags);
+        engine.persistNode(big);
+
+        long before = walBytes();
+        Assert.assertTrue(before > 8000); // The whole node, list included.
+        Assert.assertTrue(engine.updateNode("big", "title", "Draft"));
+        Assert.assertTrue(walBytes() - before < 200, "logged " + (walBytes() - before) + " bytes");
+        Assert.assertTrue(engine.removeProperty("big", "title"));
+        Assert.assertFalse(engine.removeProperty("big", "title"));
+        Assert.assertTrue(engine.updateNode("big", "status", "open"));
+        Assert.assertFalse(engine.updateNode("missing", "status", "open"));
+
+        engine.abandon(); // As if the process had crashed.
+        engine = new GraphEngine(TEST_DB_DIR);
+        Map<String, Object> props = engine.getNode("big").getProperties();
+        Assert.assertEquals(props.get("status"), "open");
+        Assert.assertFalse(props.containsKey("title"));
+        Assert.assertEquals(((List<?>) props.get("tags")).size(), 1000);
+    }
+
+    @Test
+    public void testChangeSubscriptionReplaysTheBacklogThenTailsNewCommits() throws Exception {
+        engine.setWalFileSize(1);
+        engine.persistNode(new Node("a", "A"));
+        engine.persistNode(new Node("b", "B"));
+        // A fresh engine has nothing in memory, so the backlog comes from the files.
+        engine.abandon();
+        engine = new GraphEngine(TEST_DB_DIR);
+        engine.setWalFileSize(1);
+
+        BlockingQueue<TransactionManager.WalEntry> changes = new LinkedBlockingQueue<>();
+        TransactionManager.Subscription subscription = engine.subscribeChanges(1, changes::add);
+        engine.persistRelation("a", "b", "KNOWS");
+        engine.checkpoint(); // Must keep the files the subscriber has not read yet.
+        engine.updateNode("a", "name", "Ann");
+
+        String[] expected = { "ADD_NODE", "ADD_NODE", "ADD_LINK", "SET_PROPERTY" };
+        long lsn = 0;
+        for (String op : expected) {
+            TransactionManager.WalEntry change = changes.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(change, "missing " + op);
+            Assert.assertEquals(change.opName(), op);
+            Assert.assertTrue(change.lsn > lsn);
+            lsn = change.lsn;
+        }
+        Assert.assertEquals(subscription.position(), lsn + 1);
+        subscription.close();
+        subscription.await();
+
+        engine.checkpoint();
+        Assert.assertTrue(engine.getOldestLsn() > 1);
+        Assert.assertThrows(IllegalStateException.class, () -> engine.readChanges(1, 10));
+        Assert.assertEquals(engine.readChanges(lsn, 10).get(0).key, "name");
+    }
+
+    @Test
+    public void testTornWalTailIsCutBackToLastWholeRecord() throws Exception {
+        String dir = TEST_DB_DIR + "/wal_torn";
+        TransactionManager wal = new TransactionManager(dir, new CryptoManager());
+        wal.writeEntry(TransactionManager.WalEntry.addNode(new Node("a", "Kept")));
+        wal.writeEntry(TransactionManager.WalEntry.addLink(new Relation("a", "b", "LINKS")));
+        wal.writeEntry(delete("c"));
+
+        java.nio.file.Path file = Paths.get(dir, new File(dir).list((d, name) -> name.startsWith("wal_"))[0]);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+
+        TransactionManager reopened = new TransactionManager(dir, new CryptoManager());
+        List<TransactionManager.WalEntry> entries = reopened.readLog();
+        Assert.assertEquals(entries.size(), 2);
+        Assert.assertEquals(entries.get(0).node.getLabel(), "Kept");
+        Assert.assertEquals(entries.get(1).relation.getType(), "LINKS");
+
+        // New records go after the last whole one, not after the torn bytes.
+        reopened.writeEntry(delete("d"));
+        entries = new TransactionManager(dir, new CryptoManager()).readLog();
+        Assert.assertEquals(entries.size(), 3);
+        Assert.assertEquals(entries.get(2).id, "d");
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testJsonWalFromPreviousVersionIsReplayed() throws Exception {
+        engine.close();
+        deleteTestDir();
+        Files.createDirectories(Paths.get(TEST_DB_DIR));
+        CryptoManager crypto = new CryptoManager();
+        String json = new com.google.gson.Gson().toJson(java.util.Map.of(
+                "timestamp", 1L, "operation", "ADD_NODE",
+                "payload", new com.google.gson.Gson().toJson(new Node("old", "FromV1"))));
+        Files.write(Paths.get(TEST_DB_DIR, "global.wal"), (crypto.encrypt(json) + "\n").getBytes(StandardCharsets.UTF_8));
+
+        engine = new GraphEngine(TEST_DB_DIR);
+        Assert.assertEquals(engine.getNode("old").getLabel(), "FromV1");
+        engine.checkpoint();
+        Assert.assertFalse(Files.exists(Paths.get(TEST_DB_DIR, "global.wal.legacy")));
+    }
+
+    @Test
+    public void testGroupCommitKeepsEveryConcurrentWrite() throws Exception {
+        TransactionManager wal = new TransactionManager(TEST_DB_DIR + "/wal_group", new CryptoManager(),
+                TransactionManager.Durability.group(2, 64 * 1024));
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 100; i++) wal.writeEntry(delete(id + ":" + i));
+            });
+            writers[t].start();
+        }
+        for (Thread w : writers) w.join();
+
+        Assert.assertEquals(wal.readLog().size(), 800);
+        wal.close();
+        Assert.assertEquals(new TransactionManager(TEST_DB_DIR + "/wal_group", new CryptoManager()).readLog().size(), 800);
+        Assert.assertEquals(TransactionManager.Durability.parse("group:5:4096").toString(), "group:5:4096");
+    }
+
+    @Test
+    public void testFailedWalWriteStopsTheLogWithoutSkewingLsns() throws Exception {
+        String dir = TEST_DB_DIR + "/wal_fail";
+        TransactionManager wal = new TransactionManager(dir, new CryptoManager(), TransactionManager.Durability.group(20, 64 * 1024));
+        for (int i = 0; i < 3; i++) Assert.assertEquals(wal.writeEntry(delete("kept" + i)), i + 1);
+
+        // Pull the file out from under the flusher: its next write fails with an IOException.
+        Field field = TransactionManager.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        ((FileChannel) field.get(wal)).close();
+        Thread[] writers = new Thread[4];
+        AtomicInteger failed = new AtomicInteger();
+        for (int t = 0; t < writers.length; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                try {
+                    wal.writeEntry(delete("lost" + id));
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread w : writers) w.join();
+        Assert.assertEquals(failed.get(), writers.length, "Every writer of and behind the failed batch is failed");
+        Assert.assertThrows(RuntimeException.class, () -> wal.writeEntry(delete("after")));
+        Assert.assertEquals(wal.nextLsn(), 4);
+        wal.close();
+
+        TransactionManager reopened = new TransactionManager(dir, new CryptoManager());
+        List<TransactionManager.WalEntry> entries = reopened.readLog();
+        Assert.assertEquals(entries.size(), 3, "Nothing a writer was told failed is replayed");
+        Assert.assertEquals(reopened.writeEntry(delete("next")), 4, "LSNs carry on from the last record on disk");
+        reopened.close();
+    }
+
+    @Test
+    public void testBackupLinksFilesAndRestoresToAnLsnFromTheArchive() throws Exception {
+        java.nio.file.Path backup = Paths.get(TEST_DB_DIR, "backup");
+        java.nio.file.Path archive = Paths.get(TEST_DB_DIR, "archive");
+        java.nio.file.Path restored = Paths.get(TEST_DB_DIR, "restored");
+        engine.setWalFileSize(1);
+        engine.setWalArchive(archive.toFile());
+        engine.persistNode(new Node("a", "Before"));
+        engine.persistRelation("a", "a", "SELF");
+        engine.checkpoint();
+
+        Backup.Result result = engine.backup(backup, null);
+        Assert.assertTrue(result.getLinkedFiles() > 0);
+        Assert.assertTrue(result.getCopiedBytes() < 1024, "copied " + result.getCopiedBytes() + " bytes");
+        engine.persistNode(new Node("b", "After"));
+        long wanted = engine.getCommittedLsn() - 1;
+        engine.updateNode("b", "name", "changed");
+        engine.deleteNode("a");
+        engine.checkpoint(); // Moves the log of the later changes into the archive.
+
+        Assert.assertThrows(IllegalArgumentException.class,
+                () -> Backup.restore(backup, archive, Paths.get(TEST_DB_DIR, "early"), result.getLsn() - 1, Long.MAX_VALUE));
+        Assert.assertEquals(Backup.restore(backup, null, Paths.get(TEST_DB_DIR, "unarchived"), Long.MAX_VALUE, Long.MAX_VALUE),
+                result.getLsn());
+        Assert.assertEquals(Backup.restore(backup, archive, restored, wanted + 1, Long.MAX_VALUE), wanted + 1);
+        GraphEngine atLsn = new GraphEngine(restored.toString());
+        try {
+            Assert.assertNotNull(atLsn.getNode("a"));
+            Assert.assertNotNull(atLsn.getRelation("a", "a"));
+            Assert.assertEquals(atLsn.getNode("b").getLabel(), "After");
+            Assert.assertNull(atLsn.getNode("b").getProperties().get("name"));
+        } finally {
+            atLsn.close();
+        }
+    }
+
+    @Test
+    public void testTopologyDrivesPathsAndPageRankAndTracksChanges() {
+        for (String id : new String[] { "a", "b", "c", "d" }) engine.persistNode(new Node(id, id.toUpperCase()));
+        engine.persistRelation("a", "b", "ROAD", Map.of("km", 10));
+        engine.persistRelation("b", "d", "ROAD", Map.of("km", 10));
+        engine.persistRelation("a", "c", "ROAD", Map.of("km", 1));
+        engine.persistRelation("c", "d", "RAIL", Map.of("km", 2));
+
+        Topology t = engine.getTopology();
+        Assert.assertEquals(t.size(), 4);
+        Assert.assertEquals(t.edgeCount(), 4);
+        Assert.assertEquals(t.outDegree(t.indexOf("a")), 2);
+        Assert.assertEquals(t.inDegree(t.indexOf("d")), 2);
+        Assert.assertEquals(t.typeName(t.typeOf("rail")), "RAIL");
+        engine.updateNode("a", "name", "unchanged structure");
+        Assert.assertSame(engine.getTopology(), t);
+
+        Assert.assertEquals(engine.findShortestPath("a", "d", 10).size(), 3);
+        Assert.assertTrue(engine.findShortestPath("d", "a", 10).isEmpty());
+        Assert.assertTrue(engine.findShortestPath("a", "d", 1).isEmpty());
+        GraphEngine.PathResult cheapest = engine.findWeightedPath("a", "d", "km", true);
+        Assert.assertEquals(cheapest.path, Arrays.asList("a", "c", "d"));
+        Assert.assertEquals(cheapest.totalCost, 3.0);
+
+        Map<String, Double> ranks = engine.calculatePageRank(20, 0.85);
+        Assert.assertEquals(ranks.get("d"), 10.0);
+        Assert.assertTrue(ranks.get("a") < ranks.get("b"));
+
+        engine.deleteNode("c");
+        Assert.assertNotSame(engine.getTopology(), t);
+        Assert.assertEquals(engine.getTopology().edgeCount(), 2);
+        Assert.assertEquals(engine.findWeightedPath("a", "d", "km", true).path, Arrays.asList("a", "b", "d"));
+    }
+
+    @Test
+    public void testParallelPageRankConvergesWithDanglingAndPersonalization() {
+        // A 3-cycle plus a dangling node "z" that "a" also points to.
+        for (String id : new String[] { "a", "b", "c", "z" }) engine.persistNode(new Node(id, "N"));
+        engine.persistRelation("a", "b", "L");
+        engine.persistRelation("b", "c", "L");
+        engine.persistRelation("c", "a", "L");
+        engine.persistRelation("a", "z", "L");
+
+        PageRank.Result result = engine.calculatePageRank(new PageRank().setTolerance(1e-10).setMaxIterations(500));
+        Assert.assertTrue(result.isConverged());
+        Assert.assertTrue(result.getIterations() < 500);
+        double total = result.getRanks().values().stream().mapToDouble(Double::doubleValue).sum();
+        Assert.assertEquals(total, 1.0, 1e-9); // The dangling node's rank is handed back out.
+        // Checked against the power method with uniform teleport and dangling redistribution.
+        Assert.assertEquals(result.rankOf("a"), 0.3079, 1e-4);
+        Assert.assertEquals(result.rankOf("z"), 0.2138, 1e-4);
+        Assert.assertEquals(engine.getPageRankScores().get("a"), 10.0);
+
+        PageRank.Result seeded = engine.calculatePageRank(new PageRank().setPersonalization(Map.of("z", 1.0)));
+        Assert.assertTrue(seeded.rankOf("z") > result.rankOf("z"));
+        Assert.assertEquals(new PageRank().setMaxIterations(3).setTolerance(0).run(engine.getTopology(),
+                java.util.concurrent.ForkJoinPool.commonPool()).getIterations(), 3);
+    }
+
+    @Test
+    public void testIncrementalPageRankStaysWithinTheErrorBound() {
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < 60; i++) engine.persistNode(new Node("n" + i, "N"));
+        for (int i = 0; i < 240; i++) engine.persistRelation("n" + random.nextInt(60), "n" + random.nextInt(60), "L" + (i % 3));
+        Assert.assertTrue(engine.startIncrementalPageRank(1e-4));
+        Assert.assertFalse(engine.startIncrementalPageRank(1e-4)); // Already on: the model is kept.
+        Map<String, Double> before = engine.getPageRankScores();
+
+        for (int i = 0; i < 40; i++) engine.persistRelation("n" + random.nextInt(60), "n" + random.nextInt(60), "L" + (i % 3));
+        engine.persistRelation("n1", "n2", "l0"); // Same edge as type "L0": must not be counted twice.
+        engine.persistRelation("n1", "n2", "L0");
+        for (Relation r : engine.getAllRelations().subList(0, 30)) engine.deleteRelation(r.getSourceId(), r.getTargetId(), r.getType());
+        engine.deleteNode("n5");
+        engine.persistNode(new Node("late", "N"));
+        Transaction tx = engine.beginTransaction();
+        tx.persistRelation("late", "n7", "L0");
+        tx.persistRelation("n7", "late", "L0");
+        tx.deleteNode("n9");
+        tx.commit();
+
+        Map<String, Double> kept = engine.getPageRankScores();
+        Assert.assertNotSame(kept, before);
+        Assert.assertFalse(kept.containsKey("n5"));
+        Assert.assertTrue(kept.containsKey("late"));
+        PageRank.Result exact = engine.calculatePageRank(new PageRank().setTolerance(1e-12).setMaxIterations(1000));
+        double total = kept.values().stream().mapToDouble(Double::doubleValue).sum();
+        double error = 0;
+        for (Map.Entry<String, Double> e : exact.getRanks().entrySet())
+            error += Math.abs(kept.get(e.getKey()) / total - e.getValue());
+        Assert.assertTrue(error <= 1e-4, "L1 error " + error);
+        Assert.assertSame(engine.getPageRankScores(), kept); // Unchanged graph: the same map.
+    }
+
+    private static List<String> relationKeys(GraphEngine g) {
+        return g.getAllRelations().stream()
+                .map(r -> r.getSourceId() + ">" + r.getTargetId() + ":" + r.getType())
+                .sorted().collect(java.util.stream.Collectors.toList());
+    }
+
+    private static TransactionManager.WalEntry delete(String id) {
+        return TransactionManager.WalEntry.deleteNode(id, Collections.emptySet(), Collections.emptySet());
+    }
+
+    private long walBytes() {
+        File[] logs = new File(TEST_DB_DIR).listFiles((d, name) -> TransactionManager.isLogFile(name));
+        return logs == null ? 0 : Arrays.stream(logs).mapToLong(File::length).sum();
+    }
+
+    private int countRunFiles() {
+        String[] runs = new File(TEST_DB_DIR).list((d, name) -> name.endsWith(".run"));
+        return runs == null ? 0 : runs.length;
+    }
+}
@@ -0,0 +1,204 @@
+package com.atlasdblite.engine;
+
+import com.atlasdblite.models.Node;
+import com.atlasdblite.security.CryptoManager;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SegmentCacheTest {
+
+    private static final String TEST_DIR = "test_atlas_cache";
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        deleteTestDir();
+        Files.createDirectories(Paths.get(TEST_DIR));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        deleteTestDir();
+    }
+
+    private void deleteTestDir() {
+        try {
+            if (Files.exists(Paths.get(TEST_DIR))) {
+                Files.walk(Paths.get(TEST_DIR))
+                    .sorted(Comparator.reverseOrder())
+                    .map(java.nio.file.Path::toFile)
+                    .forEach(File::delete);
+            }
+        } catch (Exception ignored) {}
+    }
+
+    @Test
+    public void testConcurrentHitsAreReplayedIntoTheCache() throws Exception {
+        DataSegment[] segments = new DataSegment[8];
+        for (int i = 0; i < segments.length; i++) segments[i] = savedSegment(i, 5);
+        SegmentCache cache = new SegmentCache(Long.MAX_VALUE, s -> {});
+        for (DataSegment segment : segments) cache.touch(segment);
+
+        Thread[] readers = new Thread[8];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                java.util.Random random = new java.util.Random();
+                for (int i = 0; i < 20_000; i++) {
+                    DataSegment segment = segments[random.nextInt(segments.length)];
+                    segment.getNode("n0");
+                    cache.touch(segment);
+                }
+            });
+            readers[t].start();
+        }
+        for (Thread r : readers) r.join();
+
+        long total = 0;
+        for (DataSegment segment : segments) {
+            Assert.assertTrue(cache.contains(segment));
+            total += segment.estimatedBytes();
+        }
+        Assert.assertEquals(cache.getChargedBytes(), total);
+        cache.shutdown();
+    }
+
+    @Test
+    public void testBufferedHitsAreDrainedBeforeAnEviction() throws Exception {
+        DataSegment a = savedSegment(0, 5);
+        DataSegment b = savedSegment(1, 5);
+        DataSegment d = savedSegment(2, 5);
+        DataSegment filler = savedSegment(3, 5);
+        SegmentCache cache = new SegmentCache(Long.MAX_VALUE, s -> {});
+
+        // Push a and b out of A1in into the ghost list, then bring them back: both land in Am, b last.
+        cache.touch(a);
+        cache.touch(b);
+        cache.setBudget(0);
+        cache.touch(filler);
+        cache.remove(filler);
+        cache.setBudget(Long.MAX_VALUE);
+        for (DataSegment segment : new DataSegment[] { a, b }) {
+            segment.getNode("n0");
+            cache.touch(segment);
+        }
+        Assert.assertTrue(cache.isHot(a) && cache.isHot(b));
+
+        // Fewer hits than a buffer holds, so they wait in the buffers rather than being drained.
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                for (int i = 0; i < 3; i++) cache.touch(a);
+            });
+            readers[t].start();
+        }
+        for (Thread r : readers) r.join();
+
+        // Admitting d takes one segment out of Am: the least recent once the buffered hits count.
+        cache.setBudget(a.estimatedBytes() + b.estimatedBytes() + d.estimatedBytes() - 1);
+        cache.touch(d);
+        cache.awaitWriteBack();
+        Assert.assertTrue(cache.contains(a));
+        Assert.assertFalse(cache.contains(b));
+        Assert.assertTrue(cache.contains(d));
+        cache.shutdown();
+    }
+
+    /** A segment in the test directory, with {@code nodes} nodes saved. */
+    private static DataSegment savedSegment(int id, int nodes) throws Exception {
+        DataSegment segment = new DataSegment(id, TEST_DIR, new CryptoManager());
+        for (int i = 0; i < nodes; i++) segment.putNode(new Node("n" + i, "Cached"));
+        Assert.assertEquals(segment.save(), nodes);
+        return segment;
+    }
+
+    @Test
+    public void testEvictionDoesNotWaitForASaveInFlight() throws Exception {
+        DataSegment saving = savedSegment(0, 1);
+        DataSegment other = savedSegment(1, 1);
+        SegmentCache cache = new SegmentCache(Long.MAX_VALUE, s -> {});
+        cache.touch(saving);
+
+        // Hold the lock a checkpoint's save holds for its whole write, from another thread.
+        ReentrantLock flushLock = saving.saveLock();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread checkpoint = new Thread(() -> {
+            flushLock.lock();
+            try {
+                held.countDown();
+                done.await();
+            } catch (InterruptedException ignored) {
+            } finally { flushLock.unlock(); }
+        });
+        checkpoint.start();
+        held.await();
+        try {
+            ExecutorService reader = Executors.newSingleThreadExecutor();
+            cache.setBudget(1);
+            reader.submit(() -> cache.touch(other)).get(5, TimeUnit.SECONDS); // Admitting it evicts the other.
+            reader.shutdown();
+            Assert.assertFalse(cache.contains(saving));
+            Assert.assertTrue(saving.estimatedBytes() > 0, "Still loaded while the save holds it");
+        } finally {
+            done.countDown();
+            checkpoint.join();
+        }
+        cache.awaitWriteBack();
+        Assert.assertEquals(saving.estimatedBytes(), 0, "Unloaded by the write-back thread");
+        Assert.assertEquals(saving.getNode("n0").getLabel(), "Cached");
+        cache.shutdown();
+    }
+
+    @Test
+    public void testSegmentTouchedAgainDuringItsWriteBackStaysLoaded() throws Exception {
+        DataSegment victim = savedSegment(0, 5);
+        DataSegment other = savedSegment(1, 5);
+        SegmentCache cache = new SegmentCache(Long.MAX_VALUE, s -> {});
+        cache.touch(victim);
+
+        // A save in flight sends the eviction to the write-back thread, which then waits for it.
+        ReentrantLock flushLock = victim.saveLock();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread checkpoint = new Thread(() -> {
+            flushLock.lock();
+            try {
+                held.countDown();
+                done.await();
+            } catch (InterruptedException ignored) {
+            } finally { flushLock.unlock(); }
+        });
+        checkpoint.start();
+        held.await();
+        try {
+            cache.setBudget(1);
+            cache.touch(other);
+            Assert.assertFalse(cache.contains(victim));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!flushLock.hasQueuedThreads() && System.nanoTime() < deadline) Thread.sleep(1);
+            Assert.assertTrue(flushLock.hasQueuedThreads(), "The write-back waits for the save");
+            cache.setBudget(Long.MAX_VALUE);
+            cache.touch(victim);
+        } finally {
+            done.countDown();
+            checkpoint.join();
+        }
+        cache.awaitWriteBack();
+
+        Assert.assertTrue(cache.contains(victim));
+        Assert.assertTrue(victim.estimatedBytes() > 0, "Still loaded: it was admitted again before the unload");
+        Assert.assertEquals(cache.getChargedBytes(), victim.estimatedBytes() + other.estimatedBytes());
+        cache.shutdown();
+    }
+}
@@ -3,7 +3,15 @@ package com.atlasdblite.security;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
+import javax.crypto.AEADBadTagException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
 
 public class CryptoManagerTest {
 
@@ -47,4 +55,55 @@ public class CryptoManagerTest {
             Assert.fail("JSON encryption failed");
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAuthenticatedBytesRoundTrip() throws Exception {
+        byte[] original = "segment-payload".getBytes(StandardCharsets.UTF_8);
+        byte[] sealed = crypto.encrypt(original);
+        Assert.assertEquals(sealed.length, original.length + CryptoManager.NONCE_LENGTH + CryptoManager.TAG_LENGTH);
+        Assert.assertEquals(crypto.decrypt(sealed), original);
+
+        ByteBuffer inPlace = crypto.decryptInPlace(ByteBuffer.wrap(sealed.clone()));
+        byte[] plain = new byte[inPlace.remaining()];
+        inPlace.get(plain);
+        Assert.assertEquals(plain, original);
+    }
+
+    @Test(expectedExceptions = AEADBadTagException.class)
+    public void testTamperedCiphertextIsRejected() throws Exception {
+        byte[] sealed = crypto.encrypt("balance=100".getBytes(StandardCharsets.UTF_8));
+        sealed[sealed.length - 1] ^= 1;
+        crypto.decrypt(sealed);
+    }
+
+    @Test
+    public void testStreamingRoundTrip() throws Exception {
+        byte[] original = new byte[200_000];
+        new Random(42).nextBytes(original);
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (OutputStream out = crypto.encryptingStream(sink)) {
+            // Single bytes, writes not a multiple of the cipher block, and one spanning several chunks.
+            out.write(original[0]);
+            out.write(original, 1, 999);
+            out.write(original, 1000, original.length - 1000);
+        }
+        Assert.assertEquals(sink.size(), original.length + CryptoManager.NONCE_LENGTH + CryptoManager.TAG_LENGTH);
+        try (InputStream in = crypto.decryptingStream(new ByteArrayInputStream(sink.toByteArray()))) {
+            Assert.assertEquals(in.readAllBytes(), original);
+        }
+    }
+
+    @Test
+    public void testSealingIntoAReusedBuffer() throws Exception {
+        byte[] out = new byte[256];
+        byte[] aad = { 7 };
+        for (String text : new String[] { "first block", "second, longer block" }) {
+            byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+            int length = crypto.encrypt(plain, 0, plain.length, aad, out, 3);
+            Assert.assertEquals(length, plain.length + CryptoManager.NONCE_LENGTH + CryptoManager.TAG_LENGTH);
+            ByteBuffer opened = crypto.decrypt(ByteBuffer.wrap(out, 3, length), ByteBuffer.allocate(plain.length), aad);
+            Assert.assertEquals(opened.array(), plain);
+        }
+    }
+}
@@ -26,6 +26,7 @@ public class APIServerTest {
     private static final int TEST_PORT = 8099;
     private static final String BASE_URL = "http://localhost:" + TEST_PORT;
     private static final String TEST_DB_DIR = "api_test_db";
+    private static final String REPLICA_DB_DIR = "api_replica_db";
     
     private APIServer server;
     private GraphEngine engine;
@@ -53,9 +54,14 @@ public class APIServerTest {
     }
 
     private void cleanTestDir() {
+        cleanDir(TEST_DB_DIR);
+        cleanDir(REPLICA_DB_DIR);
+    }
+
+    private static void cleanDir(String dir) {
         try {
-            if (Files.exists(Paths.get(TEST_DB_DIR))) {
-                Files.walk(Paths.get(TEST_DB_DIR))
+            if (Files.exists(Paths.get(dir))) {
+                Files.walk(Paths.get(dir))
                     .sorted(Comparator.reverseOrder())
                     .map(java.nio.file.Path::toFile)
                     .forEach(File::delete);
@@ -122,4 +128,57 @@ public class APIServerTest {
         );
         Assert.assertEquals(response.statusCode(), 201);
     }
+
+    @Test(priority = 5)
+    public void testChangeStreamBacklog() throws Exception {
+        HttpResponse<String> res = client.send(
+            HttpRequest.newBuilder().uri(URI.create(BASE_URL + "/api/changes?from=1&follow=false")).GET().build(),
+            HttpResponse.BodyHandlers.ofString()
+        );
+        Assert.assertEquals(res.statusCode(), 200);
+        String[] lines = res.body().split("\n");
+        Assert.assertEquals(lines.length, 3);
+        Assert.assertTrue(lines[0].contains("\"op\":\"ADD_NODE\"") && lines[0].contains("u100"));
+        Assert.assertTrue(lines[2].contains("\"op\":\"ADD_LINK\"") && lines[2].contains("MANAGES"));
+
+        // Resuming after the last change delivered yields nothing new.
+        long last = gson.fromJson(lines[2], ChangeLine.class).lsn;
+        res = client.send(
+            HttpRequest.newBuilder().uri(URI.create(BASE_URL + "/api/changes?from=" + (last + 1) + "&follow=false")).GET().build(),
+            HttpResponse.BodyHandlers.ofString()
+        );
+        Assert.assertEquals(res.body(), "");
+    }
+
+    @Test(priority = 6)
+    public void testReplicaFollowsThePrimaryReadOnly() throws Exception {
+        GraphEngine replicaEngine = new GraphEngine(REPLICA_DB_DIR);
+        Replica replica = new Replica(replicaEngine, BASE_URL);
+        try {
+            replica.start();
+            awaitTrue(() -> replicaEngine.getRelation("u100", "u101") != null);
+            Assert.assertEquals(replicaEngine.getNode("u100").getProperties().get("role"), "Admin");
+
+            engine.persistNode(new Node("u102", "User"));
+            engine.updateNode("u102", "role", "Auditor");
+            awaitTrue(() -> replicaEngine.getNode("u102") != null
+                    && "Auditor".equals(replicaEngine.getNode("u102").getProperties().get("role")));
+            Assert.assertEquals(replica.getLag(), 0);
+            Assert.assertThrows(IllegalStateException.class, () -> replicaEngine.persistNode(new Node("x", "X")));
+        } finally {
+            replica.stop();
+            replicaEngine.close();
+            cleanDir(REPLICA_DB_DIR);
+        }
+        Assert.assertFalse(replicaEngine.isReadOnly());
+    }
+
+    private static void awaitTrue(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) Thread.sleep(50);
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+    private static class ChangeLine {
+        long lsn;
+    }
 }
\ No newline at end of file